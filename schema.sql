@@ -1,3 +1,5 @@
+-- Reference copy of the baseline schema. The application applies src/main/resources/db/migrations at startup.
+
 CREATE TABLE IF NOT EXISTS Users (
     username VARCHAR(64) PRIMARY KEY CHECK (LENGTH(username) > 0),
     password_hash TEXT,
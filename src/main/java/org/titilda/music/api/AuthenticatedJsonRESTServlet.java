@@ -1,8 +1,6 @@
 package org.titilda.music.api;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.core.JsonGenerator;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -12,6 +10,7 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.*;
 
+import org.titilda.music.api.utils.JsonMappers;
 import org.titilda.music.base.controller.Authentication;
 import org.titilda.music.base.database.DatabaseManager;
 import org.titilda.music.base.model.User;
@@ -40,8 +39,7 @@ public abstract class AuthenticatedJsonRESTServlet extends HttpServlet implement
             throw new InvalidRequestException("Expected application/json content type", HttpServletResponse.SC_BAD_REQUEST);
         }
         try {
-            return new JsonMapper().readValue(req.getInputStream(), new TypeReference<List<String>>() {
-            });
+            return JsonMappers.readStringList(req.getInputStream());
         } catch (IOException _) {
             throw new InvalidRequestException("Invalid JSON data", HttpServletResponse.SC_BAD_REQUEST);
         }
@@ -52,7 +50,7 @@ public abstract class AuthenticatedJsonRESTServlet extends HttpServlet implement
             throw new InvalidRequestException("Expected application/json content type", HttpServletResponse.SC_BAD_REQUEST);
         }
         try {
-            return new JsonMapper().readValue(req.getInputStream(), clazz);
+            return JsonMappers.readModel(req.getInputStream(), clazz);
         }
         catch (IOException _) {
             throw new InvalidRequestException("Invalid JSON data", HttpServletResponse.SC_BAD_REQUEST);
@@ -81,20 +79,46 @@ public abstract class AuthenticatedJsonRESTServlet extends HttpServlet implement
         return new InvalidRequestException("Method not supported", HttpServletResponse.SC_METHOD_NOT_ALLOWED);
     }
 
+    /**
+     * Writes a response body directly to the client, e.g. while iterating over a ResultSet, so that large
+     * collections never have to be held in memory.
+     */
+    @FunctionalInterface
+    protected interface JsonStreamer {
+        void write(JsonGenerator generator) throws IOException, SQLException;
+    }
+
+    /**
+     * Whether the handlers of the given method get a connection, taken before they run. Handlers that read a large
+     * body before touching the database return false, so that no pooled connection sits idle in a transaction while
+     * the client uploads; they are passed null and take a connection themselves once the body has been read.
+     */
+    protected boolean usesConnection(String method) {
+        return true;
+    }
+
     // ================ STUBBED METHODS ================
-    protected JsonNode processApiGet(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, IOException, SQLException {
+    /**
+     * Handlers that can produce their GET response incrementally override this instead of {@link #processApiGet}.
+     * Validation must happen here, before the streamer is returned: once streaming starts the status can no longer
+     * be changed. Returning null falls back to {@link #processApiGet}.
+     */
+    protected JsonStreamer processApiStreamingGet(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
+        return null;
+    }
+    protected JsonMappers.Body processApiGet(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, IOException, SQLException {
         throw unsupportMethod();
     }
-    protected JsonNode processApiPost(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, IOException, SQLException {
+    protected JsonMappers.Body processApiPost(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, IOException, SQLException {
         throw unsupportMethod();
     }
-    protected JsonNode processApiPut(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, IOException, SQLException {
+    protected JsonMappers.Body processApiPut(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, IOException, SQLException {
         throw unsupportMethod();
     }
-    protected JsonNode processApiDelete(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, IOException, SQLException {
+    protected JsonMappers.Body processApiDelete(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, IOException, SQLException {
         throw unsupportMethod();
     }
-    protected JsonNode processApiPatch(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, IOException, SQLException {
+    protected JsonMappers.Body processApiPatch(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, IOException, SQLException {
         throw unsupportMethod();
     }
     // =================================================
@@ -105,14 +129,30 @@ public abstract class AuthenticatedJsonRESTServlet extends HttpServlet implement
                 .orElseThrow(() -> new InvalidRequestException("Invalid token", HttpServletResponse.SC_UNAUTHORIZED));
     }
 
-    protected final void handleHttpRequest(HttpServletRequest req, HttpServletResponse resp) {
+    protected final void handleHttpRequest(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         resp.setContentType("application/json");
-        JsonNode jsonNode;
-        try (Connection dbConnection = DatabaseManager.getConnection()) {
-            dbConnection.setAutoCommit(false);
+        JsonMappers.Body body;
+        try (Connection dbConnection = usesConnection(req.getMethod()) ? DatabaseManager.getConnection() : null) {
+            if (dbConnection != null) {
+                dbConnection.setAutoCommit(false);
+            }
             User user = checkBearerToken(req);
 
-            jsonNode = switch (req.getMethod()) {
+            if (req.getMethod().equals("GET")) {
+                JsonStreamer streamer = processApiStreamingGet(user, req, dbConnection);
+                if (streamer != null) {
+                    // only closed once the whole body has been written: on failure nothing buffered is flushed
+                    JsonGenerator generator = JsonMappers.createGenerator(resp.getOutputStream());
+                    streamer.write(generator);
+                    generator.close();
+                    if (dbConnection != null) {
+                        dbConnection.commit();
+                    }
+                    return;
+                }
+            }
+
+            body = switch (req.getMethod()) {
                 case "GET" -> processApiGet(user, req, dbConnection);
                 case "POST" -> processApiPost(user, req, dbConnection);
                 case "DELETE" -> processApiDelete(user, req, dbConnection);
@@ -120,19 +160,28 @@ public abstract class AuthenticatedJsonRESTServlet extends HttpServlet implement
                 case "PATCH" -> processApiPatch(user, req, dbConnection);
                 default -> throw unsupportMethod();
             };
-            dbConnection.commit();
+            if (dbConnection != null) {
+                dbConnection.commit();
+            }
         } catch (InvalidRequestException e) {
             resp.setStatus(e.getStatus());
-            jsonNode = new JsonMapper().createObjectNode().put("error", e.getError());
+            body = JsonMappers.body(JsonMappers.createObjectNode().put("error", e.getError()));
         } catch (SQLException | IOException e) {
-            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             System.out.println(e.getMessage());
-            jsonNode = new JsonMapper().createObjectNode().put("error", "Temporary error processing request");
+            if (resp.isCommitted()) {
+                // part of a streamed body has already been sent: let the container abort the connection, so that
+                // the client sees a truncated body rather than a shorter but well-formed one
+                throw new IOException("Response failed after being committed", e);
+            }
+            // drops whatever a streamer buffered
+            resp.reset();
+            resp.setContentType("application/json");
+            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            body = JsonMappers.body(JsonMappers.createObjectNode().put("error", "Temporary error processing request"));
         }
 
-        String jsonResponseText = jsonNode.toString();
         try {
-            resp.getWriter().println(jsonResponseText);
+            body.writeTo(resp.getOutputStream());
         } catch (IOException _) {
             System.out.println("Error writing JSON response to socket.");
         }
@@ -140,23 +189,23 @@ public abstract class AuthenticatedJsonRESTServlet extends HttpServlet implement
 
     // ================ DEFAULT JAKARTA OVERRIDES ================
     @Override
-    protected final void doGet(HttpServletRequest req, HttpServletResponse resp) {
+    protected final void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         handleHttpRequest(req, resp);
     }
     @Override
-    protected final void doPost(HttpServletRequest req, HttpServletResponse resp) {
+    protected final void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         handleHttpRequest(req, resp);
     }
     @Override
-    protected final void doPut(HttpServletRequest req, HttpServletResponse resp) {
+    protected final void doPut(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         handleHttpRequest(req, resp);
     }
     @Override
-    protected final void doDelete(HttpServletRequest req, HttpServletResponse resp) {
+    protected final void doDelete(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         handleHttpRequest(req, resp);
     }
     @Override
-    protected final void doPatch(HttpServletRequest req, HttpServletResponse resp) {
+    protected final void doPatch(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         handleHttpRequest(req, resp);
     }
 }
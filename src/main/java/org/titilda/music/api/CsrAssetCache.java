@@ -0,0 +1,294 @@
+package org.titilda.music.api;
+
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The client-side app shell (index.html) and its stylesheets and scripts, loaded once into memory together with
+ * their compressed variants.
+ * <p>
+ * Every asset is also published under a fingerprinted URL (e.g. {@code /css/home.3f2a9c1b0d.css}) which changes
+ * whenever its content does, so it can be cached forever; references between assets are rewritten to those URLs
+ * before fingerprinting. Only index.html and the plain URLs have to be revalidated.
+ * <p>
+ * Gzip variants are computed at load time. No Brotli encoder ships with the JDK, so Brotli variants are only
+ * served when a precompressed {@code .br} file is packaged next to the original.
+ */
+final class CsrAssetCache {
+    static final String INDEX_PATH = "/index.html";
+
+    private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE_CACHE_CONTROL = "no-cache";
+
+    private record Asset(String contentType, byte[] identity, byte[] gzip, byte[] brotli, String etag, boolean immutable) {}
+
+    private enum Encoding {
+        IDENTITY(null, ""),
+        GZIP("gzip", "-gz"),
+        BROTLI("br", "-br");
+
+        private final String name;
+        private final String etagSuffix;
+
+        Encoding(String name, String etagSuffix) {
+            this.name = name;
+            this.etagSuffix = etagSuffix;
+        }
+    }
+
+    private final ServletContext context;
+    private final List<String> sourcePaths;
+    private final Map<String, byte[]> rewrittenSources = new HashMap<>();
+    private final Map<String, String> fingerprintedPaths = new HashMap<>();
+    private final Map<String, Asset> assets = new HashMap<>();
+
+    private CsrAssetCache(ServletContext context, List<String> sourcePaths) {
+        this.context = context;
+        this.sourcePaths = sourcePaths;
+    }
+
+    /**
+     * Loads and prepares the given assets (paths relative to the webapp root) and index.html.
+     *
+     * @throws IOException if any of them cannot be read
+     */
+    static CsrAssetCache load(ServletContext context, List<String> assetPaths) throws IOException {
+        CsrAssetCache cache = new CsrAssetCache(context, assetPaths);
+        for (String path : assetPaths) {
+            cache.fingerprint(path, 0);
+        }
+        for (String path : assetPaths) {
+            byte[] content = cache.rewrittenSources.get(path);
+            cache.assets.put(path, cache.prepare(path, content, false));
+            cache.assets.put(cache.fingerprintedPaths.get(path), cache.prepare(path, content, true));
+        }
+        cache.assets.put(INDEX_PATH, cache.prepare(INDEX_PATH, cache.rewrite(INDEX_PATH, cache.read(INDEX_PATH), 0), false));
+        return cache;
+    }
+
+    boolean contains(String path) {
+        return assets.containsKey(path);
+    }
+
+    /**
+     * Sends an asset, compressed if the client accepts it, or 304 if the client's copy matches.
+     */
+    void serve(String path, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        Asset asset = assets.get(path);
+        Encoding encoding = negotiate(req.getHeader("Accept-Encoding"), asset);
+        byte[] body = switch (encoding) {
+            case GZIP -> asset.gzip();
+            case BROTLI -> asset.brotli();
+            case IDENTITY -> asset.identity();
+        };
+        String etag = "\"" + asset.etag() + encoding.etagSuffix + "\"";
+
+        resp.setHeader("ETag", etag);
+        resp.setHeader("Vary", "Accept-Encoding");
+        resp.setHeader("Cache-Control", asset.immutable() ? IMMUTABLE_CACHE_CONTROL : REVALIDATE_CACHE_CONTROL);
+        if (matchesIfNoneMatch(req.getHeader("If-None-Match"), etag)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        resp.setContentType(asset.contentType());
+        if (encoding.name != null) {
+            resp.setHeader("Content-Encoding", encoding.name);
+        }
+        resp.setContentLength(body.length);
+        if (!req.getMethod().equals("HEAD")) {
+            resp.getOutputStream().write(body);
+        }
+    }
+
+    // ================ LOADING ================
+
+    /**
+     * Computes the fingerprinted path of an asset, after rewriting its own references, which therefore have to be
+     * fingerprinted first.
+     */
+    private String fingerprint(String path, int depth) throws IOException {
+        String fingerprinted = fingerprintedPaths.get(path);
+        if (fingerprinted != null) {
+            return fingerprinted;
+        }
+        if (depth > sourcePaths.size()) {
+            throw new IOException("Circular reference between assets at " + path);
+        }
+        byte[] content = rewrite(path, read(path), depth);
+        rewrittenSources.put(path, content);
+
+        int dot = path.lastIndexOf('.');
+        fingerprinted = path.substring(0, dot) + "." + digest(content).substring(0, 10) + path.substring(dot);
+        fingerprintedPaths.put(path, fingerprinted);
+        return fingerprinted;
+    }
+
+    /**
+     * Points references to other assets at their fingerprinted URLs: absolute ones (as in index.html) and relative
+     * module imports between scripts in the same directory.
+     */
+    private byte[] rewrite(String path, byte[] content, int depth) throws IOException {
+        if (!path.endsWith(".html") && !path.endsWith(".js") && !path.endsWith(".css")) {
+            return content;
+        }
+        String text = new String(content, StandardCharsets.UTF_8);
+        String directory = path.substring(0, path.lastIndexOf('/') + 1);
+        for (String other : sourcePaths) {
+            if (other.equals(path)) {
+                continue;
+            }
+            String absoluteReference = "\"" + other + "\"";
+            String relativeReference = other.startsWith(directory) ? "\"./" + other.substring(directory.length()) + "\"" : null;
+            boolean referencesAbsolute = text.contains(absoluteReference);
+            boolean referencesRelative = relativeReference != null && text.contains(relativeReference);
+            if (!referencesAbsolute && !referencesRelative) {
+                continue;
+            }
+            String target = fingerprint(other, depth + 1);
+            if (referencesAbsolute) {
+                text = text.replace(absoluteReference, "\"" + target + "\"");
+            }
+            if (referencesRelative) {
+                text = text.replace(relativeReference, "\"./" + target.substring(directory.length()) + "\"");
+            }
+        }
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Asset prepare(String path, byte[] content, boolean immutable) throws IOException {
+        byte[] gzip = gzip(content);
+        // a precompressed file only matches the original, not a copy whose references were rewritten
+        byte[] brotli = Arrays.equals(content, read(path)) ? readOptional(path + ".br") : null;
+        return new Asset(
+                contentTypeOf(path),
+                content,
+                gzip.length < content.length ? gzip : null,
+                brotli != null && brotli.length < content.length ? brotli : null,
+                digest(content).substring(0, 32),
+                immutable
+        );
+    }
+
+    private byte[] read(String path) throws IOException {
+        byte[] content = readOptional(path);
+        if (content == null) {
+            throw new IOException("Missing asset: " + path);
+        }
+        return content;
+    }
+
+    private byte[] readOptional(String path) throws IOException {
+        try (InputStream is = context.getResourceAsStream(path)) {
+            return is == null ? null : is.readAllBytes();
+        }
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // done once per asset, so the slowest level is worth it
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes) {{ def.setLevel(Deflater.BEST_COMPRESSION); }}) {
+            gzip.write(content);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String contentTypeOf(String path) {
+        if (path.endsWith(".html")) {
+            return "text/html;charset=UTF-8";
+        }
+        if (path.endsWith(".css")) {
+            return "text/css;charset=UTF-8";
+        }
+        if (path.endsWith(".js")) {
+            return "text/javascript;charset=UTF-8";
+        }
+        return "application/octet-stream";
+    }
+
+    private static String digest(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every JVM is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ================ NEGOTIATION ================
+
+    /**
+     * Picks the smallest variant the client accepts, honouring q=0 exclusions.
+     */
+    private static Encoding negotiate(String acceptEncoding, Asset asset) {
+        if (acceptEncoding == null) {
+            return Encoding.IDENTITY;
+        }
+        boolean acceptsBrotli = false;
+        boolean acceptsGzip = false;
+        for (String entry : acceptEncoding.split(",")) {
+            String[] parts = entry.trim().split(";");
+            String coding = parts[0].trim().toLowerCase();
+            boolean accepted = true;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(parameter.substring(2)) > 0;
+                    }
+                    catch (NumberFormatException _) {
+                        accepted = false;
+                    }
+                }
+            }
+            switch (coding) {
+                case "br" -> acceptsBrotli = accepted;
+                case "gzip", "x-gzip" -> acceptsGzip = accepted;
+                case "*" -> {
+                    acceptsBrotli |= accepted;
+                    acceptsGzip |= accepted;
+                }
+                default -> {}
+            }
+        }
+        if (acceptsBrotli && asset.brotli() != null && (asset.gzip() == null || asset.brotli().length <= asset.gzip().length)) {
+            return Encoding.BROTLI;
+        }
+        if (acceptsGzip && asset.gzip() != null) {
+            return Encoding.GZIP;
+        }
+        return Encoding.IDENTITY;
+    }
+
+    private static boolean matchesIfNoneMatch(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,38 +1,46 @@
 package org.titilda.music.api;
 
 
-import com.fasterxml.jackson.databind.json.JsonMapper;
-import jakarta.servlet.RequestDispatcher;
-import jakarta.servlet.ServletContext;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import org.titilda.music.api.utils.JsonMappers;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Arrays;
-import java.util.HashSet;
+import java.util.List;
 
 @WebServlet(urlPatterns = {"/*"})
 public final class FallbackRouterServlet extends HttpServlet {
-    private static final HashSet<String> WHITELISTED_DEFAULT_PATHS =
-            new HashSet<>(Arrays.asList(
-                    "/css/home.css",
-                    "/css/styles.css",
-                    "/css/login.css",
-                    "/css/playlist.css",
-                    "/css/songs.css",
-                    "/js/auth.js",
-                    "/js/index.js",
-                    "/js/playlist.js"
-            ));
+    private static final List<String> WHITELISTED_DEFAULT_PATHS = List.of(
+            "/css/home.css",
+            "/css/styles.css",
+            "/css/login.css",
+            "/css/playlist.css",
+            "/css/songs.css",
+            "/js/auth.js",
+            "/js/index.js",
+            "/js/playlist.js",
+            "/js/waveform.js"
+    );
+
+    private CsrAssetCache assetCache;
+
+    @Override
+    public void init() throws ServletException {
+        try {
+            assetCache = CsrAssetCache.load(getServletContext(), WHITELISTED_DEFAULT_PATHS);
+        }
+        catch (IOException e) {
+            throw new ServletException("Failed to load the app shell", e);
+        }
+    }
 
     private static void denyRequest(HttpServletResponse resp) {
         try {
             resp.setContentType("application/json");
-            resp.getWriter().println(new JsonMapper().createObjectNode().put("error", "Resource not found").toString());
+            resp.getWriter().println(JsonMappers.createObjectNode().put("error", "Resource not found").toString());
         } catch (IOException _) {
             // ignored
         }
@@ -41,24 +49,19 @@ public final class FallbackRouterServlet extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) {
         String path = req.getPathInfo();
-        ServletContext context = getServletContext();
         try {
             if (path.startsWith("/api/")) {
                 denyRequest(resp);
             }
-            else if (WHITELISTED_DEFAULT_PATHS.contains(path)) {
-                RequestDispatcher defaultDispatcher = context.getNamedDispatcher("default");
-                defaultDispatcher.forward(req, resp);
+            else if (assetCache.contains(path)) {
+                assetCache.serve(path, req, resp);
             }
             else {
                 // serve index.html
-                resp.setContentType("text/html");
-                try (InputStream is = context.getResourceAsStream("/index.html")) {
-                    is.transferTo(resp.getOutputStream());
-                }
+                assetCache.serve(CsrAssetCache.INDEX_PATH, req, resp);
             }
         }
-        catch (ServletException | IOException e) {
+        catch (IOException e) {
             System.out.println(e.getMessage());
         }
     }
@@ -1,10 +1,9 @@
 package org.titilda.music.api.endpoints;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.json.JsonMapper;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import org.titilda.music.api.AuthenticatedJsonRESTServlet;
+import org.titilda.music.api.utils.JsonMappers;
 import org.titilda.music.base.controller.Authentication;
 import org.titilda.music.base.model.User;
 
@@ -15,13 +14,13 @@ import java.util.Iterator;
 @WebServlet(urlPatterns = { "/api/sessions"}) // Expecting DELETE /api/sessions to invalidate all sessions for the authenticated user
 public final class DeleteSessionsServlet extends AuthenticatedJsonRESTServlet {
     @Override
-    protected JsonNode processApiDelete(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
+    protected JsonMappers.Body processApiDelete(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
         Iterator<String> pathComponents = getPathComponents(req);
         ensurePathComponentsFinished(pathComponents);
         // invalidate all existing sessions
         try {
             Authentication.invalidateAllSessions(user);
-            return new JsonMapper().createObjectNode().put("success", true);
+            return JsonMappers.body(JsonMappers.createObjectNode().put("success", true));
         }
         catch (Authentication.FailedToInvalidateSessionException _) {
             throw new InvalidRequestException("Failed to invalidate sessions", 500);
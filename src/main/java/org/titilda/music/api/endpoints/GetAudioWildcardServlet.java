@@ -0,0 +1,37 @@
+package org.titilda.music.api.endpoints;
+
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.titilda.music.api.AuthenticatedJsonRESTServlet;
+import org.titilda.music.api.utils.JsonMappers;
+import org.titilda.music.base.database.DAO;
+import org.titilda.music.base.model.User;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Iterator;
+
+/**
+ * Hash precheck for uploads: tells whether the user already uploaded audio with the given SHA-256, in which case a
+ * new song can be created by sending that hash instead of the file. Only the user's own songs are looked at, so
+ * the endpoint reveals nothing about what others uploaded.
+ */
+@WebServlet("/api/audio/*")
+public class GetAudioWildcardServlet extends AuthenticatedJsonRESTServlet {
+    // GET /api/audio/{sha256}
+    @Override
+    protected JsonMappers.Body processApiGet(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
+        Iterator<String> iter = getPathComponents(req);
+        String sha256 = getNextPathComponent(iter);
+        ensurePathComponentsFinished(iter);
+        if (!sha256.matches("[0-9a-f]{64}")) {
+            throw new InvalidRequestException("Not a hex SHA-256", HttpServletResponse.SC_BAD_REQUEST);
+        }
+        return new DAO(dbConnection).findSongOfOwnerByAudioSha256(user.getUsername(), sha256)
+                .map(song -> JsonMappers.body(JsonMappers.createObjectNode()
+                        .put("sha256", sha256)
+                        .put("audioMimeType", song.getAudioMimeType())))
+                .orElseThrow(() -> new InvalidRequestException("Not found", HttpServletResponse.SC_NOT_FOUND));
+    }
+}
@@ -1,10 +1,9 @@
 package org.titilda.music.api.endpoints;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.json.JsonMapper;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import org.titilda.music.api.AuthenticatedJsonRESTServlet;
+import org.titilda.music.api.utils.JsonMappers;
 import org.titilda.music.base.model.User;
 
 import java.io.IOException;
@@ -15,10 +14,10 @@ import java.sql.SQLException;
 public class GetMeServlet extends AuthenticatedJsonRESTServlet {
 
     @Override
-    protected JsonNode processApiGet(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, IOException, SQLException {
+    protected JsonMappers.Body processApiGet(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, IOException, SQLException {
         ensurePathComponentsFinished(getPathComponents(req));
-        return new JsonMapper().createObjectNode()
+        return JsonMappers.body(JsonMappers.createObjectNode()
                 .put("username", user.getUsername())
-                .put("fullName", user.getFullName());
+                .put("fullName", user.getFullName()));
     }
 }
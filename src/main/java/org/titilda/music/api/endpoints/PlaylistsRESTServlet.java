@@ -1,11 +1,10 @@
 package org.titilda.music.api.endpoints;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.titilda.music.api.AuthenticatedJsonRESTServlet;
+import org.titilda.music.api.utils.JsonMappers;
 import org.titilda.music.base.database.DAO;
 import org.titilda.music.base.model.Playlist;
 import org.titilda.music.base.model.Song;
@@ -21,10 +20,10 @@ import java.util.UUID;
 public final class PlaylistsRESTServlet extends AuthenticatedJsonRESTServlet {
     // GET /api/playlists
     @Override
-    protected JsonNode processApiGet(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
+    protected JsonMappers.Body processApiGet(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
         ensurePathComponentsFinished(getPathComponents(req));
         List<Playlist> playlists = new DAO(dbConnection).getPlaylistsOfOwner(user);
-        return new ObjectMapper().valueToTree(playlists);
+        return JsonMappers.playlistsBody(playlists);
     }
 
     private static class PlaylistCreate {
@@ -34,7 +33,7 @@ public final class PlaylistsRESTServlet extends AuthenticatedJsonRESTServlet {
 
     // POST /api/playlists
     @Override
-    protected JsonNode processApiPost(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
+    protected JsonMappers.Body processApiPost(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
         ensurePathComponentsFinished(getPathComponents(req));
         DAO dao = new DAO(dbConnection);
 
@@ -45,12 +44,11 @@ public final class PlaylistsRESTServlet extends AuthenticatedJsonRESTServlet {
             playlistCreate.songs = List.of();
 
         Playlist createdPlaylist = dao.insertPlaylist(new Playlist(playlistCreate.name, user.getUsername(), false));
-        for (UUID songId : playlistCreate.songs) {
-            if (!dao.addSongToPlaylist(createdPlaylist.getId(), songId, user.getUsername()))
-                throw new InvalidRequestException("Song with ID " + songId + " not found or accessible.", HttpServletResponse.SC_NOT_FOUND);
-        }
+        List<UUID> rejectedSongIds = dao.addSongsToPlaylist(createdPlaylist.getId(), playlistCreate.songs, user.getUsername());
+        if (!rejectedSongIds.isEmpty())
+            throw new InvalidRequestException("Songs with IDs " + rejectedSongIds + " not found or accessible.", HttpServletResponse.SC_NOT_FOUND);
 
-        return new ObjectMapper().convertValue(createdPlaylist, JsonNode.class);
+        return JsonMappers.body(createdPlaylist);
     }
 }
 
@@ -1,29 +1,31 @@
 package org.titilda.music.api.endpoints;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.json.JsonMapper;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.titilda.music.api.AuthenticatedJsonRESTServlet;
+import org.titilda.music.api.utils.JsonMappers;
 import org.titilda.music.base.database.DAO;
 import org.titilda.music.base.model.Playlist;
+import org.titilda.music.base.model.PlaylistPage;
 import org.titilda.music.base.model.Song;
 import org.titilda.music.base.model.User;
+import org.titilda.music.base.util.ConfigManager;
 
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
 
 @WebServlet(urlPatterns = {"/api/playlists/*"})
 public final class PlaylistsWildcardRESTServlet extends AuthenticatedJsonRESTServlet {
+    private static final int DEFAULT_PAGE_SIZE = Math.max(1, ConfigManager.getInt(ConfigManager.ConfigKey.PLAYLIST_PAGE_SIZE));
+    private static final int MAX_PAGE_SIZE = 500;
+
     @Override
-    protected JsonNode processApiPost(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
+    protected JsonMappers.Body processApiPost(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
         Iterator<String> iter = getPathComponents(req);
         String playlistIdStr = getNextPathComponent(iter);
         if (!getNextPathComponent(iter).equals("songs")) {
@@ -47,18 +49,18 @@ public final class PlaylistsWildcardRESTServlet extends AuthenticatedJsonRESTSer
             }
         }).toList();
 
-        for (UUID songId : uuids) {
-            boolean result = dao.addSongToPlaylist(playlistId, songId, user.getUsername());
-            if (!result) {
-                throw new InvalidRequestException("Failed to add song " + songId + " to playlist " + playlistId, HttpServletResponse.SC_BAD_REQUEST);
-            }
+        List<UUID> rejectedSongIds = dao.addSongsToPlaylist(playlistId, uuids, user.getUsername());
+        if (!rejectedSongIds.isEmpty()) {
+            throw new InvalidRequestException("Failed to add songs " + rejectedSongIds + " to playlist " + playlistId, HttpServletResponse.SC_BAD_REQUEST);
         }
 
-        return new JsonMapper().createObjectNode().put("status", "ok");
+        return JsonMappers.body(JsonMappers.createObjectNode().put("status", "ok"));
     }
 
+    // GET /api/playlists/{playlistId}
+    // GET /api/playlists/{playlistId}/songs[?cursor=...&limit=...]
     @Override
-    protected JsonNode processApiGet(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
+    protected JsonMappers.Body processApiGet(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
         Iterator<String> iter = getPathComponents(req);
         String playlistIdStr = getNextPathComponent(iter);
         UUID playlistId;
@@ -71,27 +73,89 @@ public final class PlaylistsWildcardRESTServlet extends AuthenticatedJsonRESTSer
 
         DAO dao = new DAO(dbConnection);
 
+        boolean songsRequested = iter.hasNext();
+        if (songsRequested) {
+            if (!getNextPathComponent(iter).equals("songs")) {
+                throw new InvalidRequestException("Not found", HttpServletResponse.SC_NOT_FOUND);
+            }
+            ensurePathComponentsFinished(iter);
+        }
+
+        String cursor = req.getParameter("cursor");
+        String limitStr = req.getParameter("limit");
+        if (songsRequested && (cursor != null || limitStr != null)) {
+            int limit = DEFAULT_PAGE_SIZE;
+            if (limitStr != null) {
+                try {
+                    limit = Integer.parseInt(limitStr);
+                } catch (NumberFormatException _) {
+                    limit = -1;
+                }
+                if (limit < 1 || limit > MAX_PAGE_SIZE) {
+                    throw new InvalidRequestException("Limit must be between 1 and " + MAX_PAGE_SIZE, HttpServletResponse.SC_BAD_REQUEST);
+                }
+            }
+
+            // ownership check and page in a single query
+            try {
+                PlaylistPage playlistPage = dao.getPlaylistPage(playlistId, user.getUsername(), cursor, limit)
+                        .orElseThrow(() -> new InvalidRequestException("Playlist not found", HttpServletResponse.SC_NOT_FOUND));
+                return JsonMappers.body(playlistPage.getSongPage());
+            } catch (DAO.InvalidCursorException _) {
+                throw new InvalidRequestException("Invalid cursor", HttpServletResponse.SC_BAD_REQUEST);
+            }
+        }
+
         Playlist playlist = dao.getPlaylistById(playlistId)
                 .filter(p -> p.getOwner().equals(user.getUsername()))
                 .orElseThrow(() -> new InvalidRequestException("Playlist not found", HttpServletResponse.SC_NOT_FOUND));
 
+        if (songsRequested) {
+            // the unpaginated song list is streamed by processApiStreamingGet
+            throw new InvalidRequestException("Not found", HttpServletResponse.SC_NOT_FOUND);
+        }
+        // return only the metadata
+        return JsonMappers.body(playlist);
+    }
 
+    // GET /api/playlists/{playlistId}/songs
+    // Unpaginated: the whole playlist as a plain array, written as the rows are read.
+    @Override
+    protected JsonStreamer processApiStreamingGet(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
+        if (req.getParameter("cursor") != null || req.getParameter("limit") != null) {
+            return null;
+        }
+        Iterator<String> iter = getPathComponents(req);
         if (!iter.hasNext()) {
-            // return only the metadata
-            return new ObjectMapper().valueToTree(playlist);
+            return null;
+        }
+        String playlistIdStr = iter.next();
+        if (!iter.hasNext() || !iter.next().equals("songs") || iter.hasNext()) {
+            return null;
         }
 
-        if(!getNextPathComponent(iter).equals("songs")){
-            throw new InvalidRequestException("Not found", HttpServletResponse.SC_NOT_FOUND);
+        UUID playlistId;
+        try {
+            playlistId = UUID.fromString(playlistIdStr);
+        } catch (IllegalArgumentException _) {
+            throw new InvalidRequestException("Invalid playlist ID", HttpServletResponse.SC_BAD_REQUEST);
         }
-        ensurePathComponentsFinished(iter);
-        List<Song> songs = dao.getSongsInPlaylist(playlist.getId());
-        return new ObjectMapper().valueToTree(songs);
+
+        DAO dao = new DAO(dbConnection);
+        dao.getPlaylistById(playlistId)
+                .filter(p -> p.getOwner().equals(user.getUsername()))
+                .orElseThrow(() -> new InvalidRequestException("Playlist not found", HttpServletResponse.SC_NOT_FOUND));
+
+        return generator -> {
+            generator.writeStartArray();
+            dao.forEachSongInPlaylist(playlistId, generator::writeObject);
+            generator.writeEndArray();
+        };
     }
 
     // PUT /api/playlists/{playlistId}/song-order
     @Override
-    protected JsonNode processApiPut(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
+    protected JsonMappers.Body processApiPut(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
         Iterator<String> iter = getPathComponents(req);
         String playlistIdStr = getNextPathComponent(iter);
         if(!getNextPathComponent(iter).equals("song-order")){
@@ -122,20 +186,53 @@ public final class PlaylistsWildcardRESTServlet extends AuthenticatedJsonRESTSer
             }
         }).distinct().toList();
 
-        List<UUID> currentSongIds = dao.getSongsInPlaylist(playlistId).stream().map(Song::getId).toList();
-
-        if (reorderedSongIds.size() != currentSongIds.size() || !new HashSet<>(reorderedSongIds).equals(new HashSet<>(currentSongIds)))
+        if (!dao.reorderPlaylist(playlistId, reorderedSongIds))
             throw new InvalidRequestException(
                     "Songs in playlist and reordered array must be the same",
                     HttpServletResponse.SC_BAD_REQUEST
             );
 
-        dao.clearPlaylist(playlistId, true);
-        for (UUID songId : reorderedSongIds) {
-            dao.addSongToPlaylist(playlistId, songId, user.getUsername());
+        List<Song> updatedSongs = dao.getSongsInPlaylist(playlistId);
+        return JsonMappers.songsBody(updatedSongs);
+    }
+
+    private static class SongMove {
+        public UUID song;
+        public UUID before;
+    }
+
+    // PATCH /api/playlists/{playlistId}/song-order
+    // Moves a single song right before another one, or to the end when "before" is null.
+    @Override
+    protected JsonMappers.Body processApiPatch(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
+        Iterator<String> iter = getPathComponents(req);
+        String playlistIdStr = getNextPathComponent(iter);
+        if(!getNextPathComponent(iter).equals("song-order")){
+            throw new InvalidRequestException("Not found", HttpServletResponse.SC_NOT_FOUND);
         }
+        ensurePathComponentsFinished(iter);
 
-        List<Song> updatedSongs = dao.getSongsInPlaylist(playlistId);
-        return new ObjectMapper().valueToTree(updatedSongs);
+        UUID playlistId;
+        try {
+            playlistId = UUID.fromString(playlistIdStr);
+        } catch (IllegalArgumentException _) {
+            throw new InvalidRequestException("Invalid playlist ID", HttpServletResponse.SC_BAD_REQUEST);
+        }
+
+        DAO dao = new DAO(dbConnection);
+        dao
+                .getPlaylistById(playlistId)
+                .map(Playlist::getOwner)
+                .filter(owner -> owner.equals(user.getUsername()))
+                .orElseThrow(() -> new InvalidRequestException("Playlist not found", HttpServletResponse.SC_NOT_FOUND));
+
+        SongMove songMove = (SongMove) getJsonModelRequestBody(req, SongMove.class);
+        if (songMove.song == null)
+            throw new InvalidRequestException("Song to move must be specified", HttpServletResponse.SC_BAD_REQUEST);
+
+        if (!dao.moveSongInPlaylist(playlistId, songMove.song, songMove.before))
+            throw new InvalidRequestException("Songs not found in playlist", HttpServletResponse.SC_BAD_REQUEST);
+
+        return JsonMappers.body(JsonMappers.createObjectNode().put("status", "ok"));
     }
 }
@@ -1,13 +1,13 @@
 package org.titilda.music.api.endpoints;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.titilda.music.api.utils.JsonManipulation;
+import org.titilda.music.api.utils.JsonMappers;
 import org.titilda.music.base.controller.Authentication;
 
 import java.io.IOException;
@@ -19,12 +19,12 @@ public final class PostAuthLoginServlet extends HttpServlet {
         resp.setContentType("application/json");
         JsonNode node;
         try {
-            node = new ObjectMapper().readTree(req.getInputStream());
+            node = JsonMappers.readTree(req.getInputStream());
         }
         catch (IOException _) {
             try {
                 resp.setStatus(400);
-                resp.getWriter().println(new ObjectMapper().createObjectNode().put("error", "Invalid JSON").toString());
+                resp.getWriter().println(JsonMappers.createObjectNode().put("error", "Invalid JSON").toString());
                 return;
             }
             catch (IOException _) {
@@ -37,7 +37,7 @@ public final class PostAuthLoginServlet extends HttpServlet {
             String password = node.get("password").asText();
             if (username.isEmpty() || password.isEmpty()) {
                 resp.setStatus(400);
-                resp.getWriter().println(new ObjectMapper().createObjectNode().put("error", "Username and password must not be empty").toString());
+                resp.getWriter().println(JsonMappers.createObjectNode().put("error", "Username and password must not be empty").toString());
                 return;
             }
             Authentication
@@ -55,7 +55,7 @@ public final class PostAuthLoginServlet extends HttpServlet {
                             () -> {
                                 try {
                                     resp.setStatus(401);
-                                    resp.getWriter().println(new ObjectMapper().createObjectNode().put("error", "Invalid credentials"));
+                                    resp.getWriter().println(JsonMappers.createObjectNode().put("error", "Invalid credentials"));
                                 } catch (IOException _) {
                                     // we cannot do anything here
                                 }
@@ -64,7 +64,7 @@ public final class PostAuthLoginServlet extends HttpServlet {
         }
         else {
             resp.setStatus(400);
-            resp.getWriter().println(new ObjectMapper().createObjectNode().put("error", "Username and password must not be empty").toString());
+            resp.getWriter().println(JsonMappers.createObjectNode().put("error", "Username and password must not be empty").toString());
         }
     }
 }
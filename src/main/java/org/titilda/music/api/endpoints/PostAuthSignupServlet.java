@@ -1,11 +1,11 @@
 package org.titilda.music.api.endpoints;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import org.titilda.music.api.utils.JsonMappers;
 import org.titilda.music.base.controller.Authentication;
 import org.titilda.music.base.model.User;
 
@@ -31,7 +31,7 @@ public final class PostAuthSignupServlet extends HttpServlet {
             }
 
             try {
-                node = new ObjectMapper().readTree(req.getInputStream());
+                node = JsonMappers.readTree(req.getInputStream());
             } catch (IOException _) {
                 throw new InvalidRequestException("Invalid JSON data", HttpServletResponse.SC_BAD_REQUEST);
             }
@@ -62,7 +62,7 @@ public final class PostAuthSignupServlet extends HttpServlet {
         catch (InvalidRequestException e) {
             resp.setStatus(e.getStatus());
             try {
-                resp.getWriter().println(new ObjectMapper().createObjectNode().put("error", e.getError()));
+                resp.getWriter().println(JsonMappers.createObjectNode().put("error", e.getError()));
             }
             catch (IOException _) {
                 // we cannot do anything here
@@ -1,49 +1,55 @@
 package org.titilda.music.api.endpoints;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.json.JsonMapper;
-import jakarta.servlet.annotation.MultipartConfig;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.titilda.music.api.AuthenticatedJsonRESTServlet;
+import org.titilda.music.api.utils.JsonMappers;
+import org.titilda.music.base.controller.ArtworkProcessingQueue;
 import org.titilda.music.base.controller.AssetCrudManager;
 import org.titilda.music.base.database.DAO;
 import org.titilda.music.base.model.Song;
 import org.titilda.music.base.model.User;
-import org.titilda.music.base.model.forms.CreateSongFormData;
 import org.titilda.music.base.util.MultiPartValidator;
 
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
 @WebServlet(urlPatterns = {"/api/songs"})
-@MultipartConfig
 public final class SongsRESTServlet extends AuthenticatedJsonRESTServlet {
+    @Override
+    protected boolean usesConnection(String method) {
+        // an upload takes its own connection once the body has been read
+        return !method.equals("POST");
+    }
+
     // POST /api/songs
     @Override
-    protected JsonNode processApiPost(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException {
+    protected JsonMappers.Body processApiPost(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException {
         ensurePathComponentsFinished(getPathComponents(req));
 
         try {
-            AssetCrudManager.createSongFromFormData(new CreateSongFormData(req), user);
+            AssetCrudManager.createSongFromRequest(req, user);
+        } catch (MultiPartValidator.RequestTooLargeException e) {
+            throw new InvalidRequestException("Request exceeds " + e.getMaxSize() + " bytes", HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
         } catch (MultiPartValidator.InvalidFormDataException _) {
             throw new InvalidRequestException("Invalid data", HttpServletResponse.SC_BAD_REQUEST);
         } catch (MultiPartValidator.InvalidFieldDataException e) {
             throw new InvalidRequestException("Invalid data in field: " + e.getField().getName(), HttpServletResponse.SC_BAD_REQUEST);
         } catch (MultiPartValidator.InvalidDataSizeException e) {
             throw new InvalidRequestException("Size of data in field " + e.getField().getName() + " exceeds " + e.getMaxSize(), HttpServletResponse.SC_BAD_REQUEST);
+        } catch (ArtworkProcessingQueue.QueueFullException _) {
+            throw new InvalidRequestException("Server busy, please retry later", HttpServletResponse.SC_SERVICE_UNAVAILABLE);
         }
 
-        return new JsonMapper().createObjectNode().put("status", "ok");
+        return JsonMappers.body(JsonMappers.createObjectNode().put("status", "ok"));
     }
 
     @Override
     // GET /api/songs?excludePlaylist=UUID
-    protected JsonNode processApiGet(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
+    protected JsonStreamer processApiStreamingGet(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException {
         ensurePathComponentsFinished(getPathComponents(req));
         UUID excludePlaylist = Optional.ofNullable(req.getParameter("excludePlaylist"))
                 .map(s -> {
@@ -56,7 +62,14 @@ public final class SongsRESTServlet extends AuthenticatedJsonRESTServlet {
                 .orElse(null);
 
         DAO dao = new DAO(dbConnection);
-        List<Song> songs = excludePlaylist == null ? dao.getSongsOfUser(user) : dao.getSongsNotInPlaylist(user, excludePlaylist);
-        return new JsonMapper().valueToTree(songs);
+        return generator -> {
+            generator.writeStartArray();
+            if (excludePlaylist == null) {
+                dao.forEachSongOfUser(user, generator::writeObject);
+            } else {
+                dao.forEachSongNotInPlaylist(user, excludePlaylist, generator::writeObject);
+            }
+            generator.writeEndArray();
+        };
     }
 }
@@ -1,11 +1,10 @@
 package org.titilda.music.api.endpoints;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.titilda.music.api.AuthenticatedJsonRESTServlet;
+import org.titilda.music.api.utils.JsonMappers;
 import org.titilda.music.base.database.DAO;
 import org.titilda.music.base.model.User;
 
@@ -18,12 +17,12 @@ import java.util.UUID;
 @WebServlet(urlPatterns = {"/api/songs/*"})
 public class SongsWildcardRESTServlet extends AuthenticatedJsonRESTServlet {
     @Override
-    protected JsonNode processApiGet(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
+    protected JsonMappers.Body processApiGet(User user, HttpServletRequest req, Connection dbConnection) throws InvalidRequestException, SQLException {
         Iterator<String> iter = getPathComponents(req);
         String songIdStr = getNextPathComponent(iter);
         ensurePathComponentsFinished(iter);
         DAO dao = new DAO(dbConnection);
-        return (JsonNode) Optional.of(songIdStr)
+        return Optional.of(songIdStr)
                 .map(s -> {
                     try {
                         return UUID.fromString(s);
@@ -34,7 +33,7 @@ public class SongsWildcardRESTServlet extends AuthenticatedJsonRESTServlet {
                 })
                 .flatMap(dao::getSongById)
                 .filter(song -> song.getOwner().equals(user.getUsername()))
-                .map(new ObjectMapper()::valueToTree)
+                .map(JsonMappers::body)
                 .orElseThrow(() -> new InvalidRequestException("Song not found", HttpServletResponse.SC_NOT_FOUND));
     }
 }
@@ -1,7 +1,6 @@
 package org.titilda.music.api.utils;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.titilda.music.api.AuthenticatedJsonRESTServlet;
 
 public final class JsonManipulation {
@@ -19,6 +18,6 @@ public final class JsonManipulation {
     }
 
     public static JsonNode createJwtResponse (String jwt) {
-        return new ObjectMapper().createObjectNode().put("access_token", jwt).put("token_type", "Bearer");
+        return JsonMappers.createObjectNode().put("access_token", jwt).put("token_type", "Bearer");
     }
 }
@@ -0,0 +1,107 @@
+package org.titilda.music.api.utils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.titilda.music.base.model.Playlist;
+import org.titilda.music.base.model.Song;
+import org.titilda.music.base.model.SongPage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The JSON mapper shared by all API endpoints. Mappers are thread-safe once configured, and the serializers and
+ * deserializers they build by introspecting the models are cached inside them, so creating one per request threw
+ * that work away every time. Readers and writers are immutable and cheap to keep around, so the ones for request
+ * and response bodies are built once as well, and responses are written by them straight to the client rather than
+ * through an intermediate tree.
+ */
+public final class JsonMappers {
+    private JsonMappers() {}
+
+    private static final JsonMapper MAPPER = JsonMapper.builder().build();
+
+    private static final ObjectReader TREE_READER = MAPPER.reader();
+    private static final ObjectReader STRING_LIST_READER = MAPPER.readerFor(new TypeReference<List<String>>() {});
+    private static final Map<Class<?>, ObjectReader> MODEL_READERS = new ConcurrentHashMap<>();
+
+    private static final ObjectWriter TREE_WRITER = MAPPER.writer();
+    private static final ObjectWriter SONG_WRITER = MAPPER.writerFor(Song.class);
+    private static final ObjectWriter SONG_LIST_WRITER = MAPPER.writerFor(new TypeReference<List<Song>>() {});
+    private static final ObjectWriter SONG_PAGE_WRITER = MAPPER.writerFor(SongPage.class);
+    private static final ObjectWriter PLAYLIST_WRITER = MAPPER.writerFor(Playlist.class);
+    private static final ObjectWriter PLAYLIST_LIST_WRITER = MAPPER.writerFor(new TypeReference<List<Playlist>>() {});
+
+    /**
+     * A response body, written to the client by one of the writers above.
+     */
+    @FunctionalInterface
+    public interface Body {
+        void writeTo(OutputStream os) throws IOException;
+    }
+
+    public static ObjectNode createObjectNode() {
+        return MAPPER.createObjectNode();
+    }
+
+    public static ArrayNode createArrayNode() {
+        return MAPPER.createArrayNode();
+    }
+
+    public static Body body(JsonNode node) {
+        return os -> TREE_WRITER.writeValue(os, node);
+    }
+
+    public static Body body(Song song) {
+        return os -> SONG_WRITER.writeValue(os, song);
+    }
+
+    public static Body body(SongPage page) {
+        return os -> SONG_PAGE_WRITER.writeValue(os, page);
+    }
+
+    public static Body body(Playlist playlist) {
+        return os -> PLAYLIST_WRITER.writeValue(os, playlist);
+    }
+
+    public static Body songsBody(List<Song> songs) {
+        return os -> SONG_LIST_WRITER.writeValue(os, songs);
+    }
+
+    public static Body playlistsBody(List<Playlist> playlists) {
+        return os -> PLAYLIST_LIST_WRITER.writeValue(os, playlists);
+    }
+
+    public static JsonNode readTree(InputStream is) throws IOException {
+        return TREE_READER.readTree(is);
+    }
+
+    public static List<String> readStringList(InputStream is) throws IOException {
+        return STRING_LIST_READER.readValue(is);
+    }
+
+    public static <T> T readModel(InputStream is, Class<T> clazz) throws IOException {
+        return MODEL_READERS.computeIfAbsent(clazz, MAPPER::readerFor).readValue(is);
+    }
+
+    /**
+     * Creates a generator writing UTF-8 JSON to the given stream, able to serialize any model with writeObject.
+     * Closing it flushes what was written, but neither completes the open arrays and objects nor closes the stream,
+     * so a body abandoned part way through is never turned into well-formed JSON.
+     */
+    public static JsonGenerator createGenerator(OutputStream os) throws IOException {
+        return MAPPER.createGenerator(os)
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT)
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+}
@@ -0,0 +1,27 @@
+package org.titilda.music.base.audio;
+
+/**
+ * The technical properties of an audio file that can be read from its headers. Any of them is null when the file
+ * does not tell.
+ *
+ * @param durationMillis play time in milliseconds
+ * @param bitrate        average bits per second of the audio data
+ * @param sampleRate     samples per second and channel
+ * @param channels       number of channels
+ */
+public record AudioMetadata(Integer durationMillis, Integer bitrate, Integer sampleRate, Integer channels) {
+    /**
+     * Derives the average bitrate from the size of the audio data and its duration.
+     */
+    static AudioMetadata of(long durationMillis, long audioBytes, int sampleRate, int channels) {
+        if (durationMillis <= 0) {
+            return new AudioMetadata(null, null, sampleRate, channels);
+        }
+        return new AudioMetadata(
+                Math.toIntExact(durationMillis),
+                Math.toIntExact(audioBytes * 8 * 1000 / durationMillis),
+                sampleRate,
+                channels
+        );
+    }
+}
@@ -0,0 +1,186 @@
+package org.titilda.music.base.audio;
+
+import org.titilda.music.base.model.mimetypes.SongMimeType;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reads the {@link AudioMetadata} of the supported audio formats from their container headers, without decoding
+ * any audio:
+ * <ul>
+ *     <li>MP3: the Xing/Info or VBRI header of the first frame when there is one, otherwise every frame header;</li>
+ *     <li>FLAC: the STREAMINFO block;</li>
+ *     <li>Ogg (Vorbis, Opus or FLAC): the identification header and the granule position of the last page;</li>
+ *     <li>WAV: the format chunk and the length of the data chunk.</li>
+ * </ul>
+ */
+public final class AudioProbe {
+    private AudioProbe() {}
+
+    // an Ogg page is at most 27 + 255 + 255 * 255 bytes, so the last one starts within this distance from the end
+    private static final int OGG_TAIL_SCAN = 128 * 1024;
+
+    /**
+     * Reads the metadata of an audio file of the given type.
+     *
+     * @throws IOException if the file cannot be read or its headers make no sense
+     */
+    public static AudioMetadata probe(Path path, SongMimeType type) throws IOException {
+        return switch (type) {
+            case MP3 -> probeMp3(path);
+            case FLAC -> probeFlac(path);
+            case OGG -> probeOgg(path);
+            case WAV -> probeWav(path);
+        };
+    }
+
+    // ================ FLAC & WAV ================
+
+    private static AudioMetadata probeFlac(Path path) throws IOException {
+        try (FlacDecoder decoder = FlacDecoder.open(path)) {
+            FlacDecoder.StreamInfo info = decoder.getStreamInfo();
+            // metadata such as embedded pictures does not count towards the bitrate
+            long audioBytes = Files.size(path) - decoder.getPosition();
+            long durationMillis = info.totalSamples() * 1000 / info.sampleRate();
+            return AudioMetadata.of(durationMillis, audioBytes, info.sampleRate(), info.channels());
+        }
+    }
+
+    private static AudioMetadata probeWav(Path path) throws IOException {
+        try (WavReader wav = WavReader.open(path)) {
+            WavReader.Format format = wav.getFormat();
+            long available = Files.size(path) - wav.getDataOffset();
+            long dataLength = wav.getDataLength() >= 0 ? Math.min(wav.getDataLength(), available) : available;
+            long frames = dataLength / ((long) format.channels() * format.bytesPerSample());
+            return AudioMetadata.of(frames * 1000 / format.sampleRate(), dataLength, format.sampleRate(), format.channels());
+        }
+    }
+
+    // ================ MP3 ================
+
+    private static AudioMetadata probeMp3(Path path) throws IOException {
+        try (FileWindow file = new FileWindow(path)) {
+            MpegFrame.Stream stream = MpegFrame.locate(file);
+            MpegFrame first = stream.first();
+            long firstPosition = stream.firstPosition();
+            long end = stream.end();
+
+            long frames;
+            long audioBytes;
+            long xingPosition = first.xingPosition(firstPosition);
+            long vbriPosition = MpegFrame.vbriPosition(firstPosition);
+            if (file.startsWith(xingPosition, "Xing") || file.startsWith(xingPosition, "Info")) {
+                // a frame without audio that describes the others
+                int flags = file.intAt(xingPosition + 4);
+                long position = xingPosition + 8;
+                frames = -1;
+                if ((flags & 1) != 0) {
+                    frames = file.intAt(position) & 0xFFFFFFFFL;
+                    position += 4;
+                }
+                audioBytes = (flags & 2) != 0 ? file.intAt(position) & 0xFFFFFFFFL : end - firstPosition;
+                if (frames < 0) {
+                    return scanMpegFrames(file, firstPosition, end, first);
+                }
+            } else if (file.startsWith(vbriPosition, "VBRI")) {
+                audioBytes = file.intAt(vbriPosition + 10) & 0xFFFFFFFFL;
+                frames = file.intAt(vbriPosition + 14) & 0xFFFFFFFFL;
+            } else {
+                return scanMpegFrames(file, firstPosition, end, first);
+            }
+            long durationMillis = frames * first.samples() * 1000 / first.sampleRate();
+            return AudioMetadata.of(durationMillis, audioBytes, first.sampleRate(), first.channels());
+        }
+    }
+
+    /**
+     * Walks every frame header, for files without a header describing them (typically constant bitrate).
+     */
+    private static AudioMetadata scanMpegFrames(FileWindow file, long position, long end, MpegFrame first) throws IOException {
+        long samples = 0;
+        long audioBytes = 0;
+        while (position + 4 <= end) {
+            MpegFrame frame = MpegFrame.parse(file.intAt(position));
+            if (frame == null || !frame.sameStreamAs(first)) {
+                // trailing garbage or an unknown tag
+                break;
+            }
+            samples += frame.samples();
+            audioBytes += frame.length();
+            position += frame.length();
+        }
+        return AudioMetadata.of(samples * 1000 / first.sampleRate(), audioBytes, first.sampleRate(), first.channels());
+    }
+
+    // ================ OGG ================
+
+    private static AudioMetadata probeOgg(Path path) throws IOException {
+        try (FileWindow file = new FileWindow(path)) {
+            if (!file.startsWith(0, "OggS")) {
+                throw new IOException("Not an Ogg stream");
+            }
+            int serial = file.intLittleEndianAt(14);
+            int segments = file.byteAt(26);
+            // the identification header is the first packet, alone on the first page
+            long packet = 27 + segments;
+
+            int sampleRate;
+            int channels;
+            int granuleRate;
+            long preSkip = 0;
+            if (file.byteAt(packet) == 1 && file.startsWith(packet + 1, "vorbis")) {
+                channels = file.byteAt(packet + 11);
+                sampleRate = file.intLittleEndianAt(packet + 12);
+                granuleRate = sampleRate;
+            } else if (file.startsWith(packet, "OpusHead")) {
+                channels = file.byteAt(packet + 9);
+                preSkip = file.byteAt(packet + 10) | (file.byteAt(packet + 11) << 8);
+                int inputRate = file.intLittleEndianAt(packet + 12);
+                // Opus always runs at 48 kHz; the input rate is only informational
+                granuleRate = 48000;
+                sampleRate = inputRate > 0 ? inputRate : 48000;
+            } else if (file.byteAt(packet) == 0x7F && file.startsWith(packet + 1, "FLAC")) {
+                // mapping header, then "fLaC" and the STREAMINFO block with its 4-byte header
+                long streamInfo = packet + 13 + 4;
+                sampleRate = (file.byteAt(streamInfo + 10) << 12) | (file.byteAt(streamInfo + 11) << 4) | (file.byteAt(streamInfo + 12) >> 4);
+                channels = ((file.byteAt(streamInfo + 12) >> 1) & 7) + 1;
+                granuleRate = sampleRate;
+            } else {
+                throw new IOException("Unsupported Ogg codec");
+            }
+            if (sampleRate <= 0 || channels <= 0) {
+                throw new IOException("Invalid Ogg identification header");
+            }
+
+            long granule = lastOggGranule(file, serial);
+            long durationMillis = granule < 0 ? 0 : Math.max(0, granule - preSkip) * 1000 / granuleRate;
+            return AudioMetadata.of(durationMillis, file.size(), sampleRate, channels);
+        }
+    }
+
+    /**
+     * Finds the granule position (the number of samples up to its end) of the last page of the given stream.
+     *
+     * @return the granule position, or -1 if no page in the tail of the file has one
+     */
+    private static long lastOggGranule(FileWindow file, int serial) throws IOException {
+        long from = Math.max(0, file.size() - OGG_TAIL_SCAN);
+        for (long position = file.size() - 27; position >= from; position--) {
+            if (!file.startsWith(position, "OggS") || file.byteAt(position + 4) != 0) {
+                continue;
+            }
+            if (file.intLittleEndianAt(position + 14) != serial) {
+                continue;
+            }
+            long granule = (file.intLittleEndianAt(position + 6) & 0xFFFFFFFFL)
+                    | ((long) file.intLittleEndianAt(position + 10) << 32);
+            // -1 marks pages on which no packet ends
+            if (granule != -1) {
+                return granule;
+            }
+        }
+        return -1;
+    }
+}
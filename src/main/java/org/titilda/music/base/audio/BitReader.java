@@ -0,0 +1,158 @@
+package org.titilda.music.base.audio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a bitstream most significant bit first, keeping the FLAC checksums of the bytes consumed since the last
+ * {@link #resetCrc()}.
+ */
+final class BitReader {
+    private final InputStream in;
+    // the unread bits are the lowest pendingBits bits, always fewer than 8 between calls
+    private long pending = 0;
+    private int pendingBits = 0;
+    private long position = 0;
+    private int crc8 = 0;
+    private int crc16 = 0;
+
+    BitReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads an unsigned value of up to 32 bits.
+     */
+    long readBits(int bits) throws IOException {
+        if (bits == 0) {
+            return 0;
+        }
+        while (pendingBits < bits) {
+            pending = (pending << 8) | nextByte();
+            pendingBits += 8;
+        }
+        pendingBits -= bits;
+        return (pending >>> pendingBits) & ((1L << bits) - 1);
+    }
+
+    /**
+     * Reads a two's complement value of up to 32 bits.
+     */
+    int readSigned(int bits) throws IOException {
+        if (bits == 0) {
+            return 0;
+        }
+        long value = readBits(bits);
+        return (int) ((value << (64 - bits)) >> (64 - bits));
+    }
+
+    /**
+     * Counts zeros up to the next one, which is consumed too.
+     */
+    long readUnary() throws IOException {
+        long zeros = 0;
+        while (true) {
+            if (pendingBits == 0) {
+                pending = nextByte();
+                pendingBits = 8;
+            }
+            int bits = (int) (pending & ((1 << pendingBits) - 1));
+            if (bits == 0) {
+                zeros += pendingBits;
+                pendingBits = 0;
+                continue;
+            }
+            int leadingZeros = Integer.numberOfLeadingZeros(bits) - (32 - pendingBits);
+            pendingBits -= leadingZeros + 1;
+            return zeros + leadingZeros;
+        }
+    }
+
+    /**
+     * Reads a Rice code with parameter k, unfolding it back to a signed value.
+     */
+    long readRice(int k) throws IOException {
+        long folded = (readUnary() << k) | readBits(k);
+        return (folded >>> 1) ^ -(folded & 1);
+    }
+
+    /**
+     * Reads the UTF-8-like variable-length encoding of frame and sample numbers.
+     */
+    long readUtf8() throws IOException {
+        int first = (int) readBits(8);
+        if ((first & 0x80) == 0) {
+            return first;
+        }
+        int leadingOnes = Integer.numberOfLeadingZeros(~first << 24);
+        if (leadingOnes < 2 || leadingOnes > 7) {
+            throw new IOException("Invalid coded number");
+        }
+        long value = first & (0x7F >> leadingOnes);
+        for (int i = 1; i < leadingOnes; i++) {
+            int next = (int) readBits(8);
+            if ((next & 0xC0) != 0x80) {
+                throw new IOException("Invalid coded number");
+            }
+            value = (value << 6) | (next & 0x3F);
+        }
+        return value;
+    }
+
+    void alignToByte() {
+        pendingBits = 0;
+    }
+
+    boolean isByteAligned() {
+        return pendingBits == 0;
+    }
+
+    /**
+     * The number of bytes consumed from the stream.
+     */
+    long position() {
+        return position;
+    }
+
+    void resetCrc() {
+        crc8 = 0;
+        crc16 = 0;
+    }
+
+    int crc8() {
+        return crc8;
+    }
+
+    int crc16() {
+        return crc16;
+    }
+
+    /**
+     * Reads a whole byte at a byte boundary, where the stream may also end.
+     *
+     * @return the byte, or -1 at the end of the stream
+     */
+    int readByteOrEnd() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            consumed(b);
+        }
+        return b;
+    }
+
+    private int nextByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of FLAC stream");
+        }
+        consumed(b);
+        return b;
+    }
+
+    private void consumed(int b) {
+        position++;
+        crc8 = FlacCrc.updateCrc8(crc8, b);
+        crc16 = FlacCrc.updateCrc16(crc16, b);
+    }
+}
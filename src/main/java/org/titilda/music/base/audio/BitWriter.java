@@ -0,0 +1,104 @@
+package org.titilda.music.base.audio;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates a bitstream in memory, most significant bit first.
+ */
+final class BitWriter {
+    private byte[] buffer = new byte[16 * 1024];
+    private int length = 0;
+    // the pending bits are the lowest pendingBits bits, always fewer than 8 between calls
+    private long pending = 0;
+    private int pendingBits = 0;
+
+    void reset() {
+        length = 0;
+        pending = 0;
+        pendingBits = 0;
+    }
+
+    /**
+     * Writes the lowest {@code bits} bits of the value, at most 32.
+     */
+    void writeBits(long value, int bits) {
+        if (bits == 0) {
+            return;
+        }
+        pending = (pending << bits) | (value & ((1L << bits) - 1));
+        pendingBits += bits;
+        while (pendingBits >= 8) {
+            pendingBits -= 8;
+            writeByte((int) (pending >>> pendingBits));
+        }
+    }
+
+    /**
+     * Writes the given number of zeros followed by a one.
+     */
+    void writeUnary(long zeros) {
+        while (zeros >= 32) {
+            writeBits(0, 32);
+            zeros -= 32;
+        }
+        writeBits(1, (int) zeros + 1);
+    }
+
+    /**
+     * Writes a Rice code with parameter k of the value folded to an unsigned one (0, -1, 1, -2... become 0, 1, 2,
+     * 3...).
+     */
+    void writeRice(long value, int k) {
+        long folded = value >= 0 ? value << 1 : ((-value) << 1) - 1;
+        long quotient = folded >>> k;
+        if (quotient + 1 + k <= 32) {
+            writeBits((1L << k) | (folded & ((1L << k) - 1)), (int) quotient + 1 + k);
+        } else {
+            writeUnary(quotient);
+            writeBits(folded, k);
+        }
+    }
+
+    /**
+     * Writes the UTF-8-like variable-length encoding FLAC uses for frame and sample numbers (up to 36 bits).
+     */
+    void writeUtf8(long value) {
+        if (value < 0x80) {
+            writeBits(value, 8);
+            return;
+        }
+        int continuationBytes = value < 0x800 ? 1 : value < 0x10000 ? 2 : value < 0x200000 ? 3
+                : value < 0x4000000 ? 4 : value < 0x80000000L ? 5 : 6;
+        int leadingOnes = continuationBytes + 1;
+        int leadingPayloadBits = 7 - leadingOnes;
+        long prefix = (0xFFL << (8 - leadingOnes)) & 0xFF;
+        writeBits(prefix | (value >>> (6 * continuationBytes)) & ((1L << Math.max(leadingPayloadBits, 0)) - 1), 8);
+        for (int i = continuationBytes - 1; i >= 0; i--) {
+            writeBits(0x80 | ((value >>> (6 * i)) & 0x3F), 8);
+        }
+    }
+
+    void alignToByte() {
+        if (pendingBits > 0) {
+            writeBits(0, 8 - pendingBits);
+        }
+    }
+
+    /**
+     * The bytes written so far; only whole bytes are included.
+     */
+    byte[] buffer() {
+        return buffer;
+    }
+
+    int length() {
+        return length;
+    }
+
+    private void writeByte(int b) {
+        if (length == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        buffer[length++] = (byte) b;
+    }
+}
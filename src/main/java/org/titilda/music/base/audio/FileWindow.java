@@ -0,0 +1,88 @@
+package org.titilda.music.base.audio;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Random access to a file through a window of it kept in memory, since headers are read a few bytes at a time.
+ */
+final class FileWindow implements Closeable {
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final long size;
+    private final ByteBuffer window = ByteBuffer.allocate(WINDOW_SIZE);
+    private long windowStart = 0;
+
+    FileWindow(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        window.limit(0);
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * The unsigned byte at the given position.
+     *
+     * @throws EOFException past the end of the file
+     */
+    int byteAt(long position) throws IOException {
+        if (position < windowStart || position >= windowStart + window.limit()) {
+            load(position);
+        }
+        return window.get((int) (position - windowStart)) & 0xFF;
+    }
+
+    int intAt(long position) throws IOException {
+        return (byteAt(position) << 24) | (byteAt(position + 1) << 16) | (byteAt(position + 2) << 8) | byteAt(position + 3);
+    }
+
+    int intLittleEndianAt(long position) throws IOException {
+        return byteAt(position) | (byteAt(position + 1) << 8) | (byteAt(position + 2) << 16) | (byteAt(position + 3) << 24);
+    }
+
+    /**
+     * Tells whether the ASCII string is found at the given position; false if it would extend past the end.
+     */
+    boolean startsWith(long position, String ascii) throws IOException {
+        byte[] expected = ascii.getBytes(StandardCharsets.US_ASCII);
+        if (position < 0 || position + expected.length > size) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (byteAt(position + i) != (expected[i] & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void load(long position) throws IOException {
+        if (position < 0 || position >= size) {
+            throw new EOFException("Read past the end of the file");
+        }
+        // centred on the position, so that scanning backwards is as cheap as scanning forwards
+        windowStart = Math.max(0, Math.min(position - WINDOW_SIZE / 2, size - WINDOW_SIZE));
+        window.clear();
+        while (window.hasRemaining()) {
+            if (channel.read(window, windowStart + window.position()) < 0) {
+                break;
+            }
+        }
+        window.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,49 @@
+package org.titilda.music.base.audio;
+
+/**
+ * The two checksums of FLAC frames: CRC-8 (polynomial x^8 + x^2 + x + 1) over the header and CRC-16 (polynomial
+ * x^16 + x^15 + x^2 + 1) over the whole frame, both starting from zero.
+ */
+final class FlacCrc {
+    private FlacCrc() {}
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xFF;
+            CRC16_TABLE[i] = crc16 & 0xFFFF;
+        }
+    }
+
+    static int updateCrc8(int crc, int b) {
+        return CRC8_TABLE[(crc ^ b) & 0xFF];
+    }
+
+    static int updateCrc16(int crc, int b) {
+        return ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ b) & 0xFF]) & 0xFFFF;
+    }
+
+    static int crc8(byte[] bytes, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = updateCrc8(crc, bytes[i]);
+        }
+        return crc;
+    }
+
+    static int crc16(byte[] bytes, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = updateCrc16(crc, bytes[i]);
+        }
+        return crc;
+    }
+}
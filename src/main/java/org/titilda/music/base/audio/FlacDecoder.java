@@ -0,0 +1,404 @@
+package org.titilda.music.base.audio;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+
+/**
+ * A FLAC decoder for streams of up to 24 bits per sample, checking the checksum of every frame. Metadata blocks
+ * other than the stream info are skipped.
+ */
+public final class FlacDecoder implements Closeable {
+    public static class InvalidFlacException extends IOException {
+        public InvalidFlacException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The STREAMINFO block. The total number of samples (per channel) is 0 and the MD5 all zeros when the encoder
+     * did not know them.
+     */
+    public record StreamInfo(int minBlockSize, int maxBlockSize, int sampleRate, int channels, int bitsPerSample,
+                             long totalSamples, byte[] md5) {}
+
+    private static final long FLAC_MAGIC = 0x664C6143L; // "fLaC"
+    private static final long ID3_MAGIC = 0x494433L; // "ID3"
+    private static final int MAX_BITS_PER_SAMPLE = 24;
+
+    private final InputStream in;
+    private final BitReader reader;
+    private final StreamInfo streamInfo;
+    private int[][] samples;
+    private long decodedSamples = 0;
+
+    private FlacDecoder(InputStream in) throws IOException {
+        this.in = in;
+        this.reader = new BitReader(in);
+        this.streamInfo = readMetadata();
+        this.samples = new int[streamInfo.channels()][Math.max(streamInfo.maxBlockSize(), 16)];
+    }
+
+    /**
+     * Opens a FLAC file and reads its metadata, leaving it positioned at the first frame.
+     *
+     * @throws InvalidFlacException if the file is not a FLAC stream this decoder can read
+     */
+    public static FlacDecoder open(Path path) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(path), 64 * 1024);
+        try {
+            return new FlacDecoder(in);
+        }
+        catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Decodes a whole FLAC file, checking the checksum of every frame and the MD5 of the samples against the one
+     * recorded by the encoder.
+     *
+     * @throws InvalidFlacException if anything does not match
+     */
+    public static void verify(Path path) throws IOException {
+        try (FlacDecoder decoder = open(path)) {
+            StreamInfo info = decoder.getStreamInfo();
+            int bytesPerSample = (info.bitsPerSample() + 7) / 8;
+            MessageDigest md5 = FlacEncoder.md5();
+            byte[] buffer = new byte[0];
+            long total = 0;
+            int count;
+            while ((count = decoder.readFrame()) > 0) {
+                int needed = count * info.channels() * bytesPerSample;
+                if (buffer.length < needed) {
+                    buffer = new byte[needed];
+                }
+                FlacEncoder.updateMd5(md5, buffer, decoder.getSamples(), count, bytesPerSample);
+                total += count;
+            }
+            if (info.totalSamples() != 0 && total != info.totalSamples()) {
+                throw new InvalidFlacException("Expected " + info.totalSamples() + " samples, decoded " + total);
+            }
+            boolean md5Known = false;
+            for (byte b : info.md5()) {
+                md5Known |= b != 0;
+            }
+            if (md5Known && !MessageDigest.isEqual(md5.digest(), info.md5())) {
+                throw new InvalidFlacException("Decoded samples do not match the MD5 of the stream");
+            }
+        }
+    }
+
+    public StreamInfo getStreamInfo() {
+        return streamInfo;
+    }
+
+    /**
+     * The samples of the last decoded frame, one array per channel; only the first {@link #readFrame()} entries of
+     * each are valid, and they are overwritten by the next frame.
+     */
+    public int[][] getSamples() {
+        return samples;
+    }
+
+    /**
+     * The number of samples per channel decoded so far, i.e. the index of the first sample of the next frame.
+     */
+    public long getDecodedSamples() {
+        return decodedSamples;
+    }
+
+    /**
+     * The offset in the file of the next frame, valid between frames.
+     */
+    public long getPosition() {
+        return reader.position();
+    }
+
+    // ================ METADATA ================
+
+    private StreamInfo readMetadata() throws IOException {
+        long magic = reader.readBits(32);
+        if (magic >>> 8 == ID3_MAGIC) {
+            // an ID3v2 tag some taggers put in front of the stream
+            reader.readBits(8); // revision
+            int flags = (int) reader.readBits(8);
+            long size = 0;
+            for (int i = 0; i < 4; i++) {
+                size = (size << 7) | (reader.readBits(8) & 0x7F);
+            }
+            skip(size + ((flags & 0x10) != 0 ? 10 : 0));
+            magic = reader.readBits(32);
+        }
+        if (magic != FLAC_MAGIC) {
+            throw new InvalidFlacException("Not a FLAC stream");
+        }
+
+        StreamInfo info = null;
+        boolean last = false;
+        while (!last) {
+            last = reader.readBits(1) == 1;
+            int type = (int) reader.readBits(7);
+            long length = reader.readBits(24);
+            if (type == 0) {
+                if (length != 34) {
+                    throw new InvalidFlacException("Malformed stream info");
+                }
+                info = readStreamInfo();
+            } else if (info == null) {
+                throw new InvalidFlacException("Stream info is not the first metadata block");
+            } else {
+                skip(length);
+            }
+        }
+        if (info == null) {
+            throw new InvalidFlacException("Missing stream info");
+        }
+        return info;
+    }
+
+    private StreamInfo readStreamInfo() throws IOException {
+        int minBlockSize = (int) reader.readBits(16);
+        int maxBlockSize = (int) reader.readBits(16);
+        reader.readBits(24); // minimum frame size
+        reader.readBits(24); // maximum frame size
+        int sampleRate = (int) reader.readBits(20);
+        int channels = (int) reader.readBits(3) + 1;
+        int bitsPerSample = (int) reader.readBits(5) + 1;
+        long totalSamples = (reader.readBits(4) << 32) | reader.readBits(32);
+        byte[] md5 = new byte[16];
+        for (int i = 0; i < md5.length; i++) {
+            md5[i] = (byte) reader.readBits(8);
+        }
+        if (bitsPerSample > MAX_BITS_PER_SAMPLE) {
+            throw new InvalidFlacException("Unsupported sample size: " + bitsPerSample);
+        }
+        return new StreamInfo(minBlockSize, maxBlockSize, sampleRate, channels, bitsPerSample, totalSamples, md5);
+    }
+
+    private void skip(long bytes) throws IOException {
+        for (long i = 0; i < bytes; i++) {
+            reader.readBits(8);
+        }
+    }
+
+    // ================ FRAMES ================
+
+    /**
+     * Decodes the next frame into {@link #getSamples()}.
+     *
+     * @return the number of samples per channel in the frame, 0 at the end of the stream
+     */
+    public int readFrame() throws IOException {
+        if (streamInfo.totalSamples() != 0 && decodedSamples >= streamInfo.totalSamples()) {
+            // anything after the last frame is not audio
+            return 0;
+        }
+        reader.resetCrc();
+        int syncHigh = reader.readByteOrEnd();
+        if (syncHigh < 0) {
+            return 0;
+        }
+        int syncLow = (int) reader.readBits(8);
+        if (syncHigh != 0xFF || (syncLow & 0xFE) != 0xF8) {
+            throw new InvalidFlacException("Lost frame sync");
+        }
+        int blockSizeCode = (int) reader.readBits(4);
+        int sampleRateCode = (int) reader.readBits(4);
+        int channelAssignment = (int) reader.readBits(4);
+        int sampleSizeCode = (int) reader.readBits(3);
+        reader.readBits(1);
+        reader.readUtf8(); // frame or sample number; frames are read in order anyway
+
+        int blockSize = switch (blockSizeCode) {
+            case 0 -> throw new InvalidFlacException("Reserved block size");
+            case 1 -> 192;
+            case 2, 3, 4, 5 -> 576 << (blockSizeCode - 2);
+            case 6 -> (int) reader.readBits(8) + 1;
+            case 7 -> (int) reader.readBits(16) + 1;
+            default -> 256 << (blockSizeCode - 8);
+        };
+        switch (sampleRateCode) {
+            case 12 -> reader.readBits(8);
+            case 13, 14 -> reader.readBits(16);
+            case 15 -> throw new InvalidFlacException("Invalid sample rate");
+            default -> {}
+        }
+        int expectedCrc8 = reader.crc8();
+        if (reader.readBits(8) != expectedCrc8) {
+            throw new InvalidFlacException("Frame header checksum mismatch");
+        }
+
+        int bitsPerSample = switch (sampleSizeCode) {
+            case 0 -> streamInfo.bitsPerSample();
+            case 1 -> 8;
+            case 2 -> 12;
+            case 4 -> 16;
+            case 5 -> 20;
+            case 6 -> 24;
+            default -> throw new InvalidFlacException("Unsupported sample size code " + sampleSizeCode);
+        };
+        int channels = channelAssignment < 8 ? channelAssignment + 1 : 2;
+        if (channelAssignment > 10 || channels != streamInfo.channels()) {
+            throw new InvalidFlacException("Unexpected channel assignment " + channelAssignment);
+        }
+        if (samples[0].length < blockSize) {
+            samples = new int[channels][blockSize];
+        }
+
+        for (int channel = 0; channel < channels; channel++) {
+            boolean side = (channelAssignment == 8 && channel == 1)
+                    || (channelAssignment == 9 && channel == 0)
+                    || (channelAssignment == 10 && channel == 1);
+            readSubframe(samples[channel], blockSize, bitsPerSample + (side ? 1 : 0));
+        }
+        reader.alignToByte();
+        int expectedCrc16 = reader.crc16();
+        if (reader.readBits(16) != expectedCrc16) {
+            throw new InvalidFlacException("Frame checksum mismatch");
+        }
+
+        int[] first = samples[0];
+        int[] second = channels > 1 ? samples[1] : null;
+        switch (channelAssignment) {
+            case 8 -> {
+                for (int i = 0; i < blockSize; i++) {
+                    second[i] = first[i] - second[i];
+                }
+            }
+            case 9 -> {
+                for (int i = 0; i < blockSize; i++) {
+                    first[i] += second[i];
+                }
+            }
+            case 10 -> {
+                for (int i = 0; i < blockSize; i++) {
+                    int side = second[i];
+                    int mid = (first[i] << 1) | (side & 1);
+                    first[i] = (mid + side) >> 1;
+                    second[i] = (mid - side) >> 1;
+                }
+            }
+            default -> {}
+        }
+        decodedSamples += blockSize;
+        return blockSize;
+    }
+
+    private void readSubframe(int[] out, int blockSize, int bitsPerSample) throws IOException {
+        if (reader.readBits(1) != 0) {
+            throw new InvalidFlacException("Invalid subframe header");
+        }
+        int type = (int) reader.readBits(6);
+        int wastedBits = reader.readBits(1) == 1 ? (int) reader.readUnary() + 1 : 0;
+        if (wastedBits >= bitsPerSample) {
+            throw new InvalidFlacException("Invalid wasted bits");
+        }
+        int bps = bitsPerSample - wastedBits;
+
+        if (type == 0) {
+            int value = reader.readSigned(bps);
+            for (int i = 0; i < blockSize; i++) {
+                out[i] = value;
+            }
+        } else if (type == 1) {
+            for (int i = 0; i < blockSize; i++) {
+                out[i] = reader.readSigned(bps);
+            }
+        } else if (type >= 8 && type <= 12) {
+            int order = type - 8;
+            readWarmup(out, order, blockSize, bps);
+            readResidual(out, blockSize, order);
+            restoreFixed(out, blockSize, order);
+        } else if (type >= 32) {
+            int order = (type & 31) + 1;
+            readWarmup(out, order, blockSize, bps);
+            int precision = (int) reader.readBits(4) + 1;
+            int shift = reader.readSigned(5);
+            if (precision == 16 || shift < 0) {
+                throw new InvalidFlacException("Invalid LPC parameters");
+            }
+            int[] coefficients = new int[order];
+            for (int i = 0; i < order; i++) {
+                coefficients[i] = reader.readSigned(precision);
+            }
+            readResidual(out, blockSize, order);
+            for (int i = order; i < blockSize; i++) {
+                long prediction = 0;
+                for (int j = 0; j < order; j++) {
+                    prediction += (long) coefficients[j] * out[i - 1 - j];
+                }
+                out[i] += (int) (prediction >> shift);
+            }
+        } else {
+            throw new InvalidFlacException("Reserved subframe type " + type);
+        }
+
+        if (wastedBits > 0) {
+            for (int i = 0; i < blockSize; i++) {
+                out[i] <<= wastedBits;
+            }
+        }
+    }
+
+    private void readWarmup(int[] out, int order, int blockSize, int bps) throws IOException {
+        if (order > blockSize) {
+            throw new InvalidFlacException("Predictor order larger than the block");
+        }
+        for (int i = 0; i < order; i++) {
+            out[i] = reader.readSigned(bps);
+        }
+    }
+
+    private void readResidual(int[] out, int blockSize, int order) throws IOException {
+        int method = (int) reader.readBits(2);
+        if (method > 1) {
+            throw new InvalidFlacException("Reserved residual coding method");
+        }
+        int parameterBits = method == 0 ? 4 : 5;
+        int escape = (1 << parameterBits) - 1;
+        int partitionOrder = (int) reader.readBits(4);
+        int partitionSize = blockSize >> partitionOrder;
+        if (partitionSize << partitionOrder != blockSize || partitionSize < order) {
+            throw new InvalidFlacException("Invalid residual partitioning");
+        }
+        int i = order;
+        for (int partition = 0; partition < 1 << partitionOrder; partition++) {
+            int k = (int) reader.readBits(parameterBits);
+            int end = (partition + 1) * partitionSize;
+            if (k == escape) {
+                int bits = (int) reader.readBits(5);
+                for (; i < end; i++) {
+                    out[i] = reader.readSigned(bits);
+                }
+            } else {
+                for (; i < end; i++) {
+                    out[i] = (int) reader.readRice(k);
+                }
+            }
+        }
+    }
+
+    private static void restoreFixed(int[] out, int blockSize, int order) {
+        for (int i = order; i < blockSize; i++) {
+            long prediction = switch (order) {
+                case 0 -> 0;
+                case 1 -> out[i - 1];
+                case 2 -> 2L * out[i - 1] - out[i - 2];
+                case 3 -> 3L * out[i - 1] - 3L * out[i - 2] + out[i - 3];
+                default -> 4L * out[i - 1] - 6L * out[i - 2] + 4L * out[i - 3] - out[i - 4];
+            };
+            out[i] += (int) prediction;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
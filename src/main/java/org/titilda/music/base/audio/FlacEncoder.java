@@ -0,0 +1,615 @@
+package org.titilda.music.base.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A lossless FLAC encoder for the samples of a {@link WavReader}. It keeps to a subset of what the reference
+ * encoder does: fixed blocks of 4096 samples, for every subframe the cheapest of the fixed predictors and LPC up to
+ * order 8, partitioned Rice coding of the residual, and for stereo the cheapest of the four channel decorrelations.
+ * <p>
+ * The MD5 of the samples is recorded in the stream info, so that a decoder can prove nothing was lost.
+ */
+public final class FlacEncoder {
+    private FlacEncoder() {}
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_LPC_ORDER = 8;
+    private static final int MAX_PARTITION_ORDER = 8;
+    private static final int MAX_RICE_PARAMETER = 30;
+    // parameters above this need the 5-bit Rice coding method
+    private static final int MAX_SHORT_RICE_PARAMETER = 14;
+    private static final int MAX_LPC_SHIFT = 15;
+    private static final int STREAMINFO_LENGTH = 34;
+
+    private static final int CHANNELS_LEFT_SIDE = 8;
+    private static final int CHANNELS_SIDE_RIGHT = 9;
+    private static final int CHANNELS_MID_SIDE = 10;
+
+    private static final int TYPE_CONSTANT = 0;
+    private static final int TYPE_VERBATIM = 1;
+    private static final int TYPE_FIXED = 2;
+    private static final int TYPE_LPC = 3;
+
+    private static final double[] WINDOW = tukeyWindow(BLOCK_SIZE);
+
+    /**
+     * How the residual of a subframe is Rice-coded: one parameter per partition.
+     */
+    private record Rice(int partitionOrder, int[] parameters, boolean extended, long bits) {}
+
+    /**
+     * The cheapest encoding found for one channel of a frame, and its size in bits.
+     */
+    private static final class Subframe {
+        private final int[] samples;
+        private final int bitsPerSample;
+        private final int wastedBits;
+        private int type;
+        private int order;
+        private int[] coefficients;
+        private int precision;
+        private int shift;
+        private int[] residual;
+        private Rice rice;
+        private long bits;
+
+        private Subframe(int[] samples, int bitsPerSample, int wastedBits) {
+            this.samples = samples;
+            this.bitsPerSample = bitsPerSample;
+            this.wastedBits = wastedBits;
+        }
+    }
+
+    /**
+     * Encodes the rest of the given WAV stream into a new FLAC file.
+     *
+     * @return the MD5 of the encoded samples, as recorded in the stream
+     * @throws WavReader.UnsupportedWavException if the stream holds no samples
+     */
+    public static byte[] encode(WavReader wav, Path flacPath) throws IOException {
+        WavReader.Format format = wav.getFormat();
+        int channels = format.channels();
+        MessageDigest md5 = md5();
+        byte[] md5Buffer = new byte[BLOCK_SIZE * channels * format.bytesPerSample()];
+        int[][] block = new int[channels][BLOCK_SIZE];
+        BitWriter frame = new BitWriter();
+
+        try (FileChannel out = FileChannel.open(flacPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            // the stream info is only known at the end: its room is reserved now and it is filled in then
+            writeFully(out, ByteBuffer.wrap(new byte[4 + 4 + STREAMINFO_LENGTH]));
+
+            long totalSamples = 0;
+            long frameNumber = 0;
+            int minFrameSize = Integer.MAX_VALUE;
+            int maxFrameSize = 0;
+            int samples;
+            while ((samples = wav.read(block, BLOCK_SIZE)) > 0) {
+                updateMd5(md5, md5Buffer, block, samples, format.bytesPerSample());
+                frame.reset();
+                writeFrame(frame, block, samples, frameNumber++, format);
+                writeFully(out, ByteBuffer.wrap(frame.buffer(), 0, frame.length()));
+                minFrameSize = Math.min(minFrameSize, frame.length());
+                maxFrameSize = Math.max(maxFrameSize, frame.length());
+                totalSamples += samples;
+            }
+            if (totalSamples == 0) {
+                throw new WavReader.UnsupportedWavException("No audio samples");
+            }
+
+            byte[] digest = md5.digest();
+            BitWriter header = new BitWriter();
+            header.writeBits(0x664C6143L, 32); // "fLaC"
+            header.writeBits(1, 1); // last metadata block
+            header.writeBits(0, 7); // STREAMINFO
+            header.writeBits(STREAMINFO_LENGTH, 24);
+            header.writeBits(BLOCK_SIZE, 16);
+            header.writeBits(BLOCK_SIZE, 16);
+            header.writeBits(minFrameSize, 24);
+            header.writeBits(maxFrameSize, 24);
+            header.writeBits(format.sampleRate(), 20);
+            header.writeBits(channels - 1, 3);
+            header.writeBits(format.bitsPerSample() - 1, 5);
+            header.writeBits(totalSamples >>> 32, 4);
+            header.writeBits(totalSamples, 32);
+            for (byte b : digest) {
+                header.writeBits(b, 8);
+            }
+            out.position(0);
+            writeFully(out, ByteBuffer.wrap(header.buffer(), 0, header.length()));
+            return digest;
+        }
+    }
+
+    // ================ FRAMES ================
+
+    private static void writeFrame(BitWriter w, int[][] block, int samples, long frameNumber, WavReader.Format format) {
+        int bitsPerSample = format.bitsPerSample();
+        int channelAssignment;
+        Subframe[] subframes;
+        if (format.channels() == 2) {
+            int[] left = block[0];
+            int[] right = block[1];
+            int[] mid = new int[samples];
+            int[] side = new int[samples];
+            for (int i = 0; i < samples; i++) {
+                mid[i] = (left[i] + right[i]) >> 1;
+                side[i] = left[i] - right[i];
+            }
+            Subframe leftSubframe = analyze(left, samples, bitsPerSample);
+            Subframe rightSubframe = analyze(right, samples, bitsPerSample);
+            Subframe midSubframe = analyze(mid, samples, bitsPerSample);
+            // the difference of two samples needs one more bit
+            Subframe sideSubframe = analyze(side, samples, bitsPerSample + 1);
+
+            long independent = leftSubframe.bits + rightSubframe.bits;
+            long leftSide = leftSubframe.bits + sideSubframe.bits;
+            long sideRight = sideSubframe.bits + rightSubframe.bits;
+            long midSide = midSubframe.bits + sideSubframe.bits;
+            long cheapest = Math.min(Math.min(independent, leftSide), Math.min(sideRight, midSide));
+            if (cheapest == independent) {
+                channelAssignment = 1;
+                subframes = new Subframe[]{leftSubframe, rightSubframe};
+            } else if (cheapest == midSide) {
+                channelAssignment = CHANNELS_MID_SIDE;
+                subframes = new Subframe[]{midSubframe, sideSubframe};
+            } else if (cheapest == leftSide) {
+                channelAssignment = CHANNELS_LEFT_SIDE;
+                subframes = new Subframe[]{leftSubframe, sideSubframe};
+            } else {
+                channelAssignment = CHANNELS_SIDE_RIGHT;
+                subframes = new Subframe[]{sideSubframe, rightSubframe};
+            }
+        } else {
+            channelAssignment = format.channels() - 1;
+            subframes = new Subframe[format.channels()];
+            for (int channel = 0; channel < format.channels(); channel++) {
+                subframes[channel] = analyze(block[channel], samples, bitsPerSample);
+            }
+        }
+
+        int blockSizeCode = samples == BLOCK_SIZE ? 12 : samples <= 256 ? 6 : 7;
+        w.writeBits(0xFFF8, 16); // sync code, fixed block size
+        w.writeBits(blockSizeCode, 4);
+        w.writeBits(sampleRateCode(format.sampleRate()), 4);
+        w.writeBits(channelAssignment, 4);
+        w.writeBits(sampleSizeCode(bitsPerSample), 3);
+        w.writeBits(0, 1);
+        w.writeUtf8(frameNumber);
+        if (blockSizeCode == 6) {
+            w.writeBits(samples - 1, 8);
+        } else if (blockSizeCode == 7) {
+            w.writeBits(samples - 1, 16);
+        }
+        w.writeBits(FlacCrc.crc8(w.buffer(), 0, w.length()), 8);
+
+        for (Subframe subframe : subframes) {
+            writeSubframe(w, subframe, samples);
+        }
+        w.alignToByte();
+        w.writeBits(FlacCrc.crc16(w.buffer(), 0, w.length()), 16);
+    }
+
+    private static int sampleRateCode(int sampleRate) {
+        return switch (sampleRate) {
+            case 88200 -> 1;
+            case 176400 -> 2;
+            case 192000 -> 3;
+            case 8000 -> 4;
+            case 16000 -> 5;
+            case 22050 -> 6;
+            case 24000 -> 7;
+            case 32000 -> 8;
+            case 44100 -> 9;
+            case 48000 -> 10;
+            case 96000 -> 11;
+            // taken from the stream info
+            default -> 0;
+        };
+    }
+
+    private static int sampleSizeCode(int bitsPerSample) {
+        return switch (bitsPerSample) {
+            case 8 -> 1;
+            case 16 -> 4;
+            case 24 -> 6;
+            default -> 0;
+        };
+    }
+
+    // ================ SUBFRAMES ================
+
+    /**
+     * Finds the cheapest encoding of one channel of a frame.
+     */
+    private static Subframe analyze(int[] input, int samples, int bitsPerSample) {
+        boolean constant = true;
+        int setBits = 0;
+        for (int i = 0; i < samples; i++) {
+            constant &= input[i] == input[0];
+            setBits |= input[i];
+        }
+        if (constant) {
+            Subframe subframe = new Subframe(input, bitsPerSample, 0);
+            subframe.type = TYPE_CONSTANT;
+            subframe.bits = 8 + bitsPerSample;
+            return subframe;
+        }
+
+        // low bits that are zero in every sample (e.g. 16-bit audio in a 24-bit container) need not be stored
+        int wastedBits = Integer.numberOfTrailingZeros(setBits);
+        int[] x = input;
+        if (wastedBits > 0) {
+            x = new int[samples];
+            for (int i = 0; i < samples; i++) {
+                x[i] = input[i] >> wastedBits;
+            }
+        }
+        int bps = bitsPerSample - wastedBits;
+        long headerBits = 8 + wastedBits;
+
+        Subframe best = new Subframe(x, bps, wastedBits);
+        best.type = TYPE_VERBATIM;
+        best.bits = headerBits + (long) samples * bps;
+
+        int[] residual = new int[samples];
+        for (int order = 0; order <= MAX_FIXED_ORDER && order < samples; order++) {
+            if (!fixedResidual(x, samples, order, residual)) {
+                continue;
+            }
+            Rice rice = chooseRice(residual, samples, order);
+            long bits = headerBits + (long) order * bps + rice.bits();
+            if (bits < best.bits) {
+                best.type = TYPE_FIXED;
+                best.order = order;
+                best.rice = rice;
+                best.bits = bits;
+                int[] previous = best.residual;
+                best.residual = residual;
+                residual = previous != null ? previous : new int[samples];
+            }
+        }
+
+        int precision = bps <= 16 ? 12 : 15;
+        int[] quantized = new int[MAX_LPC_ORDER];
+        for (double[] coefficients : lpcCoefficients(x, samples, Math.min(MAX_LPC_ORDER, samples - 1))) {
+            int order = coefficients.length;
+            int shift = quantize(coefficients, precision, quantized);
+            if (shift < 0 || !lpcResidual(x, samples, quantized, order, shift, residual)) {
+                continue;
+            }
+            Rice rice = chooseRice(residual, samples, order);
+            long bits = headerBits + (long) order * bps + 4 + 5 + (long) order * precision + rice.bits();
+            if (bits < best.bits) {
+                best.type = TYPE_LPC;
+                best.order = order;
+                best.coefficients = Arrays.copyOf(quantized, order);
+                best.precision = precision;
+                best.shift = shift;
+                best.rice = rice;
+                best.bits = bits;
+                int[] previous = best.residual;
+                best.residual = residual;
+                residual = previous != null ? previous : new int[samples];
+            }
+        }
+        return best;
+    }
+
+    private static void writeSubframe(BitWriter w, Subframe subframe, int samples) {
+        w.writeBits(0, 1);
+        w.writeBits(switch (subframe.type) {
+            case TYPE_CONSTANT -> 0;
+            case TYPE_VERBATIM -> 1;
+            case TYPE_FIXED -> 8 | subframe.order;
+            default -> 32 | (subframe.order - 1);
+        }, 6);
+        if (subframe.wastedBits > 0) {
+            w.writeBits(1, 1);
+            w.writeUnary(subframe.wastedBits - 1);
+        } else {
+            w.writeBits(0, 1);
+        }
+
+        int[] x = subframe.samples;
+        int bps = subframe.bitsPerSample;
+        switch (subframe.type) {
+            case TYPE_CONSTANT -> w.writeBits(x[0], bps);
+            case TYPE_VERBATIM -> {
+                for (int i = 0; i < samples; i++) {
+                    w.writeBits(x[i], bps);
+                }
+            }
+            default -> {
+                for (int i = 0; i < subframe.order; i++) {
+                    w.writeBits(x[i], bps);
+                }
+                if (subframe.type == TYPE_LPC) {
+                    w.writeBits(subframe.precision - 1, 4);
+                    w.writeBits(subframe.shift, 5);
+                    for (int coefficient : subframe.coefficients) {
+                        w.writeBits(coefficient, subframe.precision);
+                    }
+                }
+                writeResidual(w, subframe, samples);
+            }
+        }
+    }
+
+    private static void writeResidual(BitWriter w, Subframe subframe, int samples) {
+        Rice rice = subframe.rice;
+        w.writeBits(rice.extended() ? 1 : 0, 2);
+        w.writeBits(rice.partitionOrder(), 4);
+        int partitionSize = samples >> rice.partitionOrder();
+        for (int partition = 0; partition < rice.parameters().length; partition++) {
+            int k = rice.parameters()[partition];
+            w.writeBits(k, rice.extended() ? 5 : 4);
+            int start = partition == 0 ? subframe.order : partition * partitionSize;
+            int end = (partition + 1) * partitionSize;
+            for (int i = start; i < end; i++) {
+                w.writeRice(subframe.residual[i], k);
+            }
+        }
+    }
+
+    // ================ PREDICTION ================
+
+    /**
+     * Computes the residual of a fixed polynomial predictor.
+     *
+     * @return false if the residual does not fit 32 bits, which the format requires
+     */
+    private static boolean fixedResidual(int[] x, int samples, int order, int[] residual) {
+        for (int i = order; i < samples; i++) {
+            long r = switch (order) {
+                case 0 -> x[i];
+                case 1 -> (long) x[i] - x[i - 1];
+                case 2 -> (long) x[i] - 2L * x[i - 1] + x[i - 2];
+                case 3 -> (long) x[i] - 3L * x[i - 1] + 3L * x[i - 2] - x[i - 3];
+                default -> (long) x[i] - 4L * x[i - 1] + 6L * x[i - 2] - 4L * x[i - 3] + x[i - 4];
+            };
+            if (r != (int) r) {
+                return false;
+            }
+            residual[i] = (int) r;
+        }
+        return true;
+    }
+
+    private static boolean lpcResidual(int[] x, int samples, int[] coefficients, int order, int shift, int[] residual) {
+        for (int i = order; i < samples; i++) {
+            long prediction = 0;
+            for (int j = 0; j < order; j++) {
+                prediction += (long) coefficients[j] * x[i - 1 - j];
+            }
+            long r = x[i] - (prediction >> shift);
+            if (r != (int) r) {
+                return false;
+            }
+            residual[i] = (int) r;
+        }
+        return true;
+    }
+
+    /**
+     * Computes the LPC coefficients of every order up to the given one, by Levinson-Durbin recursion on the
+     * autocorrelation of the windowed samples. Fewer orders are returned when the signal is fully predicted earlier.
+     */
+    private static double[][] lpcCoefficients(int[] x, int samples, int maxOrder) {
+        if (maxOrder < 1) {
+            return new double[0][];
+        }
+        double[] window = samples == BLOCK_SIZE ? WINDOW : tukeyWindow(samples);
+        double[] windowed = new double[samples];
+        for (int i = 0; i < samples; i++) {
+            windowed[i] = x[i] * window[i];
+        }
+        double[] autocorrelation = new double[maxOrder + 1];
+        for (int lag = 0; lag <= maxOrder; lag++) {
+            double sum = 0;
+            for (int i = lag; i < samples; i++) {
+                sum += windowed[i] * windowed[i - lag];
+            }
+            autocorrelation[lag] = sum;
+        }
+        if (autocorrelation[0] == 0) {
+            return new double[0][];
+        }
+
+        double[][] result = new double[maxOrder][];
+        double[] lpc = new double[maxOrder];
+        double error = autocorrelation[0];
+        for (int i = 0; i < maxOrder; i++) {
+            double reflection = -autocorrelation[i + 1];
+            for (int j = 0; j < i; j++) {
+                reflection -= lpc[j] * autocorrelation[i - j];
+            }
+            reflection /= error;
+            if (!Double.isFinite(reflection)) {
+                return Arrays.copyOf(result, i);
+            }
+            lpc[i] = reflection;
+            int j;
+            for (j = 0; j < (i >> 1); j++) {
+                double tmp = lpc[j];
+                lpc[j] += reflection * lpc[i - 1 - j];
+                lpc[i - 1 - j] += reflection * tmp;
+            }
+            if ((i & 1) != 0) {
+                lpc[j] += lpc[j] * reflection;
+            }
+            error *= 1.0 - reflection * reflection;
+
+            // the recursion yields the filter; the predictor is its negation
+            result[i] = new double[i + 1];
+            for (int k = 0; k <= i; k++) {
+                result[i][k] = -lpc[k];
+            }
+            if (error <= 0) {
+                return Arrays.copyOf(result, i + 1);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Quantizes LPC coefficients to the given precision, carrying the rounding error over to the next coefficient.
+     *
+     * @return the shift to apply to the prediction, or -1 if the coefficients cannot be represented
+     */
+    private static int quantize(double[] coefficients, int precision, int[] quantized) {
+        double max = 0;
+        for (double coefficient : coefficients) {
+            max = Math.max(max, Math.abs(coefficient));
+        }
+        if (!(max > 0) || !Double.isFinite(max)) {
+            return -1;
+        }
+        int maxValue = (1 << (precision - 1)) - 1;
+        int minValue = -(1 << (precision - 1));
+        int shift = Math.min(MAX_LPC_SHIFT, precision - 2 - Math.getExponent(max));
+        if (shift < 0) {
+            // coefficients this large predict nothing useful
+            return -1;
+        }
+        double error = 0;
+        for (int i = 0; i < coefficients.length; i++) {
+            error += coefficients[i] * (1 << shift);
+            long q = Math.max(minValue, Math.min(maxValue, Math.round(error)));
+            error -= q;
+            quantized[i] = (int) q;
+        }
+        return shift;
+    }
+
+    private static double[] tukeyWindow(int length) {
+        double[] window = new double[length];
+        Arrays.fill(window, 1.0);
+        // tapered over a quarter of the block at each end
+        int taper = length / 4;
+        for (int i = 0; i < taper; i++) {
+            double value = 0.5 - 0.5 * Math.cos(Math.PI * i / taper);
+            window[i] = value;
+            window[length - 1 - i] = value;
+        }
+        return window;
+    }
+
+    // ================ RESIDUAL CODING ================
+
+    /**
+     * Picks the partition order and the Rice parameters that minimize the (estimated) size of a residual, starting
+     * from the finest partitioning and merging partitions pairwise.
+     */
+    private static Rice chooseRice(int[] residual, int samples, int order) {
+        int maxPartitionOrder = 0;
+        while (maxPartitionOrder < MAX_PARTITION_ORDER
+                && samples % (1 << (maxPartitionOrder + 1)) == 0
+                && (samples >> (maxPartitionOrder + 1)) > order) {
+            maxPartitionOrder++;
+        }
+
+        long[] sums = new long[1 << maxPartitionOrder];
+        int finestSize = samples >> maxPartitionOrder;
+        for (int partition = 0; partition < sums.length; partition++) {
+            long sum = 0;
+            int start = partition == 0 ? order : partition * finestSize;
+            int end = (partition + 1) * finestSize;
+            for (int i = start; i < end; i++) {
+                int r = residual[i];
+                sum += r >= 0 ? 2L * r : -2L * r - 1;
+            }
+            sums[partition] = sum;
+        }
+
+        Rice best = null;
+        for (int partitionOrder = maxPartitionOrder; partitionOrder >= 0; partitionOrder--) {
+            int partitions = 1 << partitionOrder;
+            int partitionSize = samples >> partitionOrder;
+            int[] parameters = new int[partitions];
+            long bits = 0;
+            boolean extended = false;
+            for (int partition = 0; partition < partitions; partition++) {
+                int count = partition == 0 ? partitionSize - order : partitionSize;
+                int k = riceParameter(sums[partition], count);
+                parameters[partition] = k;
+                bits += riceBits(sums[partition], count, k);
+                extended |= k > MAX_SHORT_RICE_PARAMETER;
+            }
+            bits += 2 + 4 + (long) partitions * (extended ? 5 : 4);
+            if (best == null || bits < best.bits()) {
+                best = new Rice(partitionOrder, parameters, extended, bits);
+            }
+            for (int partition = 0; partition < partitions / 2; partition++) {
+                sums[partition] = sums[2 * partition] + sums[2 * partition + 1];
+            }
+        }
+        return best;
+    }
+
+    private static int riceParameter(long sum, int count) {
+        if (count == 0 || sum == 0) {
+            return 0;
+        }
+        long mean = Math.max(1, sum / count);
+        int estimate = 63 - Long.numberOfLeadingZeros(mean);
+        int best = 0;
+        long bestBits = Long.MAX_VALUE;
+        for (int k = Math.max(0, estimate - 1); k <= Math.min(MAX_RICE_PARAMETER, estimate + 1); k++) {
+            long bits = riceBits(sum, count, k);
+            if (bits < bestBits) {
+                best = k;
+                bestBits = bits;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimates the size of a Rice-coded partition from the sum of its folded values.
+     */
+    private static long riceBits(long sum, int count, int k) {
+        return (long) count * (k + 1) + (sum >> k);
+    }
+
+    // ================ HELPERS ================
+
+    /**
+     * The MD5 of the stream is computed over the samples as signed little-endian integers of whole bytes.
+     */
+    static void updateMd5(MessageDigest md5, byte[] buffer, int[][] block, int samples, int bytesPerSample) {
+        int position = 0;
+        for (int i = 0; i < samples; i++) {
+            for (int[] channel : block) {
+                int value = channel[i];
+                for (int b = 0; b < bytesPerSample; b++) {
+                    buffer[position++] = (byte) (value >> (8 * b));
+                }
+            }
+        }
+        md5.update(buffer, 0, position);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every JVM is required to provide MD5
+            throw new IllegalStateException(e);
+        }
+    }
+}
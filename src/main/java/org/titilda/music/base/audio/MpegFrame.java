@@ -0,0 +1,140 @@
+package org.titilda.music.base.audio;
+
+import java.io.IOException;
+
+/**
+ * The fields of an MPEG audio frame header that matter here.
+ *
+ * @param length size of the whole frame in bytes
+ */
+record MpegFrame(int version, int layer, int sampleRate, int channels, int samples, int length) {
+    static final int VERSION_1 = 3;
+
+    // how far into a file (after its ID3v2 tags) the first frame is looked for
+    private static final int MAX_SYNC_SCAN = 64 * 1024;
+
+    private static final int[] SAMPLE_RATES = {44100, 48000, 32000};
+    // kbit/s by layer (I, II, III) and bitrate index
+    private static final int[][] MPEG1_BITRATES = {
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320}
+    };
+    private static final int[][] MPEG2_BITRATES = {
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}
+    };
+
+    /**
+     * Where the frames of an MP3 file are, once its tags are left out.
+     *
+     * @param firstPosition offset of the first frame
+     * @param end           offset right after the last byte that may belong to a frame
+     * @param first         the first frame
+     */
+    record Stream(long firstPosition, long end, MpegFrame first) {}
+
+    boolean sameStreamAs(MpegFrame other) {
+        return version == other.version && layer == other.layer && sampleRate == other.sampleRate;
+    }
+
+    /**
+     * Offset of the Xing/Info header within a frame starting at the given position, right after the side information.
+     */
+    long xingPosition(long position) {
+        int sideInfo = version == VERSION_1 ? (channels == 1 ? 17 : 32) : (channels == 1 ? 9 : 17);
+        return position + 4 + sideInfo;
+    }
+
+    /**
+     * Offset of the VBRI header within a frame starting at the given position.
+     */
+    static long vbriPosition(long position) {
+        return position + 4 + 32;
+    }
+
+    /**
+     * Tells whether the frame at the given position holds no audio but a Xing/Info or VBRI header describing the others.
+     */
+    boolean isInfoFrame(FileWindow file, long position) throws IOException {
+        long xing = xingPosition(position);
+        return file.startsWith(xing, "Xing") || file.startsWith(xing, "Info") || file.startsWith(vbriPosition(position), "VBRI");
+    }
+
+    /**
+     * Skips the ID3v2, ID3v1 and APE tags of an MP3 file and finds its first frame: the first header followed by
+     * another one of the same stream, which rules out stray sync patterns.
+     *
+     * @throws IOException if no frame is found
+     */
+    static Stream locate(FileWindow file) throws IOException {
+        long start = 0;
+        // ID3v2 tags, several of them in some files
+        while (file.startsWith(start, "ID3")) {
+            long tagSize = 0;
+            for (int i = 6; i < 10; i++) {
+                tagSize = (tagSize << 7) | (file.byteAt(start + i) & 0x7F);
+            }
+            boolean footer = (file.byteAt(start + 5) & 0x10) != 0;
+            start += 10 + tagSize + (footer ? 10 : 0);
+        }
+        long end = file.size();
+        if (end - 128 >= start && file.startsWith(end - 128, "TAG")) {
+            end -= 128;
+        }
+        if (end - 32 >= start && file.startsWith(end - 32, "APETAGEX")) {
+            long apeSize = file.intLittleEndianAt(end - 32 + 12) & 0xFFFFFFFFL;
+            boolean apeHeader = (file.intLittleEndianAt(end - 32 + 20) & 0x80000000) != 0;
+            end -= apeSize + (apeHeader ? 32 : 0);
+        }
+
+        for (long position = start; position + 4 <= Math.min(end, start + MAX_SYNC_SCAN); position++) {
+            MpegFrame frame = parse(file.intAt(position));
+            if (frame == null) {
+                continue;
+            }
+            long next = position + frame.length();
+            if (next == end) {
+                // a file of a single frame
+                return new Stream(position, end, frame);
+            }
+            if (next + 4 > end) {
+                continue;
+            }
+            MpegFrame following = parse(file.intAt(next));
+            if (following != null && following.sameStreamAs(frame)) {
+                return new Stream(position, end, frame);
+            }
+        }
+        throw new IOException("No MPEG audio frame found");
+    }
+
+    /**
+     * Parses a 4-byte MPEG audio frame header.
+     *
+     * @return the frame, or null if the bytes are not a valid header (free-format bitrates included)
+     */
+    static MpegFrame parse(int header) {
+        if ((header >>> 21) != 0x7FF) {
+            return null;
+        }
+        int version = (header >>> 19) & 3; // 0: MPEG 2.5, 2: MPEG 2, 3: MPEG 1
+        int layer = 4 - ((header >>> 17) & 3);
+        int bitrateIndex = (header >>> 12) & 15;
+        int sampleRateIndex = (header >>> 10) & 3;
+        if (version == 1 || layer == 4 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+            return null;
+        }
+        int padding = (header >>> 9) & 1;
+        int channels = ((header >>> 6) & 3) == 3 ? 1 : 2;
+
+        int sampleRate = SAMPLE_RATES[sampleRateIndex] >> (version == VERSION_1 ? 0 : version == 2 ? 1 : 2);
+        int bitrate = (version == VERSION_1 ? MPEG1_BITRATES : MPEG2_BITRATES)[layer - 1][bitrateIndex] * 1000;
+        int samples = layer == 1 ? 384 : layer == 3 && version != VERSION_1 ? 576 : 1152;
+        int length = layer == 1
+                ? (12 * bitrate / sampleRate + padding) * 4
+                : samples / 8 * bitrate / sampleRate + padding;
+        return new MpegFrame(version, layer, sampleRate, channels, samples, length);
+    }
+}
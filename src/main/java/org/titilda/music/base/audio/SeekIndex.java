@@ -0,0 +1,372 @@
+package org.titilda.music.base.audio;
+
+import org.titilda.music.base.model.mimetypes.SongMimeType;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Finds where to start streaming an audio file so that playback begins at a given time, on a frame boundary.
+ * <p>
+ * MP3 and FLAC frames vary in size, so their boundaries are recorded in a seek table kept next to the audio file
+ * as {@code {file}.seek}, built the first time it is needed. It holds the size of the audio file it describes, its
+ * sample rate, and then the first sample and byte offset of about ten frames per second. WAV frames
+ * all have the same size, so their offsets are computed. Ogg streams are not supported.
+ * <p>
+ * A FLAC stream is only decodable after its STREAMINFO block, so it is sent again in front of the frames; MP3
+ * frames are self-contained, and WAV streams get their header back with the sizes adjusted.
+ */
+public final class SeekIndex {
+    private SeekIndex() {}
+
+    /**
+     * How to stream a file from a given time.
+     *
+     * @param header      bytes to send before the file, empty if none are needed
+     * @param offset      offset in the file of the first frame to send, which is sent up to the end of the file
+     * @param startMillis time at which that frame starts
+     */
+    public record Seek(byte[] header, long offset, long startMillis) {}
+
+    private static final String SUFFIX = ".seek";
+    private static final int MAGIC = 0x5453454B; // "TSEK"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+    private static final int POINT_SIZE = 8 + 8;
+    private static final int POINTS_PER_SECOND = 10;
+
+    private static final int FLAC_STREAM_INFO_LENGTH = 34;
+    private static final long FLAC_TOTAL_SAMPLES_MASK = (1L << 36) - 1;
+
+    /**
+     * Where the seek table of an audio file is kept.
+     */
+    public static Path indexPathOf(Path audio) {
+        return audio.resolveSibling(audio.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Finds the last frame starting at or before the given time, building the seek table of the file if needed.
+     * Times past the end of the stream give its last frame.
+     *
+     * @return how to stream the file from that frame, or empty if the format cannot be seeked
+     * @throws IOException if the file cannot be read or is not a valid stream
+     */
+    public static Optional<Seek> seek(Path audio, SongMimeType type, long millis) throws IOException {
+        return switch (type) {
+            case MP3, FLAC -> Optional.of(seekIndexed(audio, type, millis));
+            case WAV -> Optional.of(seekWav(audio, millis));
+            case OGG -> Optional.empty();
+        };
+    }
+
+    private static Seek seekIndexed(Path audio, SongMimeType type, long millis) throws IOException {
+        ByteBuffer index = load(audio, type);
+        int sampleRate = index.getInt(HEADER_SIZE - 4);
+        int count = (index.limit() - HEADER_SIZE) / POINT_SIZE;
+        if (count == 0) {
+            throw new IOException("No frames in " + audio);
+        }
+        long target = millis * sampleRate / 1000;
+
+        // the last point at or before the target
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (index.getLong(HEADER_SIZE + middle * POINT_SIZE) <= target) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        long sample = index.getLong(HEADER_SIZE + low * POINT_SIZE);
+        long offset = index.getLong(HEADER_SIZE + low * POINT_SIZE + 8);
+        byte[] header = type == SongMimeType.FLAC ? flacHeader(audio, sample) : new byte[0];
+        return new Seek(header, offset, sample * 1000 / sampleRate);
+    }
+
+    /**
+     * Reads the seek table of a file, building it first if it is missing or describes another file.
+     */
+    private static ByteBuffer load(Path audio, SongMimeType type) throws IOException {
+        Path indexPath = indexPathOf(audio);
+        long audioSize = Files.size(audio);
+        try {
+            ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+            if (index.limit() >= HEADER_SIZE && index.getInt(0) == MAGIC && index.getInt(4) == VERSION
+                    && index.getLong(8) == audioSize && (index.limit() - HEADER_SIZE) % POINT_SIZE == 0) {
+                return index;
+            }
+        }
+        catch (NoSuchFileException _) {
+            // not built yet
+        }
+
+        byte[] built = type == SongMimeType.MP3 ? buildMp3(audio) : buildFlac(audio);
+        // concurrent builders produce the same table, so whichever lands last is as good as the others
+        Path temporary = indexPath.resolveSibling(indexPath.getFileName() + "." + UUID.randomUUID() + ".part");
+        try {
+            Files.write(temporary, built);
+            Files.move(temporary, indexPath, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+        return ByteBuffer.wrap(built);
+    }
+
+    /**
+     * Collects the points of a seek table, keeping the first frame starting in each tenth of a second.
+     */
+    private static final class Points {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final long interval;
+        private long nextSample = 0;
+
+        Points(long audioSize, int sampleRate) throws IOException {
+            this.interval = Math.max(1, sampleRate / POINTS_PER_SECOND);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(audioSize);
+            out.writeInt(sampleRate);
+        }
+
+        void add(long sample, long offset) throws IOException {
+            if (sample >= nextSample) {
+                out.writeLong(sample);
+                out.writeLong(offset);
+                nextSample = (sample / interval + 1) * interval;
+            }
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+
+    // ================ MP3 ================
+
+    private static byte[] buildMp3(Path audio) throws IOException {
+        try (FileWindow file = new FileWindow(audio)) {
+            MpegFrame.Stream stream = MpegFrame.locate(file);
+            MpegFrame first = stream.first();
+            long position = stream.firstPosition();
+            if (first.isInfoFrame(file, position)) {
+                // describes the whole file, which a stream starting elsewhere is not
+                position += first.length();
+            }
+
+            Points points = new Points(file.size(), first.sampleRate());
+            long sample = 0;
+            while (position + 4 <= stream.end()) {
+                MpegFrame frame = MpegFrame.parse(file.intAt(position));
+                if (frame == null || !frame.sameStreamAs(first)) {
+                    break;
+                }
+                points.add(sample, position);
+                sample += frame.samples();
+                position += frame.length();
+            }
+            return points.toByteArray();
+        }
+    }
+
+    // ================ FLAC ================
+
+    /**
+     * Walks the frames of a FLAC file without decoding them. A frame ends where the CRC-16 of the bytes read since
+     * its start, footer included, comes to zero and a valid frame header follows; a match inside a frame would
+     * need both checksums to agree by chance.
+     */
+    private static byte[] buildFlac(Path audio) throws IOException {
+        FlacDecoder.StreamInfo info;
+        long firstFrame;
+        try (FlacDecoder decoder = FlacDecoder.open(audio)) {
+            info = decoder.getStreamInfo();
+            firstFrame = decoder.getPosition();
+        }
+
+        // the frames are read sequentially, the window only serves to look at candidate headers
+        try (FileWindow file = new FileWindow(audio);
+             InputStream in = new BufferedInputStream(Files.newInputStream(audio), 64 * 1024)) {
+            Points points = new Points(file.size(), info.sampleRate());
+            int blockSize = flacBlockSize(file, firstFrame, info.channels());
+            if (blockSize < 0) {
+                throw new FlacDecoder.InvalidFlacException("No frame after the metadata");
+            }
+            points.add(0, firstFrame);
+
+            long sample = 0;
+            int crc = 0;
+            long position = firstFrame;
+            byte[] chunk = new byte[64 * 1024];
+            int read;
+            in.skipNBytes(firstFrame);
+            scan:
+            while ((read = in.read(chunk)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    crc = FlacCrc.updateCrc16(crc, chunk[i]);
+                    if (crc != 0) {
+                        continue;
+                    }
+                    // the checksum of a frame followed by its footer is zero, and so is the running one from then on
+                    long next = position + i + 1;
+                    int nextBlockSize = flacBlockSize(file, next, info.channels());
+                    if (nextBlockSize < 0) {
+                        continue;
+                    }
+                    sample += blockSize;
+                    if (info.totalSamples() != 0 && sample >= info.totalSamples()) {
+                        // anything after the last frame is not audio
+                        break scan;
+                    }
+                    points.add(sample, next);
+                    blockSize = nextBlockSize;
+                }
+                position += read;
+            }
+            return points.toByteArray();
+        }
+    }
+
+    /**
+     * Parses the frame header at the given position, checking its CRC-8.
+     *
+     * @return the number of samples in the frame, or -1 if there is no valid frame header of the stream there
+     */
+    private static int flacBlockSize(FileWindow file, long position, int channels) throws IOException {
+        try {
+            if (file.byteAt(position) != 0xFF || (file.byteAt(position + 1) & 0xFE) != 0xF8) {
+                return -1;
+            }
+            int blockSizeCode = file.byteAt(position + 2) >> 4;
+            int sampleRateCode = file.byteAt(position + 2) & 0xF;
+            int channelAssignment = file.byteAt(position + 3) >> 4;
+            int sampleSizeCode = (file.byteAt(position + 3) >> 1) & 7;
+            int frameChannels = channelAssignment < 8 ? channelAssignment + 1 : 2;
+            if (blockSizeCode == 0 || sampleRateCode == 15 || channelAssignment > 10 || frameChannels != channels
+                    || sampleSizeCode == 3 || sampleSizeCode == 7 || (file.byteAt(position + 3) & 1) != 0) {
+                return -1;
+            }
+
+            // the frame or sample number, coded like UTF-8 on up to 7 bytes
+            long end = position + 4;
+            int leadingOnes = Integer.numberOfLeadingZeros(~(file.byteAt(end) << 24));
+            if (leadingOnes == 1 || leadingOnes > 7) {
+                return -1;
+            }
+            end += leadingOnes == 0 ? 1 : leadingOnes;
+
+            int blockSize = switch (blockSizeCode) {
+                case 1 -> 192;
+                case 2, 3, 4, 5 -> 576 << (blockSizeCode - 2);
+                case 6 -> file.byteAt(end++) + 1;
+                case 7 -> {
+                    int size = (file.byteAt(end) << 8) | file.byteAt(end + 1);
+                    end += 2;
+                    yield size + 1;
+                }
+                default -> 256 << (blockSizeCode - 8);
+            };
+            if (sampleRateCode == 12) {
+                end += 1;
+            } else if (sampleRateCode == 13 || sampleRateCode == 14) {
+                end += 2;
+            }
+
+            int crc = 0;
+            for (long i = position; i < end; i++) {
+                crc = FlacCrc.updateCrc8(crc, file.byteAt(i));
+            }
+            return crc == file.byteAt(end) ? blockSize : -1;
+        }
+        catch (EOFException _) {
+            return -1;
+        }
+    }
+
+    /**
+     * The "fLaC" marker and a copy of the STREAMINFO block, as the only metadata of a stream starting at the given
+     * sample: its total number of samples is reduced accordingly, and its MD5 marked as unknown.
+     */
+    private static byte[] flacHeader(Path audio, long startSample) throws IOException {
+        try (FileWindow file = new FileWindow(audio)) {
+            long start = 0;
+            if (file.startsWith(0, "ID3")) {
+                long tagSize = 0;
+                for (int i = 6; i < 10; i++) {
+                    tagSize = (tagSize << 7) | (file.byteAt(i) & 0x7F);
+                }
+                boolean footer = (file.byteAt(5) & 0x10) != 0;
+                start = 10 + tagSize + (footer ? 10 : 0);
+            }
+            if (!file.startsWith(start, "fLaC") || (file.byteAt(start + 4) & 0x7F) != 0) {
+                throw new FlacDecoder.InvalidFlacException("Stream info is not the first metadata block");
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(4 + 4 + FLAC_STREAM_INFO_LENGTH);
+            header.put("fLaC".getBytes(StandardCharsets.US_ASCII));
+            // the last metadata block, of type 0
+            header.putInt(0x80000000 | FLAC_STREAM_INFO_LENGTH);
+            for (int i = 0; i < FLAC_STREAM_INFO_LENGTH; i++) {
+                header.put((byte) file.byteAt(start + 8 + i));
+            }
+
+            // sample rate, channels and sample size share these 8 bytes with the total number of samples
+            int packedPosition = 8 + 10;
+            long packed = header.getLong(packedPosition);
+            long totalSamples = packed & FLAC_TOTAL_SAMPLES_MASK;
+            long remaining = totalSamples == 0 ? 0 : Math.max(0, totalSamples - startSample);
+            header.putLong(packedPosition, (packed & ~FLAC_TOTAL_SAMPLES_MASK) | remaining);
+            for (int i = 8 + 18; i < header.capacity(); i++) {
+                header.put(i, (byte) 0);
+            }
+            return header.array();
+        }
+    }
+
+    // ================ WAV ================
+
+    private static Seek seekWav(Path audio, long millis) throws IOException {
+        WavReader.Format format;
+        long dataOffset;
+        long dataLength;
+        long fileSize = Files.size(audio);
+        try (WavReader wav = WavReader.open(audio)) {
+            format = wav.getFormat();
+            dataOffset = wav.getDataOffset();
+            long available = fileSize - dataOffset;
+            dataLength = wav.getDataLength() >= 0 ? Math.min(wav.getDataLength(), available) : available;
+        }
+        int frameSize = format.channels() * format.bytesPerSample();
+        long frame = Math.min(millis * format.sampleRate() / 1000, dataLength / frameSize);
+        long offset = dataOffset + frame * frameSize;
+
+        byte[] header;
+        try (FileWindow file = new FileWindow(audio)) {
+            header = new byte[Math.toIntExact(dataOffset)];
+            for (int i = 0; i < header.length; i++) {
+                header[i] = (byte) file.byteAt(i);
+            }
+        }
+        ByteBuffer sizes = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        sizes.putInt(4, (int) Math.min(0xFFFFFFFFL, header.length - 8 + fileSize - offset));
+        sizes.putInt(header.length - 4, (int) (dataLength - frame * frameSize));
+        return new Seek(header, offset, frame * 1000 / format.sampleRate());
+    }
+}
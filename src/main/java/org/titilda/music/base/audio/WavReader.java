@@ -0,0 +1,234 @@
+package org.titilda.music.base.audio;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reads the samples of an integer PCM WAV file (plain or WAVE_FORMAT_EXTENSIBLE, 8, 16 or 24 bits), which covers
+ * what browsers and audio tools write. Chunks other than the format and the audio data are skipped.
+ */
+public final class WavReader implements Closeable {
+    public static class UnsupportedWavException extends IOException {
+        public UnsupportedWavException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @param channels      number of interleaved channels
+     * @param sampleRate    samples per second and channel
+     * @param bitsPerSample bits of each sample
+     */
+    public record Format(int channels, int sampleRate, int bitsPerSample) {
+        public int bytesPerSample() {
+            return (bitsPerSample + 7) / 8;
+        }
+    }
+
+    private static final int FORMAT_PCM = 0x0001;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+    private static final int MAX_CHANNELS = 8;
+    // the widest rate a FLAC stream can describe
+    private static final int MAX_SAMPLE_RATE = (1 << 20) - 1;
+
+    private final InputStream in;
+    private final Format format;
+    private final long dataOffset;
+    private final long dataLength;
+    // bytes of audio data left, or -1 if the header does not say (streaming writers) and the data runs to the end
+    private long remaining;
+    private byte[] buffer = new byte[0];
+
+    private WavReader(InputStream in, Format format, long dataOffset, long dataLength) {
+        this.in = in;
+        this.format = format;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+        this.remaining = dataLength;
+    }
+
+    /**
+     * Opens a WAV file and reads its header, leaving it positioned at the first sample.
+     *
+     * @throws UnsupportedWavException if the file is not a WAV file this reader can decode
+     */
+    public static WavReader open(Path path) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(path), 64 * 1024);
+        try {
+            return readHeader(in);
+        }
+        catch (EOFException _) {
+            in.close();
+            throw new UnsupportedWavException("Truncated WAV header");
+        }
+        catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private static WavReader readHeader(InputStream in) throws IOException {
+        if (!readFourCC(in).equals("RIFF")) {
+            throw new UnsupportedWavException("Not a RIFF file");
+        }
+        readUInt32(in);
+        if (!readFourCC(in).equals("WAVE")) {
+            throw new UnsupportedWavException("Not a WAVE file");
+        }
+
+        Format format = null;
+        long offset = 12;
+        while (true) {
+            String id;
+            try {
+                id = readFourCC(in);
+            }
+            catch (EOFException _) {
+                throw new UnsupportedWavException("No audio data");
+            }
+            long size = readUInt32(in);
+            offset += 8;
+            if (id.equals("fmt ")) {
+                format = readFormat(in, size);
+            } else if (id.equals("data")) {
+                if (format == null) {
+                    throw new UnsupportedWavException("Audio data before the format");
+                }
+                return new WavReader(in, format, offset, size == 0 || size == 0xFFFFFFFFL ? -1 : size);
+            } else {
+                // chunks are padded to an even length
+                in.skipNBytes(size + (size & 1));
+            }
+            offset += size + (size & 1);
+        }
+    }
+
+    private static Format readFormat(InputStream in, long size) throws IOException {
+        if (size < 16) {
+            throw new UnsupportedWavException("Truncated format chunk");
+        }
+        int formatTag = readUInt16(in);
+        int channels = readUInt16(in);
+        long sampleRate = readUInt32(in);
+        readUInt32(in); // byte rate
+        int blockAlign = readUInt16(in);
+        int bitsPerSample = readUInt16(in);
+        long read = 16;
+        if (formatTag == FORMAT_EXTENSIBLE) {
+            if (size < 40) {
+                throw new UnsupportedWavException("Truncated extensible format chunk");
+            }
+            readUInt16(in); // extension size
+            readUInt16(in); // valid bits per sample, the container size is what gets stored
+            readUInt32(in); // channel mask
+            formatTag = readUInt16(in); // first two bytes of the sub-format GUID
+            in.skipNBytes(14);
+            read = 40;
+        }
+        in.skipNBytes(size - read + (size & 1));
+
+        if (formatTag != FORMAT_PCM) {
+            throw new UnsupportedWavException("Not integer PCM (format " + formatTag + ")");
+        }
+        if (channels < 1 || channels > MAX_CHANNELS) {
+            throw new UnsupportedWavException("Unsupported number of channels: " + channels);
+        }
+        if (sampleRate < 1 || sampleRate > MAX_SAMPLE_RATE) {
+            throw new UnsupportedWavException("Unsupported sample rate: " + sampleRate);
+        }
+        if (bitsPerSample != 8 && bitsPerSample != 16 && bitsPerSample != 24) {
+            throw new UnsupportedWavException("Unsupported sample size: " + bitsPerSample);
+        }
+        Format format = new Format(channels, (int) sampleRate, bitsPerSample);
+        if (blockAlign != channels * format.bytesPerSample()) {
+            throw new UnsupportedWavException("Unexpected block alignment: " + blockAlign);
+        }
+        return format;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * The offset of the first sample in the file.
+     */
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    /**
+     * The length in bytes of the audio data as declared by the header, or -1 if it runs to the end of the file.
+     */
+    public long getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * Reads up to {@code maxFrames} samples of every channel into {@code samples[channel]}.
+     *
+     * @return the number of samples read per channel, 0 at the end of the data; a trailing partial frame is dropped
+     */
+    public int read(int[][] samples, int maxFrames) throws IOException {
+        int frameSize = format.channels() * format.bytesPerSample();
+        long wanted = (long) maxFrames * frameSize;
+        if (remaining >= 0) {
+            wanted = Math.min(wanted, remaining);
+        }
+        if (buffer.length < wanted) {
+            buffer = new byte[(int) wanted];
+        }
+        int length = in.readNBytes(buffer, 0, (int) wanted);
+        if (remaining >= 0) {
+            remaining = length < wanted ? 0 : remaining - length;
+        }
+        int frames = length / frameSize;
+
+        int position = 0;
+        for (int i = 0; i < frames; i++) {
+            for (int channel = 0; channel < format.channels(); channel++) {
+                samples[channel][i] = switch (format.bitsPerSample()) {
+                    // 8-bit samples are unsigned
+                    case 8 -> (buffer[position] & 0xFF) - 128;
+                    case 16 -> (buffer[position] & 0xFF) | (buffer[position + 1] << 8);
+                    default -> (buffer[position] & 0xFF) | ((buffer[position + 1] & 0xFF) << 8) | (buffer[position + 2] << 16);
+                };
+                position += format.bytesPerSample();
+            }
+        }
+        return frames;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private static String readFourCC(InputStream in) throws IOException {
+        return new String(readFully(in, 4), StandardCharsets.US_ASCII);
+    }
+
+    private static int readUInt16(InputStream in) throws IOException {
+        byte[] bytes = readFully(in, 2);
+        return (bytes[0] & 0xFF) | (bytes[1] & 0xFF) << 8;
+    }
+
+    private static long readUInt32(InputStream in) throws IOException {
+        byte[] bytes = readFully(in, 4);
+        return (bytes[0] & 0xFFL) | (bytes[1] & 0xFFL) << 8 | (bytes[2] & 0xFFL) << 16 | (bytes[3] & 0xFFL) << 24;
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length < length) {
+            throw new EOFException();
+        }
+        return bytes;
+    }
+}
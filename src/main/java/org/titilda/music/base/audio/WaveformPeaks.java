@@ -0,0 +1,219 @@
+package org.titilda.music.base.audio;
+
+import org.titilda.music.base.model.mimetypes.SongMimeType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+/**
+ * Computes the waveform of an audio file as a few kilobytes of peaks, so that players can draw it without
+ * downloading and decoding the audio.
+ * <p>
+ * The peaks are kept next to the audio file as {@code {file}.peaks}, in big-endian order: the magic "PEAK", a
+ * version and the number of levels (16 bits each), then for every level, from the coarsest to the finest, its
+ * number of buckets (32 bits) followed by the lowest and highest sample of each bucket across all channels, as
+ * signed bytes scaled to &plusmn;127. Files shorter than a level have one bucket per sample at that level.
+ * <p>
+ * Only WAV and FLAC are supported, since they are the formats this package can decode.
+ */
+public final class WaveformPeaks {
+    private WaveformPeaks() {}
+
+    /**
+     * One level of peaks: the lowest and highest sample of each bucket, scaled to &plusmn;127.
+     */
+    public record Level(byte[] min, byte[] max) {
+        public int buckets() {
+            return min.length;
+        }
+    }
+
+    private static final String SUFFIX = ".peaks";
+    private static final int MAGIC = 0x5045414B; // "PEAK"
+    private static final int VERSION = 1;
+    // bucket counts of the levels, from the coarsest to the finest
+    private static final int[] LEVELS = {128, 512, 2048};
+    private static final int FRAMES_PER_READ = 4096;
+
+    /**
+     * Where the peaks of an audio file are kept.
+     */
+    public static Path peaksPathOf(Path audio) {
+        return audio.resolveSibling(audio.getFileName() + SUFFIX);
+    }
+
+    public static boolean supports(SongMimeType type) {
+        return type == SongMimeType.WAV || type == SongMimeType.FLAC;
+    }
+
+    /**
+     * Reads the coarsest level of the peaks of an audio file that has at least the given number of buckets, or the
+     * finest one if none has.
+     *
+     * @throws java.nio.file.NoSuchFileException if the peaks have not been computed
+     * @throws IOException if they cannot be read or are not in the expected format
+     */
+    public static Level readLevel(Path audio, int buckets) throws IOException {
+        ByteBuffer peaks = ByteBuffer.wrap(Files.readAllBytes(peaksPathOf(audio)));
+        try {
+            if (peaks.getInt() != MAGIC || peaks.getShort() != VERSION) {
+                throw new IOException("Not a peaks file of this version");
+            }
+            Level level = null;
+            for (int remaining = peaks.getShort(); remaining > 0 && (level == null || level.buckets() < buckets); remaining--) {
+                int count = peaks.getInt();
+                if (count < 0 || count > peaks.remaining() / 2) {
+                    throw new IOException("Truncated peaks file");
+                }
+                byte[] min = new byte[count];
+                byte[] max = new byte[count];
+                for (int i = 0; i < count; i++) {
+                    min[i] = peaks.get();
+                    max[i] = peaks.get();
+                }
+                level = new Level(min, max);
+            }
+            if (level == null) {
+                throw new IOException("Peaks file without levels");
+            }
+            return level;
+        }
+        catch (BufferUnderflowException _) {
+            throw new IOException("Truncated peaks file");
+        }
+    }
+
+    /**
+     * Decodes an audio file and writes its peaks next to it, replacing any previous ones.
+     *
+     * @throws IOException if the file cannot be decoded
+     * @throws IllegalArgumentException if the format is not {@linkplain #supports(SongMimeType) supported}
+     */
+    public static void write(Path audio, SongMimeType type) throws IOException {
+        Peaks peaks = switch (type) {
+            case WAV -> decodeWav(audio);
+            case FLAC -> decodeFlac(audio);
+            default -> throw new IllegalArgumentException("Cannot decode " + type);
+        };
+
+        Path peaksPath = peaksPathOf(audio);
+        Path temporary = peaksPath.resolveSibling(peaksPath.getFileName() + "." + UUID.randomUUID() + ".part");
+        try {
+            Files.write(temporary, peaks.toByteArray());
+            Files.move(temporary, peaksPath, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static Peaks decodeWav(Path audio) throws IOException {
+        try (WavReader wav = WavReader.open(audio)) {
+            WavReader.Format format = wav.getFormat();
+            long available = Files.size(audio) - wav.getDataOffset();
+            long dataLength = wav.getDataLength() >= 0 ? Math.min(wav.getDataLength(), available) : available;
+            long totalSamples = dataLength / ((long) format.channels() * format.bytesPerSample());
+
+            Peaks peaks = new Peaks(totalSamples, format.bitsPerSample());
+            int[][] samples = new int[format.channels()][FRAMES_PER_READ];
+            int count;
+            while ((count = wav.read(samples, FRAMES_PER_READ)) > 0) {
+                peaks.add(samples, count);
+            }
+            return peaks;
+        }
+    }
+
+    private static Peaks decodeFlac(Path audio) throws IOException {
+        long totalSamples;
+        try (FlacDecoder decoder = FlacDecoder.open(audio)) {
+            totalSamples = decoder.getStreamInfo().totalSamples();
+            if (totalSamples == 0) {
+                // not recorded by the encoder, so it takes a first pass to know how samples map to buckets
+                int count;
+                while ((count = decoder.readFrame()) > 0) {
+                    totalSamples += count;
+                }
+            }
+        }
+        try (FlacDecoder decoder = FlacDecoder.open(audio)) {
+            Peaks peaks = new Peaks(totalSamples, decoder.getStreamInfo().bitsPerSample());
+            int count;
+            while ((count = decoder.readFrame()) > 0) {
+                peaks.add(decoder.getSamples(), count);
+            }
+            return peaks;
+        }
+    }
+
+    /**
+     * Accumulates the finest level as samples are decoded; the coarser ones are derived from it.
+     */
+    private static final class Peaks {
+        private final long totalSamples;
+        private final int bitsPerSample;
+        private final int[] min;
+        private final int[] max;
+        private long position = 0;
+
+        Peaks(long totalSamples, int bitsPerSample) {
+            this.totalSamples = totalSamples;
+            this.bitsPerSample = bitsPerSample;
+            int buckets = (int) Math.min(LEVELS[LEVELS.length - 1], totalSamples);
+            this.min = new int[buckets];
+            this.max = new int[buckets];
+        }
+
+        void add(int[][] samples, int count) {
+            for (int i = 0; i < count && position < totalSamples; i++, position++) {
+                int bucket = (int) (position * min.length / totalSamples);
+                for (int[] channel : samples) {
+                    int sample = channel[i];
+                    if (sample < min[bucket]) {
+                        min[bucket] = sample;
+                    }
+                    if (sample > max[bucket]) {
+                        max[bucket] = sample;
+                    }
+                }
+            }
+        }
+
+        byte[] toByteArray() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(LEVELS.length);
+            for (int level : LEVELS) {
+                int buckets = Math.min(level, min.length);
+                out.writeInt(buckets);
+                for (int bucket = 0; bucket < buckets; bucket++) {
+                    // the buckets of the finest level this one spans
+                    int from = (int) ((long) bucket * min.length / buckets);
+                    int to = (int) ((long) (bucket + 1) * min.length / buckets);
+                    int low = 0;
+                    int high = 0;
+                    for (int i = from; i < to; i++) {
+                        low = Math.min(low, min[i]);
+                        high = Math.max(high, max[i]);
+                    }
+                    out.writeByte(scale(low));
+                    out.writeByte(scale(high));
+                }
+            }
+            return bytes.toByteArray();
+        }
+
+        private int scale(int sample) {
+            return (int) (((long) sample * 127) >> (bitsPerSample - 1));
+        }
+    }
+}
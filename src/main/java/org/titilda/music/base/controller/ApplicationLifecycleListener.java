@@ -0,0 +1,138 @@
+package org.titilda.music.base.controller;
+
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import jakarta.servlet.annotation.WebListener;
+import org.titilda.music.base.database.ConnectionPoolMetrics;
+import org.titilda.music.base.database.MigrationRunner;
+import org.titilda.music.base.database.QueryMetrics;
+import org.titilda.music.base.filters.RequestMetricsFilter;
+import org.titilda.music.base.metrics.MetricsRegistry;
+import org.titilda.music.base.util.ConfigManager;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prepares shared state before the first request is served, and runs the maintenance jobs that can go on
+ * alongside requests on a single background thread.
+ */
+@WebListener
+public final class ApplicationLifecycleListener implements ServletContextListener {
+    private ScheduledExecutorService maintenance;
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        MetricsRegistry.register(RequestMetricsFilter::writeMetrics);
+        MetricsRegistry.register(QueryMetrics::writeTo);
+        MetricsRegistry.register(ConnectionPoolMetrics::writeTo);
+        MetricsRegistry.register(ArtworkProcessingQueue::writeMetrics);
+
+        if (ConfigManager.getBoolean(ConfigManager.ConfigKey.DATABASE_MIGRATE_ON_STARTUP)) {
+            try {
+                int applied = MigrationRunner.migrate();
+                System.out.println("Database schema up to date (" + applied + " migrations applied)");
+            }
+            catch (MigrationRunner.MigrationException e) {
+                System.err.println(e.getMessage());
+                // refuse to start against a schema the code does not match
+                throw new IllegalStateException(e);
+            }
+        }
+
+        try {
+            AudioBlobStore.init();
+        }
+        catch (IOException e) {
+            System.err.println("Could not create the audio blob store: " + e.getMessage());
+            throw new IllegalStateException(e);
+        }
+
+        maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+            thread.setName("maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Instant startedAt = Instant.now();
+        boolean backfill = ConfigManager.getBoolean(ConfigManager.ConfigKey.ARTWORK_BACKFILL_ON_STARTUP);
+        // artworks still pending or without variants are served as the default or at full size in the meantime,
+        // and songs not yet moved to the blob store from their own file, so requests need not wait for any of this
+        maintenance.execute(() -> {
+            try {
+                int recovered = ArtworkProcessingQueue.recoverPending(startedAt);
+                if (recovered > 0) {
+                    System.out.println("Requeued " + recovered + " pending artworks");
+                }
+                if (backfill) {
+                    int processed = AssetCrudManager.backfillArtworkVariants();
+                    System.out.println("Artwork variants generated for " + processed + " existing artworks");
+                }
+            }
+            catch (IOException e) {
+                System.err.println("Artwork maintenance failed: " + e.getMessage());
+            }
+            catch (InterruptedException _) {
+                // shutting down
+            }
+        });
+        maintenance.execute(() -> {
+            try {
+                int migrated = AudioBlobStore.migrateLegacySongs();
+                if (migrated > 0) {
+                    System.out.println("Moved the audio of " + migrated + " songs to the blob store");
+                }
+                // after the migration, so that legacy WAV songs are converted too
+                if (FlacCompaction.ENABLED) {
+                    int converted = FlacCompaction.compactWavBacklog();
+                    if (converted > 0) {
+                        System.out.println("Converted " + converted + " WAV files to FLAC");
+                    }
+                }
+                // last, so that it sees the final audio of every song
+                int probed = AudioMetadataExtractor.backfill();
+                if (probed > 0) {
+                    System.out.println("Audio metadata read for " + probed + " songs");
+                }
+                int waveforms = WaveformGenerator.backfill();
+                if (waveforms > 0) {
+                    System.out.println("Queued the waveforms of " + waveforms + " audio files");
+                }
+            }
+            catch (SQLException e) {
+                System.err.println("Audio blob migration failed: " + e.getMessage());
+            }
+            catch (InterruptedException _) {
+                // shutting down
+            }
+        });
+
+        long gcInterval = Math.max(1, ConfigManager.getInt(ConfigManager.ConfigKey.AUDIO_BLOB_GC_INTERVAL_MINUTES));
+        maintenance.scheduleWithFixedDelay(() -> {
+            try {
+                int collected = AudioBlobStore.collectGarbage();
+                if (collected > 0) {
+                    System.out.println("Deleted " + collected + " unreferenced audio blobs");
+                }
+            }
+            catch (SQLException e) {
+                // a failed run must not cancel the next ones
+                System.err.println("Audio blob garbage collection failed: " + e.getMessage());
+            }
+        }, gcInterval, gcInterval, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+        }
+        ArtworkProcessingQueue.shutdown();
+        WaveformGenerator.shutdown();
+    }
+}
@@ -0,0 +1,241 @@
+package org.titilda.music.base.controller;
+
+import org.titilda.music.base.database.DAO;
+import org.titilda.music.base.database.DatabaseManager;
+import org.titilda.music.base.metrics.PrometheusWriter;
+import org.titilda.music.base.util.ConfigManager;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Processes uploaded artworks on a small pool of worker threads, after the song they belong to has been committed,
+ * so that upload requests neither decode images nor hold a connection while doing so.
+ * <p>
+ * The raw upload is parked as {@code {id}.pending} next to the artworks until a worker has produced the webp
+ * variants; meanwhile the default artwork is served. Pending files left over by a shutdown are picked up again by
+ * {@link #recoverPending(Instant)}.
+ * <p>
+ * The number of artworks waiting or in progress is bounded: uploads reserve a slot before doing any work, and are
+ * rejected with {@link QueueFullException} when none is free.
+ */
+public final class ArtworkProcessingQueue {
+    private ArtworkProcessingQueue() {}
+
+    public static class QueueFullException extends Exception {
+        public QueueFullException() {
+            super();
+        }
+    }
+
+    /**
+     * A snapshot of the queue counters; latencies are measured from submission to completion.
+     */
+    public record Stats(int queued, int active, int capacity, long completed, long failed, long rejected,
+                        long totalLatencyMillis, long maxLatencyMillis) {}
+
+    private static final String PENDING_SUFFIX = ".pending";
+
+    private static final int WORKERS = Math.max(1, ConfigManager.getInt(ConfigManager.ConfigKey.ARTWORK_WORKERS));
+    private static final int CAPACITY = Math.max(WORKERS, ConfigManager.getInt(ConfigManager.ConfigKey.ARTWORK_QUEUE_CAPACITY));
+
+    // one permit per artwork waiting or in progress, so the executor queue itself never grows beyond CAPACITY
+    private static final Semaphore SLOTS = new Semaphore(CAPACITY);
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            WORKERS, WORKERS, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+            runnable -> {
+                Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+                thread.setName("artwork-worker-" + THREAD_COUNTER.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+    );
+
+    private static final LongAdder COMPLETED = new LongAdder();
+    private static final LongAdder FAILED = new LongAdder();
+    private static final LongAdder REJECTED = new LongAdder();
+    private static final LongAdder TOTAL_LATENCY_NANOS = new LongAdder();
+    private static final LongAccumulator MAX_LATENCY_NANOS = new LongAccumulator(Math::max, 0L);
+
+    /**
+     * A slot in the queue, held from the start of an upload until its artwork is submitted or the upload fails.
+     */
+    public static final class Reservation {
+        private final AtomicBoolean open = new AtomicBoolean(true);
+
+        private Reservation() {}
+
+        /**
+         * Hands the pending artwork of a committed song over to the workers.
+         */
+        public void submit(UUID songId) {
+            if (!open.getAndSet(false)) {
+                throw new IllegalStateException("Reservation already used");
+            }
+            enqueue(songId);
+        }
+
+        /**
+         * Gives the slot back without processing anything; does nothing if the reservation was already used.
+         */
+        public void cancel() {
+            if (open.getAndSet(false)) {
+                SLOTS.release();
+            }
+        }
+    }
+
+    /**
+     * Reserves a slot for an artwork that is about to be uploaded.
+     *
+     * @throws QueueFullException if the workers are saturated and the upload should be retried later
+     */
+    public static Reservation reserve() throws QueueFullException {
+        if (!SLOTS.tryAcquire()) {
+            REJECTED.increment();
+            throw new QueueFullException();
+        }
+        return new Reservation();
+    }
+
+    static Path getPendingPath(UUID songId) {
+        return Path.of(AssetCrudManager.ARTWORKS_PATH, songId + PENDING_SUFFIX);
+    }
+
+    /**
+     * Runs once a slot has been acquired for the song; the slot is released when the work is done.
+     */
+    private static void enqueue(UUID songId) {
+        long submittedAt = System.nanoTime();
+        try {
+            EXECUTOR.execute(() -> {
+                try {
+                    AssetCrudManager.processPendingArtwork(songId, getPendingPath(songId));
+                    COMPLETED.increment();
+                }
+                catch (IOException | RuntimeException e) {
+                    FAILED.increment();
+                    System.err.println("Could not process artwork of song " + songId + ": " + e.getMessage());
+                    try {
+                        // an artwork that cannot be decoded now will not decode later either
+                        Files.deleteIfExists(getPendingPath(songId));
+                    }
+                    catch (IOException _) {
+                        // retried at the next startup
+                    }
+                }
+                finally {
+                    long latency = System.nanoTime() - submittedAt;
+                    TOTAL_LATENCY_NANOS.add(latency);
+                    MAX_LATENCY_NANOS.accumulate(latency);
+                    SLOTS.release();
+                }
+            });
+        }
+        catch (RejectedExecutionException _) {
+            // shutting down: the pending file stays for the next startup
+            SLOTS.release();
+        }
+    }
+
+    /**
+     * Requeues the pending artworks left over by a previous run, waiting for free slots as needed. Pending files of
+     * songs that cannot be found are skipped. Only files older than the given instant are considered, so that
+     * uploads in progress are left alone.
+     *
+     * @return the number of artworks requeued
+     * @throws IOException if the artworks directory cannot be listed
+     * @throws InterruptedException if interrupted while waiting for a slot
+     */
+    public static int recoverPending(Instant olderThan) throws IOException, InterruptedException {
+        List<UUID> songIds = new ArrayList<>();
+        try (DirectoryStream<Path> pendingFiles = Files.newDirectoryStream(Path.of(AssetCrudManager.ARTWORKS_PATH), "*" + PENDING_SUFFIX);
+             Connection connection = DatabaseManager.getConnection()) {
+            DAO dao = new DAO(connection);
+            for (Path pendingPath : pendingFiles) {
+                if (!Files.getLastModifiedTime(pendingPath).toInstant().isBefore(olderThan)) {
+                    continue;
+                }
+                String name = pendingPath.getFileName().toString();
+                UUID songId;
+                try {
+                    songId = UUID.fromString(name.substring(0, name.length() - PENDING_SUFFIX.length()));
+                }
+                catch (IllegalArgumentException _) {
+                    continue;
+                }
+                if (dao.getSongById(songId).isEmpty()) {
+                    // most likely an upload that never committed; kept, since a lookup error looks the same
+                    System.err.println("Skipping pending artwork without a song: " + pendingPath);
+                    continue;
+                }
+                songIds.add(songId);
+            }
+        }
+        catch (SQLException e) {
+            throw new IOException("Could not look up songs with pending artworks", e);
+        }
+
+        // the connection is released first, as waiting for slots can take a while
+        for (UUID songId : songIds) {
+            SLOTS.acquire();
+            enqueue(songId);
+        }
+        return songIds.size();
+    }
+
+    public static Stats getStats() {
+        return new Stats(
+                EXECUTOR.getQueue().size(),
+                EXECUTOR.getActiveCount(),
+                CAPACITY,
+                COMPLETED.sum(),
+                FAILED.sum(),
+                REJECTED.sum(),
+                TimeUnit.NANOSECONDS.toMillis(TOTAL_LATENCY_NANOS.sum()),
+                TimeUnit.NANOSECONDS.toMillis(MAX_LATENCY_NANOS.get())
+        );
+    }
+
+    public static void writeMetrics(PrometheusWriter out) {
+        Stats stats = getStats();
+        out.family("titilda_artwork_queue_artworks", "gauge", "Artworks waiting or being processed.")
+                .sample("titilda_artwork_queue_artworks", stats.queued(), "state", "queued")
+                .sample("titilda_artwork_queue_artworks", stats.active(), "state", "active");
+        out.family("titilda_artwork_queue_capacity", "gauge", "Artworks that can wait or be processed at once.")
+                .sample("titilda_artwork_queue_capacity", stats.capacity());
+        out.family("titilda_artwork_processed_total", "counter", "Artworks processed, by outcome.")
+                .sample("titilda_artwork_processed_total", stats.completed(), "outcome", "completed")
+                .sample("titilda_artwork_processed_total", stats.failed(), "outcome", "failed");
+        out.family("titilda_artwork_rejected_total", "counter", "Uploads rejected because the queue was full.")
+                .sample("titilda_artwork_rejected_total", stats.rejected());
+        out.family("titilda_artwork_latency_seconds_total", "counter", "Sum of the times from submission to completion.")
+                .sample("titilda_artwork_latency_seconds_total", stats.totalLatencyMillis() / 1000.0);
+    }
+
+    /**
+     * Stops the workers; artworks not yet processed stay pending until the next startup.
+     */
+    public static void shutdown() {
+        EXECUTOR.shutdownNow();
+    }
+}
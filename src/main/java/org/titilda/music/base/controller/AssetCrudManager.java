@@ -1,6 +1,9 @@
 package org.titilda.music.base.controller;
 
 import com.sksamuel.scrimage.webp.WebpWriter;
+import jakarta.servlet.http.HttpServletRequest;
+import org.titilda.music.base.audio.SeekIndex;
+import org.titilda.music.base.audio.WaveformPeaks;
 import org.titilda.music.base.database.DAO;
 import org.titilda.music.base.database.DatabaseManager;
 import org.titilda.music.base.model.Song;
@@ -12,14 +15,22 @@ import org.titilda.music.base.util.ConfigManager;
 import com.sksamuel.scrimage.ImmutableImage;
 import org.titilda.music.base.util.MultiPartValidator;
 
-import java.io.File;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Optional;
 import java.util.UUID;
 
 public final class AssetCrudManager {
@@ -32,90 +43,395 @@ public final class AssetCrudManager {
     public static final String SONGS_PATH = ASSET_PATH + "/" + SONG_SUBDIR;
     public static final String ARTWORKS_PATH = ASSET_PATH + "/" + ARTWORK_SUBDIR;
     public static final String DEFAULT_ARTWORK_RESOURCE = "assets/default_artwork.webp";
+    public static final String ARTWORK_MIME_TYPE = "image/webp";
     public static final int MAX_IMAGE_SIZE = 512;
 
-    private static void processAndSaveImage(Path path, InputStream is) throws IOException {
+    private static Path getArtworkPath(UUID songId) {
+        return Path.of(ARTWORKS_PATH, songId + ".webp");
+    }
+
+    /**
+     * Where the variant of an artwork bounded by the given size is stored; the largest size is the main artwork file.
+     */
+    private static Path getArtworkPath(UUID songId, int size) {
+        return size >= MAX_IMAGE_SIZE ? getArtworkPath(songId) : Path.of(ARTWORKS_PATH, songId + "@" + size + ".webp");
+    }
+
+    private static void processAndSaveImage(UUID songId, InputStream is) throws IOException {
         ImmutableImage image = ImmutableImage.loader().fromStream(is);
         if (image.width > MAX_IMAGE_SIZE || image.height > MAX_IMAGE_SIZE) {
             image = image.max(MAX_IMAGE_SIZE, MAX_IMAGE_SIZE);
         }
-        image.output(new WebpWriter(), path);
+        writeWebp(image, getArtworkPath(songId));
+        saveArtworkVariants(songId, image);
     }
 
-    public static void writeArtworkImageToStream(Song song, OutputStream os) throws IOException {
-        File artworkFile = new File(ARTWORKS_PATH, song.getId() + ".webp");
-        if (artworkFile.exists()) {
-            Files.copy(artworkFile.toPath(), os);
-        } else
-            try (InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream(DEFAULT_ARTWORK_RESOURCE)) {
-                is.transferTo(os);
+    /**
+     * Writes the smaller variants of an artwork from the full-size image. Every size of the ladder gets a file, so
+     * that its presence tells whether the artwork has been processed; images that already fit a size are copied as-is.
+     */
+    private static void saveArtworkVariants(UUID songId, ImmutableImage image) throws IOException {
+        for (int size : Song.ARTWORK_SIZES) {
+            if (size >= MAX_IMAGE_SIZE) {
+                continue;
+            }
+            Path variantPath = getArtworkPath(songId, size);
+            if (image.width > size || image.height > size) {
+                writeWebp(image.max(size, size), variantPath);
+            } else {
+                Files.copy(getArtworkPath(songId), variantPath, StandardCopyOption.REPLACE_EXISTING);
             }
+        }
+    }
+
+    /**
+     * Encodes to a temporary file first, so that a half-written artwork is never served.
+     */
+    private static void writeWebp(ImmutableImage image, Path path) throws IOException {
+        Path tempPath = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            image.output(new WebpWriter(), tempPath);
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(tempPath);
+        }
     }
 
-    public static void writeSongToStream(Song song, OutputStream os) throws IOException {
-        File songFile = new File(SONGS_PATH, song.getId() + "." + SongMimeType.fromMimeType(song.getAudioMimeType()).getExtension());
-        if (songFile.exists()) {
-            Files.copy(songFile.toPath(), os);
-        } else throw new IOException("Song file not found");
+    private static void deleteArtworkFiles(UUID songId) {
+        for (int size : Song.ARTWORK_SIZES) {
+            try {
+                Files.deleteIfExists(getArtworkPath(songId, size));
+            }
+            catch (IOException _) {
+                // at least we tried
+            }
+        }
     }
 
-    public static void createSongFromFormData(CreateSongFormData formData, User owner) throws MultiPartValidator.InvalidFormDataException {
-        Path songPath = null;
-        Path artworkPath = null;
+    /**
+     * Generates the missing variants of every stored artwork, e.g. those uploaded before the ladder existed.
+     * Stops early, leaving the remaining artworks for the next run, if the calling thread is interrupted.
+     *
+     * @return the number of artworks whose variants were generated
+     * @throws IOException if the artworks directory cannot be listed
+     */
+    public static int backfillArtworkVariants() throws IOException {
+        int processed = 0;
+        try (DirectoryStream<Path> artworks = Files.newDirectoryStream(Path.of(ARTWORKS_PATH), "*.webp")) {
+            for (Path artworkPath : artworks) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                String name = artworkPath.getFileName().toString();
+                UUID songId;
+                try {
+                    songId = UUID.fromString(name.substring(0, name.length() - ".webp".length()));
+                }
+                catch (IllegalArgumentException _) {
+                    // a variant, not a main artwork file
+                    continue;
+                }
+                boolean complete = Song.ARTWORK_SIZES.stream().allMatch(size -> Files.exists(getArtworkPath(songId, size)));
+                if (complete) {
+                    continue;
+                }
+                try {
+                    saveArtworkVariants(songId, ImmutableImage.loader().fromPath(artworkPath));
+                    processed++;
+                }
+                catch (IOException e) {
+                    System.err.println("Could not generate artwork variants for " + songId + ": " + e.getMessage());
+                }
+            }
+        }
+        return processed;
+    }
 
-        try (Connection con = DatabaseManager.getConnection(); InputStream is = formData.songFile.getInputStream()) {
-            con.setAutoCommit(false);
-            DAO dao = new DAO(con);
-            SongMimeType songMimeType = SongMimeType.fromMimeType(formData.songFile.getContentType());
-            UUID songId = UUID.randomUUID();
+    private static StaticAsset defaultArtwork;
 
-            songPath = Path.of(SONGS_PATH, songId.toString() + "." + songMimeType.getExtension());
+    /**
+     * Describes the artwork of a song, falling back to the bundled default artwork if the song has none.
+     */
+    static StaticAsset getArtworkAsset(Song song) throws IOException {
+        try {
+            return StaticAsset.ofFile(getArtworkPath(song.getId()), ARTWORK_MIME_TYPE);
+        }
+        catch (NoSuchFileException _) {
+            return getDefaultArtworkAsset();
+        }
+    }
 
-            Files.copy(is, songPath);
-            if (formData.artwork != null) {
+    /**
+     * Describes the smallest variant of the artwork of a song that is at least the given size, falling back to the
+     * full-size artwork when that variant has not been generated (yet).
+     */
+    static StaticAsset getArtworkAsset(Song song, int size) throws IOException {
+        int variant = Song.ARTWORK_SIZES.stream()
+                .filter(s -> s >= size)
+                .findFirst()
+                .orElse(MAX_IMAGE_SIZE);
+        if (variant < MAX_IMAGE_SIZE) {
+            try {
+                return StaticAsset.ofFile(getArtworkPath(song.getId(), variant), ARTWORK_MIME_TYPE);
+            }
+            catch (NoSuchFileException _) {
+                // not processed yet
+            }
+        }
+        return getArtworkAsset(song);
+    }
 
-                artworkPath = Path.of(ARTWORKS_PATH, songId + ".webp");
-                try (InputStream artworkIs = formData.artwork.getInputStream()) {
-                    processAndSaveImage(artworkPath, artworkIs);
+    private static synchronized StaticAsset getDefaultArtworkAsset() throws IOException {
+        if (defaultArtwork == null) {
+            try (InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream(DEFAULT_ARTWORK_RESOURCE)) {
+                if (is == null) {
+                    throw new IOException("Default artwork resource not found");
                 }
+                defaultArtwork = StaticAsset.ofBytes(is.readAllBytes(), ARTWORK_MIME_TYPE);
             }
+        }
+        return defaultArtwork;
+    }
 
-            dao.insertSong(
-                    new Song(
-                            songId,
-                            formData.songName,
-                            formData.albumName,
-                            formData.artist,
-                            songMimeType.getMimeType(),
-                            formData.albumYear,
-                            formData.genre,
-                            owner.getUsername()
-                    )
-            );
+    /**
+     * Describes the audio file of a song.
+     *
+     * @throws NoSuchFileException if the file is missing from the asset store
+     */
+    static StaticAsset getSongAsset(Song song) throws IOException {
+        return StaticAsset.ofFile(getSongPath(song), song.getAudioMimeType());
+    }
+
+    /**
+     * Where the audio of a song is stored: its blob, or its own file for songs not yet moved to the blob store.
+     */
+    public static Path getSongPath(Song song) {
+        return song.getAudioSha256() != null ? AudioBlobStore.getBlobPath(song.getAudioSha256()) : getLegacySongPath(song);
+    }
 
-            con.commit();
+    /**
+     * Describes the waveform peaks of the audio of a song.
+     *
+     * @throws NoSuchFileException if they have not been computed, or cannot be for its format
+     */
+    static StaticAsset getWaveformAsset(Song song) throws IOException {
+        return StaticAsset.ofFile(WaveformPeaks.peaksPathOf(getSongPath(song)), "application/octet-stream");
+    }
+
+    /**
+     * Reads the waveform of a song at roughly the given resolution, see {@link WaveformPeaks#readLevel(Path, int)}.
+     *
+     * @return empty if it has not been computed, or cannot be for its format
+     */
+    public static Optional<WaveformPeaks.Level> getWaveform(Song song, int buckets) {
+        try {
+            return Optional.of(WaveformPeaks.readLevel(getSongPath(song), buckets));
         }
-        catch (SQLException | IOException e) {
-            // Roll-back operations to ensure fs is not in stale condition
-            if (songPath != null) {
-                try {
-                    Files.deleteIfExists(songPath);
-                }
-                catch (IOException _) {
-                    // at least we tried
+        catch (NoSuchFileException _) {
+            return Optional.empty();
+        }
+        catch (IOException e) {
+            System.err.println("Could not read the waveform of song " + song.getId() + ": " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Finds where to start streaming the audio of a song for playback to begin at the given time.
+     *
+     * @return empty if its format cannot be seeked, or its file cannot be indexed
+     */
+    static Optional<SeekIndex.Seek> seekSong(Song song, long millis) {
+        try {
+            return SeekIndex.seek(getSongPath(song), SongMimeType.fromMimeType(song.getAudioMimeType()), millis);
+        }
+        catch (IOException e) {
+            System.err.println("Could not seek in the audio of song " + song.getId() + ": " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    static Path getLegacySongPath(Song song) {
+        return Path.of(SONGS_PATH, song.getId() + "." + SongMimeType.fromMimeType(song.getAudioMimeType()).getExtension());
+    }
+
+    /**
+     * Copies a slice of a file to the given stream, letting the channel transfer the bytes directly where possible.
+     *
+     * @param path   the file to read from
+     * @param start  offset of the first byte to copy
+     * @param length number of bytes to copy
+     * @param os     the destination stream
+     * @throws IOException if the file cannot be read or the stream cannot be written
+     */
+    public static void writeFileRangeToStream(Path path, long start, long length, OutputStream os) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(os);
+            long position = start;
+            long remaining = length;
+            while (remaining > 0) {
+                long transferred = channel.transferTo(position, remaining, target);
+                if (transferred <= 0) {
+                    throw new EOFException("Unexpected end of file " + path);
                 }
+                position += transferred;
+                remaining -= transferred;
             }
+        }
+    }
 
-            if (artworkPath != null) {
-                try {
-                    Files.deleteIfExists(artworkPath);
+    /**
+     * Turns a parked artwork upload into the served webp variants, then removes it.
+     */
+    static void processPendingArtwork(UUID songId, Path pendingPath) throws IOException {
+        try (InputStream is = Files.newInputStream(pendingPath)) {
+            processAndSaveImage(songId, is);
+        }
+        catch (IOException | RuntimeException e) {
+            deleteArtworkFiles(songId);
+            throw e;
+        }
+        Files.deleteIfExists(pendingPath);
+    }
+
+    /**
+     * Where the files of a song upload go: the audio file next to the blob store, to be moved in place once its hash
+     * is known, and the artwork to its pending file, once a slot in the {@link ArtworkProcessingQueue} has been
+     * reserved for it.
+     */
+    private static final class SongUpload implements MultiPartValidator.UploadDestination<ArtworkProcessingQueue.QueueFullException> {
+        private final UUID songId = UUID.randomUUID();
+        private ArtworkProcessingQueue.Reservation artworkReservation;
+
+        @Override
+        public Path resolve(String fieldName, String contentType) throws ArtworkProcessingQueue.QueueFullException {
+            return switch (fieldName) {
+                case CreateSongFormData.SONG_FILE_FIELD -> AudioBlobStore.newIncomingPath();
+                case CreateSongFormData.ARTWORK_FIELD -> {
+                    artworkReservation = ArtworkProcessingQueue.reserve();
+                    yield ArtworkProcessingQueue.getPendingPath(songId);
                 }
-                catch (IOException _) {
-                    // at least we tried
+                default -> throw new IllegalArgumentException("Unexpected file field: " + fieldName);
+            };
+        }
+
+        private void cancel() {
+            if (artworkReservation != null) {
+                artworkReservation.cancel();
+            }
+        }
+    }
+
+    private record StoredAudio(String sha256, String mimeType) {}
+
+    /**
+     * Copies the audio metadata of a song sharing the same audio; left null if that song has not been probed yet,
+     * in which case the backfill takes care of both.
+     */
+    private static void copyAudioMetadata(Song from, Song to) {
+        to.setAudioSize(from.getAudioSize());
+        to.setDurationMillis(from.getDurationMillis());
+        to.setBitrate(from.getBitrate());
+        to.setSampleRate(from.getSampleRate());
+        to.setChannels(from.getChannels());
+    }
+
+    /**
+     * Moves an uploaded audio file into the {@link AudioBlobStore}, as FLAC if it is a WAV file that
+     * {@link FlacCompaction} can convert.
+     */
+    private static StoredAudio storeUploadedAudio(MultiPartValidator.UploadedFile songFile) throws SQLException, IOException {
+        SongMimeType mimeType = SongMimeType.fromMimeType(songFile.contentType());
+        if (mimeType == SongMimeType.WAV && FlacCompaction.ENABLED) {
+            Optional<String> flacSha256 = FlacCompaction.storeAsFlac(songFile.path(), songFile.sha256());
+            if (flacSha256.isPresent()) {
+                Files.deleteIfExists(songFile.path());
+                return new StoredAudio(flacSha256.get(), SongMimeType.FLAC.getMimeType());
+            }
+        }
+        AudioBlobStore.store(songFile.path(), songFile.sha256(), songFile.size());
+        return new StoredAudio(songFile.sha256(), mimeType.getMimeType());
+    }
+
+    /**
+     * Reads a song upload and inserts the song. The audio file is written once while the request is read, hashed on
+     * the way, and stored in the {@link AudioBlobStore} unless the store already holds the same content. Instead of
+     * the file, the client may send the hash of audio it already uploaded to one of its songs. WAV files are stored
+     * converted to FLAC, see {@link FlacCompaction}. The artwork, if any, is only parked and processed by the
+     * {@link ArtworkProcessingQueue} once the song has been committed, and so is the waveform by the
+     * {@link WaveformGenerator}.
+     *
+     * @throws MultiPartValidator.InvalidFieldDataException if the hash does not match any song of the user
+     * @throws ArtworkProcessingQueue.QueueFullException if an artwork was uploaded but the queue has no free slot
+     */
+    public static void createSongFromRequest(HttpServletRequest request, User owner)
+            throws MultiPartValidator.InvalidFormDataException, MultiPartValidator.InvalidFieldDataException,
+            MultiPartValidator.InvalidDataSizeException, ArtworkProcessingQueue.QueueFullException {
+        SongUpload upload = new SongUpload();
+        CreateSongFormData formData;
+        try {
+            formData = new CreateSongFormData(request, upload);
+        }
+        catch (Exception e) {
+            upload.cancel();
+            throw e;
+        }
+
+        try {
+            Song song = new Song(
+                    upload.songId,
+                    formData.songName,
+                    formData.albumName,
+                    formData.artist,
+                    null,
+                    formData.albumYear,
+                    formData.genre,
+                    owner.getUsername()
+            );
+            if (formData.songFile != null) {
+                StoredAudio audio = storeUploadedAudio(formData.songFile);
+                song.setAudioMimeType(audio.mimeType());
+                song.setAudioSha256(audio.sha256());
+                AudioMetadataExtractor.probe(song);
+            }
+
+            // the connection is only taken once the body has been read and the audio stored; callers must not hold
+            // one of their own meanwhile, or it would sit idle in the pool for the whole upload
+            try (Connection con = DatabaseManager.getConnection()) {
+                con.setAutoCommit(false);
+                DAO dao = new DAO(con);
+
+                if (formData.songFile == null) {
+                    Song knownSong = dao.findSongOfOwnerByAudioSha256(owner.getUsername(), formData.audioSha256)
+                            .orElseThrow(() -> formData.invalidField(CreateSongFormData.AUDIO_SHA256_FIELD, "No song with this content"));
+                    song.setAudioMimeType(knownSong.getAudioMimeType());
+                    song.setAudioSha256(knownSong.getAudioSha256());
+                    copyAudioMetadata(knownSong, song);
                 }
+                dao.insertSong(song);
+
+                con.commit();
             }
+            WaveformGenerator.submit(song);
+        }
+        catch (MultiPartValidator.InvalidFieldDataException | RuntimeException e) {
+            // unexpected failures must release the artwork slot and the parked files as well
+            formData.deleteUploadedFiles();
+            upload.cancel();
+            throw e;
+        }
+        catch (SQLException | IOException e) {
+            // Roll-back operations to ensure fs is not in stale condition; a blob already moved in place is left to
+            // the garbage collector
+            formData.deleteUploadedFiles();
+            upload.cancel();
             e.printStackTrace();
             throw new MultiPartValidator.InvalidFormDataException(e.getMessage());
         }
+
+        if (formData.artwork != null) {
+            upload.artworkReservation.submit(upload.songId);
+        }
     }
 }
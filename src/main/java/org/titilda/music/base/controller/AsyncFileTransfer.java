@@ -0,0 +1,130 @@
+package org.titilda.music.base.controller;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams a slice of a file to the client using non-blocking servlet I/O, so that slow listeners do not hold a
+ * request thread for the whole duration of the transfer: the container calls back whenever the socket can accept
+ * more data. A few bytes held in memory may be sent before the slice.
+ */
+final class AsyncFileTransfer implements WriteListener, AsyncListener {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // generous, since a paused audio element may keep a connection open for a while
+    private static final long ASYNC_TIMEOUT_MS = 10L * 60L * 1000L;
+
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream os;
+    private final FileChannel channel;
+    private byte[] prefix;
+    private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+    private long position;
+    private long remaining;
+    private boolean completed = false;
+
+    private AsyncFileTransfer(AsyncContext asyncContext, ServletOutputStream os, FileChannel channel, byte[] prefix, long start, long length) {
+        this.asyncContext = asyncContext;
+        this.os = os;
+        this.channel = channel;
+        this.prefix = prefix;
+        this.position = start;
+        this.remaining = length;
+    }
+
+    /**
+     * Puts the request in asynchronous mode and starts sending the prefix, then the given slice of the file.
+     * The caller must not touch the response afterwards.
+     */
+    static void start(HttpServletRequest req, HttpServletResponse resp, byte[] prefix, Path path, long start, long length) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        AsyncContext asyncContext;
+        try {
+            asyncContext = req.startAsync(req, resp);
+        }
+        catch (IllegalStateException e) {
+            channel.close();
+            throw e;
+        }
+        asyncContext.setTimeout(ASYNC_TIMEOUT_MS);
+        AsyncFileTransfer transfer = new AsyncFileTransfer(asyncContext, resp.getOutputStream(), channel, prefix, start, length);
+        asyncContext.addListener(transfer);
+        transfer.os.setWriteListener(transfer);
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        if (prefix.length > 0 && os.isReady()) {
+            os.write(prefix);
+            prefix = new byte[0];
+        }
+        while (remaining > 0 && os.isReady()) {
+            buffer.clear();
+            buffer.limit((int) Math.min(CHUNK_SIZE, remaining));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("File shrank while being sent");
+            }
+            os.write(buffer.array(), 0, read);
+            position += read;
+            remaining -= read;
+        }
+        if (remaining == 0 && prefix.length == 0) {
+            complete();
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        // most likely the client went away (e.g. the user seeked elsewhere)
+        complete();
+    }
+
+    private synchronized void complete() {
+        if (!completed) {
+            completed = true;
+            asyncContext.complete();
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        }
+        catch (IOException _) {
+            // nothing left to do with it anyway
+        }
+    }
+
+    // ================ AsyncListener ================
+    @Override
+    public void onComplete(AsyncEvent event) {
+        closeChannel();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        complete();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        complete();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        // not re-dispatched
+    }
+}
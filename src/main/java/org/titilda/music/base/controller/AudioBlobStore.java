@@ -0,0 +1,223 @@
+package org.titilda.music.base.controller;
+
+import org.titilda.music.base.audio.SeekIndex;
+import org.titilda.music.base.audio.WaveformPeaks;
+import org.titilda.music.base.database.DAO;
+import org.titilda.music.base.database.DatabaseManager;
+import org.titilda.music.base.model.Song;
+import org.titilda.music.base.util.ConfigManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Content-addressed storage for audio: every distinct file is kept once, at {@code blobs/{ab}/{sha256}}, however
+ * many songs point at it. The AudioBlobs table holds one row per blob with the number of songs referencing it,
+ * which the database keeps up to date.
+ * <p>
+ * A blob is claimed (its row created or touched) before its file is put in place, and the garbage collector only
+ * considers blobs that have been unreferenced and unclaimed for a grace period, deleting their files while holding
+ * their rows. A claim racing with a collection therefore waits for it, and then finds the file gone and puts it back.
+ */
+public final class AudioBlobStore {
+    private AudioBlobStore() {}
+
+    private static final String BLOBS_SUBDIR = "blobs";
+    private static final String INCOMING_SUBDIR = "incoming";
+    private static final int BATCH_SIZE = 100;
+
+    public static final String BLOBS_PATH = AssetCrudManager.ASSET_PATH + "/" + BLOBS_SUBDIR;
+    // uploads land next to the blobs, so that moving them in place is a rename
+    private static final String INCOMING_PATH = BLOBS_PATH + "/" + INCOMING_SUBDIR;
+
+    private static final long GC_GRACE_MILLIS = ConfigManager.getInt(ConfigManager.ConfigKey.AUDIO_BLOB_GC_GRACE_MINUTES) * 60_000L;
+
+    /**
+     * Creates the directories the store writes to.
+     */
+    public static void init() throws IOException {
+        Files.createDirectories(Path.of(INCOMING_PATH));
+    }
+
+    public static Path getBlobPath(String sha256) {
+        return Path.of(BLOBS_PATH, sha256.substring(0, 2), sha256);
+    }
+
+    /**
+     * A fresh path to receive an upload, on the same file system as the blobs.
+     */
+    static Path newIncomingPath() {
+        return Path.of(INCOMING_PATH, UUID.randomUUID() + ".part");
+    }
+
+    /**
+     * Claims the blob with the given content for a song that is about to point at it, and moves the incoming file in
+     * place unless the store already holds that content, in which case the incoming file is simply dropped.
+     * <p>
+     * The claim is committed on its own: it keeps the garbage collector away from the blob for the grace period,
+     * and if the song is never inserted, the blob is collected once that has passed.
+     *
+     * @param incoming the uploaded file
+     * @param sha256   hex SHA-256 of its content
+     * @param size     its size in bytes
+     */
+    static void store(Path incoming, String sha256, long size) throws SQLException, IOException {
+        try (Connection connection = DatabaseManager.getConnection()) {
+            // waits for a collector holding the row, which deletes the file before it lets go
+            new DAO(connection).claimAudioBlob(sha256, size);
+        }
+        Path blobPath = getBlobPath(sha256);
+        if (Files.exists(blobPath)) {
+            Files.deleteIfExists(incoming);
+            return;
+        }
+        Files.createDirectories(blobPath.getParent());
+        Files.move(incoming, blobPath, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the blobs that no song has pointed at for longer than the grace period. A blob is only collected once
+     * its file is gone, so a failed deletion is retried by the next run.
+     *
+     * @return the number of blobs deleted
+     */
+    public static int collectGarbage() throws SQLException {
+        Timestamp touchedBefore = new Timestamp(System.currentTimeMillis() - GC_GRACE_MILLIS);
+        int collected = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            try (Connection connection = DatabaseManager.getConnection()) {
+                connection.setAutoCommit(false);
+                DAO dao = new DAO(connection);
+                List<String> hashes = dao.lockUnreferencedAudioBlobs(touchedBefore, BATCH_SIZE);
+                List<String> deleted = new ArrayList<>();
+                for (String sha256 : hashes) {
+                    try {
+                        Files.deleteIfExists(getBlobPath(sha256));
+                        Files.deleteIfExists(SeekIndex.indexPathOf(getBlobPath(sha256)));
+                        Files.deleteIfExists(WaveformPeaks.peaksPathOf(getBlobPath(sha256)));
+                        deleted.add(sha256);
+                    }
+                    catch (IOException e) {
+                        System.err.println("Could not delete audio blob " + sha256 + ": " + e.getMessage());
+                    }
+                }
+                if (!deleted.isEmpty()) {
+                    dao.deleteAudioBlobs(deleted);
+                }
+                connection.commit();
+                collected += deleted.size();
+                if (hashes.size() < BATCH_SIZE || deleted.isEmpty()) {
+                    break;
+                }
+            }
+        }
+        return collected;
+    }
+
+    /**
+     * Moves the audio of songs created before content-addressed storage into the store, one song at a time.
+     * The old file is only removed once the song points at its blob.
+     *
+     * @return the number of songs migrated
+     */
+    public static int migrateLegacySongs() throws SQLException {
+        int migrated = 0;
+        UUID lastSongId = null;
+        while (!Thread.currentThread().isInterrupted()) {
+            List<Song> songs;
+            try (Connection connection = DatabaseManager.getConnection()) {
+                songs = new DAO(connection).getSongsWithoutAudioBlob(lastSongId, BATCH_SIZE);
+            }
+            if (songs.isEmpty()) {
+                break;
+            }
+            for (Song song : songs) {
+                lastSongId = song.getId();
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                try {
+                    if (migrateLegacySong(song)) {
+                        migrated++;
+                    }
+                }
+                catch (IOException | SQLException e) {
+                    System.err.println("Could not move the audio of song " + song.getId() + " to the blob store: " + e.getMessage());
+                }
+            }
+        }
+        return migrated;
+    }
+
+    private static boolean migrateLegacySong(Song song) throws IOException, SQLException {
+        Path legacyPath = AssetCrudManager.getLegacySongPath(song);
+        if (!Files.exists(legacyPath)) {
+            return false;
+        }
+
+        String sha256 = hashFile(legacyPath);
+        long size = Files.size(legacyPath);
+
+        // the old file keeps being served until the song points at the blob
+        Path incoming = newIncomingPath();
+        try {
+            Files.createLink(incoming, legacyPath);
+        }
+        catch (IOException | UnsupportedOperationException _) {
+            Files.copy(legacyPath, incoming);
+        }
+
+        try {
+            store(incoming, sha256, size);
+        }
+        finally {
+            Files.deleteIfExists(incoming);
+        }
+        try (Connection connection = DatabaseManager.getConnection()) {
+            if (!new DAO(connection).setSongAudioSha256(song.getId(), sha256)) {
+                return false;
+            }
+        }
+        Files.deleteIfExists(legacyPath);
+        Files.deleteIfExists(SeekIndex.indexPathOf(legacyPath));
+        Files.deleteIfExists(WaveformPeaks.peaksPathOf(legacyPath));
+        return true;
+    }
+
+    /**
+     * Computes the hex SHA-256 of a file, the name it would have in the store.
+     */
+    static String hashFile(Path path) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream is = Files.newInputStream(path)) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every JVM is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
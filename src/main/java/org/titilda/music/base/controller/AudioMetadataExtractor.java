@@ -0,0 +1,101 @@
+package org.titilda.music.base.controller;
+
+import org.titilda.music.base.audio.AudioMetadata;
+import org.titilda.music.base.audio.AudioProbe;
+import org.titilda.music.base.database.DAO;
+import org.titilda.music.base.database.DatabaseManager;
+import org.titilda.music.base.model.Song;
+import org.titilda.music.base.model.mimetypes.SongMimeType;
+import org.titilda.music.base.util.ConfigManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fills in the technical metadata of songs (size, duration, bitrate, sample rate, channels) from the headers of
+ * their audio, at upload and for the songs stored before.
+ */
+public final class AudioMetadataExtractor {
+    private AudioMetadataExtractor() {}
+
+    private static final int WORKERS = Math.max(1, ConfigManager.getInt(ConfigManager.ConfigKey.AUDIO_METADATA_WORKERS));
+
+    /**
+     * Reads the metadata of the stored audio of a song into it. The size is always set, so that a song whose headers
+     * cannot be read is not probed again; the rest is left null then.
+     */
+    static void probe(Song song) throws IOException {
+        Path path = AssetCrudManager.getSongPath(song);
+        song.setAudioSize(Files.size(path));
+        AudioMetadata metadata;
+        try {
+            metadata = AudioProbe.probe(path, SongMimeType.fromMimeType(song.getAudioMimeType()));
+        }
+        catch (IOException | RuntimeException e) {
+            System.err.println("Could not read the audio metadata of song " + song.getId() + ": " + e.getMessage());
+            return;
+        }
+        song.setDurationMillis(metadata.durationMillis());
+        song.setBitrate(metadata.bitrate());
+        song.setSampleRate(metadata.sampleRate());
+        song.setChannels(metadata.channels());
+    }
+
+    /**
+     * Probes the audio of the songs that have no metadata yet, several files at a time. Songs sharing a blob are
+     * updated together. Stops early, leaving the remaining songs for the next run, if the calling thread is
+     * interrupted.
+     *
+     * @return the number of songs updated
+     */
+    public static int backfill() throws SQLException, InterruptedException {
+        List<Song> songs;
+        try (Connection connection = DatabaseManager.getConnection()) {
+            songs = new DAO(connection).getSongsWithUnprobedAudio();
+        }
+        if (songs.isEmpty()) {
+            return 0;
+        }
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS, runnable -> {
+            Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+            thread.setName("audio-metadata-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger updated = new AtomicInteger();
+        try {
+            for (Song song : songs) {
+                workers.execute(() -> {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    try {
+                        probe(song);
+                        try (Connection connection = DatabaseManager.getConnection()) {
+                            updated.addAndGet(new DAO(connection).setAudioMetadata(song));
+                        }
+                    }
+                    catch (IOException | SQLException e) {
+                        System.err.println("Could not backfill the audio metadata of song " + song.getId() + ": " + e.getMessage());
+                    }
+                });
+            }
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        finally {
+            workers.shutdownNow();
+        }
+        return updated.get();
+    }
+}
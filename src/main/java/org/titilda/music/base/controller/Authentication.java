@@ -4,16 +4,25 @@ import com.auth0.jwt.JWT;
 import com.auth0.jwt.algorithms.Algorithm;
 import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.DecodedJWT;
+import com.auth0.jwt.interfaces.JWTVerifier;
 import com.password4j.Password;
 import org.titilda.music.base.database.DAO;
 import org.titilda.music.base.database.DatabaseManager;
 import org.titilda.music.base.model.User;
+import org.titilda.music.base.util.BoundedTtlCache;
 import org.titilda.music.base.util.ConfigManager;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.Date;
+import java.util.HexFormat;
 import java.util.Optional;
 
 public final class Authentication {
@@ -38,6 +47,27 @@ public final class Authentication {
     }
 
     private static final String TOKEN_SECRET = ConfigManager.getString(ConfigManager.ConfigKey.AUTH_SECRET);
+    private static final Algorithm TOKEN_ALGORITHM = Algorithm.HMAC256(TOKEN_SECRET);
+    private static final JWTVerifier TOKEN_VERIFIER = JWT.require(TOKEN_ALGORITHM).build();
+
+    /**
+     * The claims of a token whose signature has already been verified.
+     */
+    private record VerifiedToken(String subject, Date issuedAt, Instant expiresAt) {}
+
+    // Verified tokens by SHA-256 digest, so that the same bearer token is not re-verified on every request.
+    // Only tokens that passed verification are stored, and never beyond their expiry.
+    private static final BoundedTtlCache<String, VerifiedToken> TOKEN_CACHE = new BoundedTtlCache<>(
+            ConfigManager.getInt(ConfigManager.ConfigKey.TOKEN_CACHE_SIZE),
+            ConfigManager.getInt(ConfigManager.ConfigKey.TOKEN_CACHE_TTL_SECONDS) * 1000L
+    );
+
+    // Users by username, so that validating a token does not need a database round trip on every request.
+    // Entries are refreshed locally when sessions are invalidated; other nodes pick up the change within the TTL.
+    private static final BoundedTtlCache<String, User> USER_CACHE = new BoundedTtlCache<>(
+            ConfigManager.getInt(ConfigManager.ConfigKey.USER_CACHE_SIZE),
+            ConfigManager.getInt(ConfigManager.ConfigKey.USER_CACHE_TTL_SECONDS) * 1000L
+    );
 
     private static boolean validatePassword(String pass, String digest) {
         return Password.check(pass, digest).withArgon2();
@@ -48,33 +78,83 @@ public final class Authentication {
     }
 
     public static String generateToken(User user) {
-        Algorithm algorithm = Algorithm.HMAC256(TOKEN_SECRET);
         Date validityStartDate = new Date();
         Date validityEndDate = new Date(validityStartDate.getTime() + 1000L * 3600 * 24 * 30); // 30 days
         return JWT.create()
                 .withSubject(user.getUsername())
                 .withIssuedAt(validityStartDate)
                 .withExpiresAt(validityEndDate)
-                .sign(algorithm);
+                .sign(TOKEN_ALGORITHM);
     }
 
     public static Optional<User> validateToken(String token) {
-        try {
-            Algorithm algorithm = Algorithm.HMAC256(TOKEN_SECRET);
-            DecodedJWT decodedJWT = JWT.require(algorithm).build().verify(token);
-            Date validityStartDate = decodedJWT.getIssuedAt();
-            String nickname = decodedJWT.getSubject();
-            try (Connection con = DatabaseManager.getConnection()) {
-                return new DAO(con).getUserByUsername(decodedJWT.getSubject())
-                        .filter(user -> (!user.getLastSessionInvalidation().after(validityStartDate)));
+        return verifyToken(token).flatMap(verifiedToken -> {
+            try {
+                return getUser(verifiedToken.subject())
+                        .filter(user -> (!user.getLastSessionInvalidation().after(verifiedToken.issuedAt())));
             }
             catch (SQLException _) {
                 // TODO: add db error logging
+                return Optional.empty();
             }
+        });
+    }
+
+    private static Optional<VerifiedToken> verifyToken(String token) {
+        String digest = digestToken(token);
+        Optional<VerifiedToken> cachedToken = TOKEN_CACHE.get(digest);
+        if (cachedToken.isPresent()) {
+            // same rule as the verifier: a token is still valid during the second it expires in
+            Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+            return cachedToken.filter(t -> t.expiresAt() == null || !now.isAfter(t.expiresAt()));
+        }
+
+        try {
+            DecodedJWT decodedJWT = TOKEN_VERIFIER.verify(token);
+            VerifiedToken verifiedToken = new VerifiedToken(decodedJWT.getSubject(), decodedJWT.getIssuedAt(), decodedJWT.getExpiresAtAsInstant());
+            if (verifiedToken.expiresAt() == null) {
+                TOKEN_CACHE.put(digest, verifiedToken);
+            } else {
+                long millisUntilExpiry = Duration.between(Instant.now(), verifiedToken.expiresAt()).toMillis() + 1000L;
+                if (millisUntilExpiry > 0) {
+                    TOKEN_CACHE.put(digest, verifiedToken, millisUntilExpiry);
+                }
+            }
+            return Optional.of(verifiedToken);
         } catch (JWTVerificationException _) {
             // invalid signature/claims
+            return Optional.empty();
         }
-        return Optional.empty();
+    }
+
+    private static String digestToken(String token) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every JVM is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Optional<User> getUser(String username) throws SQLException {
+        Optional<User> cachedUser = USER_CACHE.get(username);
+        if (cachedUser.isPresent()) {
+            return cachedUser;
+        }
+        try (Connection con = DatabaseManager.getConnection()) {
+            Optional<User> user = new DAO(con).getUserByUsername(username);
+            user.ifPresent(u -> USER_CACHE.put(username, u));
+            return user;
+        }
+    }
+
+    public static long getUserCacheHits() {
+        return USER_CACHE.getHits();
+    }
+
+    public static long getUserCacheMisses() {
+        return USER_CACHE.getMisses();
     }
 
     public static Optional<User> validateCredentials(String username, String password) {
@@ -98,7 +178,10 @@ public final class Authentication {
             String hashedPassword = hashPassword(password);
             Date firstLogin = new Date();
             User newUser = new User(username, hashedPassword, fullName, new Timestamp(firstLogin.getTime()));
-            dao.insertUser(newUser);
+            dao.insertUser(newUser).ifPresentOrElse(
+                    insertedUser -> USER_CACHE.put(username, insertedUser),
+                    () -> USER_CACHE.invalidate(username)
+            );
             return generateToken(newUser);
         }
         catch (SQLException _) {
@@ -109,9 +192,17 @@ public final class Authentication {
     public static void invalidateAllSessions(User user) throws FailedToInvalidateSessionException {
         try (Connection connection = DatabaseManager.getConnection()) {
             DAO dao = new DAO(connection);
-            dao.setInvalidationDate(user.getUsername(), new Date());
+            Date invalidationDate = new Date();
+            dao.setInvalidationDate(user.getUsername(), invalidationDate);
+            USER_CACHE.put(user.getUsername(), new User(
+                    user.getUsername(),
+                    user.getPasswordHash(),
+                    user.getFullName(),
+                    new Timestamp(invalidationDate.getTime())
+            ));
         }
         catch (SQLException _) {
+            USER_CACHE.invalidate(user.getUsername());
             throw new FailedToInvalidateSessionException();
         }
     }
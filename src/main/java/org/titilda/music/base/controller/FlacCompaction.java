@@ -0,0 +1,155 @@
+package org.titilda.music.base.controller;
+
+import org.titilda.music.base.audio.FlacDecoder;
+import org.titilda.music.base.audio.FlacEncoder;
+import org.titilda.music.base.audio.WavReader;
+import org.titilda.music.base.database.DAO;
+import org.titilda.music.base.database.DatabaseManager;
+import org.titilda.music.base.model.mimetypes.SongMimeType;
+import org.titilda.music.base.util.ConfigManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores WAV audio as FLAC, which holds the same samples in about half the space. Every conversion is decoded
+ * again and checked against the MD5 of the original samples before it is used; WAV files the encoder does not
+ * support (e.g. floating point) are kept as they are.
+ * <p>
+ * The hash of the original WAV is recorded as an alias of the FLAC blob, so that uploading the same WAV again
+ * neither converts it a second time nor escapes deduplication.
+ */
+public final class FlacCompaction {
+    private FlacCompaction() {}
+
+    public static final boolean ENABLED = ConfigManager.getBoolean(ConfigManager.ConfigKey.AUDIO_WAV_TO_FLAC);
+    private static final int WORKERS = Math.max(1, ConfigManager.getInt(ConfigManager.ConfigKey.AUDIO_TRANSCODE_WORKERS));
+
+    /**
+     * Puts the FLAC version of a WAV file in the {@link AudioBlobStore}, converting it unless that was already done
+     * for the same content. The resulting blob is claimed like by {@link AudioBlobStore#store(Path, String, long)}.
+     * The WAV file itself is left alone.
+     *
+     * @param wavPath   the WAV file
+     * @param wavSha256 hex SHA-256 of its content
+     * @return the hash of the FLAC blob, or empty if the file cannot be converted
+     */
+    static Optional<String> storeAsFlac(Path wavPath, String wavSha256) throws SQLException, IOException {
+        try (Connection connection = DatabaseManager.getConnection()) {
+            Optional<String> converted = new DAO(connection).claimAudioBlobAlias(wavSha256);
+            // the row may outlive its file if a collection failed halfway; then convert again
+            if (converted.isPresent() && Files.exists(AudioBlobStore.getBlobPath(converted.get()))) {
+                return converted;
+            }
+        }
+
+        Path flacPath = AudioBlobStore.newIncomingPath();
+        try {
+            try (WavReader wav = WavReader.open(wavPath)) {
+                FlacEncoder.encode(wav, flacPath);
+            }
+            FlacDecoder.verify(flacPath);
+        }
+        catch (WavReader.UnsupportedWavException e) {
+            Files.deleteIfExists(flacPath);
+            System.out.println("Keeping WAV " + wavSha256 + " as it is: " + e.getMessage());
+            return Optional.empty();
+        }
+        catch (FlacDecoder.InvalidFlacException e) {
+            Files.deleteIfExists(flacPath);
+            System.err.println("FLAC conversion of " + wavSha256 + " failed verification: " + e.getMessage());
+            return Optional.empty();
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(flacPath);
+            throw e;
+        }
+
+        String flacSha256;
+        try {
+            flacSha256 = AudioBlobStore.hashFile(flacPath);
+            AudioBlobStore.store(flacPath, flacSha256, Files.size(flacPath));
+        }
+        finally {
+            // gone once stored
+            Files.deleteIfExists(flacPath);
+        }
+        try (Connection connection = DatabaseManager.getConnection()) {
+            new DAO(connection).putAudioBlobAlias(wavSha256, flacSha256);
+        }
+        return Optional.of(flacSha256);
+    }
+
+    /**
+     * Converts the WAV blobs of existing songs to FLAC, several at a time, and points the songs at the result.
+     * The WAV blobs are then collected like any other unreferenced blob. Stops early, leaving the remaining blobs
+     * for the next run, if the calling thread is interrupted.
+     *
+     * @return the number of blobs converted
+     */
+    public static int compactWavBacklog() throws SQLException, InterruptedException {
+        List<String> wavHashes;
+        try (Connection connection = DatabaseManager.getConnection()) {
+            wavHashes = new DAO(connection).getAudioBlobsOfType(SongMimeType.WAV.getMimeType());
+        }
+        if (wavHashes.isEmpty()) {
+            return 0;
+        }
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS, runnable -> {
+            Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+            thread.setName("flac-compaction-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger converted = new AtomicInteger();
+        try {
+            for (String wavSha256 : wavHashes) {
+                workers.execute(() -> {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    try {
+                        if (compactBlob(wavSha256)) {
+                            converted.incrementAndGet();
+                        }
+                    }
+                    catch (IOException | SQLException e) {
+                        System.err.println("Could not convert WAV blob " + wavSha256 + " to FLAC: " + e.getMessage());
+                    }
+                });
+            }
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        finally {
+            workers.shutdownNow();
+        }
+        return converted.get();
+    }
+
+    private static boolean compactBlob(String wavSha256) throws IOException, SQLException {
+        // the songs pointing at the blob keep it from being collected meanwhile
+        Optional<String> flacSha256 = storeAsFlac(AudioBlobStore.getBlobPath(wavSha256), wavSha256);
+        if (flacSha256.isEmpty()) {
+            return false;
+        }
+        try (Connection connection = DatabaseManager.getConnection()) {
+            new DAO(connection).replaceSongsAudio(
+                    wavSha256, SongMimeType.WAV.getMimeType(),
+                    flacSha256.get(), SongMimeType.FLAC.getMimeType()
+            );
+        }
+        return true;
+    }
+}
@@ -0,0 +1,93 @@
+package org.titilda.music.base.controller;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * A representation served by {@link StaticAssetsServletFoundation}, either backed by a file or held in memory,
+ * together with the validators used for conditional requests. A file-backed representation may also be the tail
+ * of the file, preceded by a few bytes held in memory.
+ *
+ * @param path         the backing file, or null for in-memory assets
+ * @param content      the bytes of in-memory assets, or null for file-backed ones
+ * @param length       size in bytes
+ * @param lastModified modification time in epoch milliseconds, or -1 if unknown
+ * @param etag         strong entity tag, quotes included
+ * @param contentType  media type to send
+ * @param prefix       bytes sent before those of the file, empty if none
+ * @param fileOffset   offset in the file of the first byte sent after the prefix
+ */
+record StaticAsset(Path path, byte[] content, long length, long lastModified, String etag, String contentType,
+                   byte[] prefix, long fileOffset) {
+    private static final byte[] NO_PREFIX = new byte[0];
+
+    /**
+     * Describes a file without opening it: the entity tag is derived from the file identity, size and mtime,
+     * so it changes whenever the file is replaced or rewritten.
+     *
+     * @throws java.nio.file.NoSuchFileException if the file does not exist
+     */
+    static StaticAsset ofFile(Path path, String contentType) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        String identity = path.getFileName() + "|" + attributes.fileKey() + "|" + attributes.size() + "|" + attributes.lastModifiedTime().toMillis();
+        return new StaticAsset(
+                path,
+                null,
+                attributes.size(),
+                attributes.lastModifiedTime().toMillis(),
+                entityTag(identity.getBytes(StandardCharsets.UTF_8)),
+                contentType,
+                NO_PREFIX,
+                0L
+        );
+    }
+
+    /**
+     * Describes an in-memory asset; its entity tag is a digest of the content, so it is stable across restarts and nodes.
+     */
+    static StaticAsset ofBytes(byte[] content, String contentType) {
+        return new StaticAsset(null, content, content.length, -1L, entityTag(content), contentType, NO_PREFIX, 0L);
+    }
+
+    /**
+     * Describes the bytes of a whole file asset from the given offset on, preceded by the given prefix. The entity
+     * tag is derived from the one of the file, so it still changes whenever the file does.
+     */
+    StaticAsset tail(byte[] prefix, long offset) {
+        if (isInMemory() || fileOffset != 0 || this.prefix.length != 0) {
+            throw new IllegalStateException("Not a whole file");
+        }
+        String identity = etag + "|" + offset + "|" + HexFormat.of().formatHex(prefix);
+        return new StaticAsset(
+                path,
+                null,
+                prefix.length + length - offset,
+                lastModified,
+                entityTag(identity.getBytes(StandardCharsets.UTF_8)),
+                contentType,
+                prefix,
+                offset
+        );
+    }
+
+    boolean isInMemory() {
+        return content != null;
+    }
+
+    private static String entityTag(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            return "\"" + HexFormat.of().formatHex(digest, 0, 16) + "\"";
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every JVM is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,18 +1,27 @@
 package org.titilda.music.base.controller;
 
-import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.ServletOutputStream;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import org.titilda.music.base.audio.SeekIndex;
 import org.titilda.music.base.database.DAO;
 import org.titilda.music.base.database.DatabaseManager;
 import org.titilda.music.base.model.Song;
 import org.titilda.music.base.model.User;
 import org.titilda.music.base.model.mimetypes.SongMimeType;
+import org.titilda.music.base.util.ByteRange;
+import org.titilda.music.base.util.ConfigManager;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -22,11 +31,31 @@ public abstract class StaticAssetsServletFoundation extends HttpServlet {
     protected abstract void sendNotFound(HttpServletResponse res) throws IOException;
     protected abstract void sendForbidden(HttpServletResponse res) throws IOException;
 
+    private static final boolean ASYNC_DELIVERY = ConfigManager.getBoolean(ConfigManager.ConfigKey.ASYNC_STATIC_DELIVERY);
+
+    // Tomcat-specific request attributes to let the connector write the file straight from the kernel
+    private static final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+    // tells the player at what time a stream requested with ?t= actually starts
+    private static final String SEEK_TIME_HEADER = "X-Seek-Time-Ms";
+
     private static class StaticAssetAccessNotAllowedException extends Exception {}
     private static class StaticAssetNotFoundException extends Exception {}
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) {
+        serveAsset(req, resp, true);
+    }
+
+    @Override
+    protected void doHead(HttpServletRequest req, HttpServletResponse resp) {
+        serveAsset(req, resp, false);
+    }
+
+    private void serveAsset(HttpServletRequest req, HttpServletResponse resp, boolean includeBody) {
         String subpath = req.getRequestURI().substring("/static/".length());
         String[] resComponents = subpath.split("/");
         try {
@@ -58,36 +87,61 @@ public abstract class StaticAssetsServletFoundation extends HttpServlet {
 
                 DAO dao = new DAO(connection);
 
-                switch (resType) {
+                StaticAsset asset = switch (resType) {
                     case "artworks" -> {
                         if (!resExt.equals("webp"))
                             throw new StaticAssetNotFoundException();
                         Song song = dao.getSongById(resId)
                                 .filter(s -> s.getOwner().equals(user.getUsername()))
                                 .orElseThrow(StaticAssetNotFoundException::new);
-                        try {
-                            AssetCrudManager.writeArtworkImageToStream(song, resp.getOutputStream());
-                        }
-                        catch (IOException _) {
-                            throw new StaticAssetNotFoundException();
-                        }
+                        yield AssetCrudManager.getArtworkAsset(song, parseArtworkSize(req));
                     }
                     case "songs" -> {
                         SongMimeType mimeType;
                         try {
                             mimeType = SongMimeType.fromExtension(resExt);
-                            Song song = dao.getSongById(resId)
-                                    .filter(s -> s.getOwner().equals(user.getUsername()))
-                                    .filter(s -> s.getAudioMimeType().equals(mimeType.getMimeType()))
-                                    .orElseThrow(StaticAssetNotFoundException::new);
-                            resp.setContentType(mimeType.getMimeType());
-                            AssetCrudManager.writeSongToStream(song, resp.getOutputStream());
                         } catch (IllegalArgumentException _) {
                             throw new StaticAssetNotFoundException();
                         }
+                        Song song = dao.getSongById(resId)
+                                .filter(s -> s.getOwner().equals(user.getUsername()))
+                                .filter(s -> s.getAudioMimeType().equals(mimeType.getMimeType()))
+                                .orElseThrow(StaticAssetNotFoundException::new);
+                        long seekMillis = parseSeekTime(req);
+                        StaticAsset songAsset;
+                        try {
+                            songAsset = AssetCrudManager.getSongAsset(song);
+                        }
+                        catch (NoSuchFileException _) {
+                            throw new StaticAssetNotFoundException();
+                        }
+                        if (seekMillis < 0) {
+                            yield songAsset;
+                        }
+                        // formats that cannot be seeked are sent whole, without the header saying where they start
+                        Optional<SeekIndex.Seek> seek = AssetCrudManager.seekSong(song, seekMillis);
+                        if (seek.isEmpty()) {
+                            yield songAsset;
+                        }
+                        resp.setHeader(SEEK_TIME_HEADER, Long.toString(seek.get().startMillis()));
+                        yield songAsset.tail(seek.get().header(), seek.get().offset());
+                    }
+                    case "waveforms" -> {
+                        if (!resExt.equals("peaks"))
+                            throw new StaticAssetNotFoundException();
+                        Song song = dao.getSongById(resId)
+                                .filter(s -> s.getOwner().equals(user.getUsername()))
+                                .orElseThrow(StaticAssetNotFoundException::new);
+                        try {
+                            yield AssetCrudManager.getWaveformAsset(song);
+                        }
+                        catch (NoSuchFileException _) {
+                            throw new StaticAssetNotFoundException();
+                        }
                     }
                     default -> throw new StaticAssetNotFoundException();
-                }
+                };
+                writeAsset(req, resp, asset, includeBody);
             }
             catch (SQLException _) {
                 sendNotFound(resp);
@@ -113,4 +167,241 @@ public abstract class StaticAssetsServletFoundation extends HttpServlet {
             // ignored
         }
     }
+
+    /**
+     * Reads the optional size parameter of artwork requests; without it the full-size artwork is served.
+     */
+    private static int parseArtworkSize(HttpServletRequest req) throws StaticAssetNotFoundException {
+        String size = req.getParameter("size");
+        if (size == null) {
+            return AssetCrudManager.MAX_IMAGE_SIZE;
+        }
+        try {
+            int parsed = Integer.parseInt(size);
+            if (parsed <= 0) {
+                throw new StaticAssetNotFoundException();
+            }
+            return parsed;
+        }
+        catch (NumberFormatException _) {
+            throw new StaticAssetNotFoundException();
+        }
+    }
+
+    /**
+     * Reads the optional t parameter of song requests, the time in seconds (fractions allowed) the stream should
+     * start at.
+     *
+     * @return the time in milliseconds, or -1 if the whole song is requested
+     */
+    private static long parseSeekTime(HttpServletRequest req) throws StaticAssetNotFoundException {
+        String time = req.getParameter("t");
+        if (time == null) {
+            return -1;
+        }
+        try {
+            double seconds = Double.parseDouble(time);
+            if (!Double.isFinite(seconds) || seconds < 0) {
+                throw new StaticAssetNotFoundException();
+            }
+            return (long) (seconds * 1000);
+        }
+        catch (NumberFormatException _) {
+            throw new StaticAssetNotFoundException();
+        }
+    }
+
+    /**
+     * Sends an asset honouring conditional and range requests: 304 if the client's copy is still current, otherwise
+     * either the whole asset (200), the requested range (206), all requested ranges as multipart/byteranges (206),
+     * or 416 if no range can be satisfied.
+     */
+    private static void writeAsset(HttpServletRequest req, HttpServletResponse resp, StaticAsset asset, boolean includeBody) throws IOException {
+        long length = asset.length();
+
+        resp.setHeader("ETag", asset.etag());
+        if (asset.lastModified() >= 0) {
+            resp.setDateHeader("Last-Modified", asset.lastModified());
+        }
+        // the content is private to its owner, and artworks may still change while they are being processed
+        resp.setHeader("Cache-Control", "private, no-cache");
+
+        if (isNotModified(req, asset)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        resp.setHeader("Accept-Ranges", "bytes");
+
+        List<ByteRange> ranges = null;
+        if (ifRangeMatches(req, asset)) {
+            try {
+                ranges = ByteRange.parse(req.getHeader("Range"), length).orElse(null);
+            }
+            catch (ByteRange.UnsatisfiableRangeException _) {
+                resp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                resp.setHeader("Content-Range", "bytes */" + length);
+                return;
+            }
+        }
+
+        if (ranges == null) {
+            resp.setContentType(asset.contentType());
+            resp.setContentLengthLong(length);
+            if (includeBody) {
+                transferBody(req, resp, asset, 0, length);
+            }
+            return;
+        }
+
+        resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.getFirst();
+            resp.setContentType(asset.contentType());
+            resp.setHeader("Content-Range", range.toContentRange(length));
+            resp.setContentLengthLong(range.length());
+            if (includeBody) {
+                transferBody(req, resp, asset, range.start(), range.length());
+            }
+            return;
+        }
+
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        byte[] closingDelimiter = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        long contentLength = closingDelimiter.length;
+        for (ByteRange range : ranges) {
+            contentLength += partHeader(boundary, asset.contentType(), range, length).length + range.length();
+        }
+
+        resp.setContentType("multipart/byteranges; boundary=" + boundary);
+        resp.setContentLengthLong(contentLength);
+        if (!includeBody) {
+            return;
+        }
+        ServletOutputStream os = resp.getOutputStream();
+        for (ByteRange range : ranges) {
+            os.write(partHeader(boundary, asset.contentType(), range, length));
+            writeSlice(asset, range.start(), range.length(), os);
+        }
+        os.write(closingDelimiter);
+    }
+
+    private static void writeSlice(StaticAsset asset, long start, long length, OutputStream os) throws IOException {
+        if (asset.isInMemory()) {
+            os.write(asset.content(), (int) start, (int) length);
+            return;
+        }
+        byte[] prefix = prefixSlice(asset, start, length);
+        os.write(prefix);
+        if (length > prefix.length) {
+            AssetCrudManager.writeFileRangeToStream(asset.path(), fileStart(asset, start), length - prefix.length, os);
+        }
+    }
+
+    /**
+     * The part of the prefix of a file-backed asset that falls within the given slice.
+     */
+    private static byte[] prefixSlice(StaticAsset asset, long start, long length) {
+        byte[] prefix = asset.prefix();
+        if (start >= prefix.length) {
+            return new byte[0];
+        }
+        return Arrays.copyOfRange(prefix, (int) start, (int) Math.min(prefix.length, start + length));
+    }
+
+    /**
+     * The offset in the file of the first byte of the given slice that comes from the file.
+     */
+    private static long fileStart(StaticAsset asset, long start) {
+        return asset.fileOffset() + Math.max(0, start - asset.prefix().length);
+    }
+
+    /**
+     * Sends a slice of an asset as the response body. Unless async delivery is disabled in the configuration, the
+     * transfer is handed to the container's sendfile support when available and the slice only holds bytes of the
+     * file, and otherwise performed with
+     * non-blocking I/O; the blocking copy is only used as a fallback.
+     */
+    private static void transferBody(HttpServletRequest req, HttpServletResponse resp, StaticAsset asset, long start, long length) throws IOException {
+        Path path = asset.path();
+        if (!ASYNC_DELIVERY || asset.isInMemory() || length == 0) {
+            writeSlice(asset, start, length, resp.getOutputStream());
+            return;
+        }
+        byte[] prefix = prefixSlice(asset, start, length);
+        long fileStart = fileStart(asset, start);
+        long fileLength = length - prefix.length;
+        // sendfile can only send the file itself
+        if (prefix.length == 0 && Boolean.TRUE.equals(req.getAttribute(SENDFILE_SUPPORT_ATTRIBUTE))) {
+            req.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, path.toRealPath().toString());
+            req.setAttribute(SENDFILE_START_ATTRIBUTE, fileStart);
+            req.setAttribute(SENDFILE_END_ATTRIBUTE, fileStart + fileLength);
+        }
+        else if (req.isAsyncSupported()) {
+            AsyncFileTransfer.start(req, resp, prefix, path, fileStart, fileLength);
+        }
+        else {
+            writeSlice(asset, start, length, resp.getOutputStream());
+        }
+    }
+
+    private static byte[] partHeader(String boundary, String contentType, ByteRange range, long totalLength) {
+        return ("\r\n--" + boundary + "\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                "Content-Range: " + range.toContentRange(totalLength) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Evaluates If-None-Match, or If-Modified-Since when no entity tag was sent, as RFC 9110 prescribes for GET and HEAD.
+     */
+    private static boolean isNotModified(HttpServletRequest req, StaticAsset asset) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if (tag.equals("*") || stripWeakPrefix(tag).equals(asset.etag())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        if (asset.lastModified() < 0) {
+            return false;
+        }
+        try {
+            long ifModifiedSince = req.getDateHeader("If-Modified-Since");
+            return ifModifiedSince >= 0 && (asset.lastModified() / 1000L) * 1000L <= ifModifiedSince;
+        }
+        catch (IllegalArgumentException _) {
+            return false;
+        }
+    }
+
+    private static String stripWeakPrefix(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * A Range header only applies if the If-Range validator (when present) still matches the current asset.
+     * Entity tags are compared strongly, and dates must match the Last-Modified value exactly.
+     */
+    private static boolean ifRangeMatches(HttpServletRequest req, StaticAsset asset) {
+        String ifRange = req.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(asset.etag());
+        }
+        if (asset.lastModified() < 0) {
+            return false;
+        }
+        try {
+            return req.getDateHeader("If-Range") == (asset.lastModified() / 1000L) * 1000L;
+        }
+        catch (IllegalArgumentException _) {
+            return false;
+        }
+    }
 }
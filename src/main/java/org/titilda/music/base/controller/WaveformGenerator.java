@@ -0,0 +1,116 @@
+package org.titilda.music.base.controller;
+
+import org.titilda.music.base.audio.WaveformPeaks;
+import org.titilda.music.base.database.DAO;
+import org.titilda.music.base.database.DatabaseManager;
+import org.titilda.music.base.model.Song;
+import org.titilda.music.base.model.mimetypes.SongMimeType;
+import org.titilda.music.base.util.ConfigManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes the {@link WaveformPeaks} of stored audio on a small pool of background threads, since it takes decoding
+ * the whole file: for new songs once they are committed, and for the blobs stored before at startup. Until the
+ * peaks are there, the waveform of a song is simply not found.
+ */
+public final class WaveformGenerator {
+    private WaveformGenerator() {}
+
+    private static final int WORKERS = Math.max(1, ConfigManager.getInt(ConfigManager.ConfigKey.WAVEFORM_WORKERS));
+
+    // audio files queued or in progress, so that songs sharing a blob do not decode it twice
+    private static final Set<Path> SCHEDULED = ConcurrentHashMap.newKeySet();
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            WORKERS, WORKERS, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+            runnable -> {
+                Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+                thread.setName("waveform-worker-" + THREAD_COUNTER.incrementAndGet());
+                thread.setDaemon(true);
+                // decoding must not slow down requests
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+    );
+
+    /**
+     * Queues the computation of the peaks of a committed song, unless its format is not supported or they exist.
+     */
+    static void submit(Song song) {
+        SongMimeType type = SongMimeType.fromMimeType(song.getAudioMimeType());
+        if (WaveformPeaks.supports(type)) {
+            enqueue(AssetCrudManager.getSongPath(song), type);
+        }
+    }
+
+    /**
+     * Queues the computation of the peaks of every WAV and FLAC blob that has none yet, without waiting for them.
+     *
+     * @return the number of blobs queued
+     */
+    public static int backfill() throws SQLException {
+        int queued = 0;
+        for (SongMimeType type : List.of(SongMimeType.FLAC, SongMimeType.WAV)) {
+            List<String> hashes;
+            try (Connection connection = DatabaseManager.getConnection()) {
+                hashes = new DAO(connection).getAudioBlobsOfType(type.getMimeType());
+            }
+            for (String sha256 : hashes) {
+                if (enqueue(AudioBlobStore.getBlobPath(sha256), type)) {
+                    queued++;
+                }
+            }
+        }
+        return queued;
+    }
+
+    private static boolean enqueue(Path audio, SongMimeType type) {
+        if (Files.exists(WaveformPeaks.peaksPathOf(audio)) || !SCHEDULED.add(audio)) {
+            return false;
+        }
+        try {
+            EXECUTOR.execute(() -> {
+                try {
+                    WaveformPeaks.write(audio, type);
+                }
+                catch (NoSuchFileException _) {
+                    // collected in the meantime
+                }
+                catch (IOException | RuntimeException e) {
+                    System.err.println("Could not compute the waveform of " + audio.getFileName() + ": " + e.getMessage());
+                }
+                finally {
+                    SCHEDULED.remove(audio);
+                }
+            });
+            return true;
+        }
+        catch (RejectedExecutionException _) {
+            // shutting down: computed at the next startup
+            SCHEDULED.remove(audio);
+            return false;
+        }
+    }
+
+    /**
+     * Stops the workers; peaks not computed yet are queued again at the next startup.
+     */
+    public static void shutdown() {
+        EXECUTOR.shutdownNow();
+    }
+}
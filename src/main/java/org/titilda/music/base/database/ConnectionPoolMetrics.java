@@ -0,0 +1,66 @@
+package org.titilda.music.base.database;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+import org.titilda.music.base.metrics.LatencyHistogram;
+import org.titilda.music.base.metrics.PrometheusWriter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records how long {@link DatabaseManager#getConnection()} waits for a connection of the pool and how long
+ * connections are then held, as reported by HikariCP, along with the state of the pool.
+ */
+public final class ConnectionPoolMetrics {
+    private ConnectionPoolMetrics() {}
+
+    private static final LatencyHistogram WAIT = new LatencyHistogram();
+    private static final LatencyHistogram USAGE = new LatencyHistogram();
+    private static final LongAdder TIMEOUTS = new LongAdder();
+    private static volatile PoolStats pool;
+
+    static final MetricsTrackerFactory TRACKER_FACTORY = (_, poolStats) -> {
+        pool = poolStats;
+        return new IMetricsTracker() {
+            @Override
+            public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                WAIT.record(elapsedAcquiredNanos);
+            }
+
+            @Override
+            public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+                USAGE.record(TimeUnit.MILLISECONDS.toNanos(elapsedBorrowedMillis));
+            }
+
+            @Override
+            public void recordConnectionTimeout() {
+                TIMEOUTS.increment();
+            }
+        };
+    };
+
+    public static void writeTo(PrometheusWriter out) {
+        LatencyHistogram.Snapshot wait = WAIT.snapshot();
+        out.family("titilda_db_connection_wait_seconds", "histogram", "Time spent waiting for a connection of the pool.")
+                .histogram("titilda_db_connection_wait_seconds", wait);
+        out.family("titilda_db_connection_wait_quantile_seconds", "gauge", "Median, 95th and 99th percentile of the connection waits, estimated from the histogram.")
+                .quantiles("titilda_db_connection_wait_quantile_seconds", wait);
+        out.family("titilda_db_connection_usage_seconds", "histogram", "Time connections are held before being returned to the pool.")
+                .histogram("titilda_db_connection_usage_seconds", USAGE.snapshot());
+        out.family("titilda_db_connection_timeouts_total", "counter", "Waits for a connection that timed out.")
+                .sample("titilda_db_connection_timeouts_total", TIMEOUTS.sum());
+
+        PoolStats stats = pool;
+        if (stats != null) {
+            out.family("titilda_db_pool_connections", "gauge", "Connections of the pool by state.")
+                    .sample("titilda_db_pool_connections", stats.getActiveConnections(), "state", "active")
+                    .sample("titilda_db_pool_connections", stats.getIdleConnections(), "state", "idle");
+            out.family("titilda_db_pool_max_connections", "gauge", "Size limit of the pool.")
+                    .sample("titilda_db_pool_max_connections", stats.getMaxConnections());
+            out.family("titilda_db_pool_pending_threads", "gauge", "Threads waiting for a connection.")
+                    .sample("titilda_db_pool_pending_threads", stats.getPendingThreads());
+        }
+    }
+}
@@ -5,15 +5,32 @@ import org.titilda.music.base.model.*;
 import java.util.Date;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 
 public final class DAO {
-    private static final int PLAYLIST_SONG_PAGE_SIZE = 5;
+    // Songs are appended to playlists this far apart, so that a single song can later be moved between two others
+    // by updating only its own row.
+    private static final int PLAYLIST_POSITION_GAP = 1024;
+    // Positions are kept below this, so that parking rows past the maximum while reordering never overflows an int;
+    // a playlist that would go beyond it is renumbered first.
+    private static final int PLAYLIST_POSITION_LIMIT = Integer.MAX_VALUE / 2;
 
     private Connection connection;
 
+    public static class InvalidCursorException extends Exception {
+        public InvalidCursorException() {
+            super();
+        }
+    }
+
     public DAO(Connection con) {
         this.connection = con;
     }
@@ -26,6 +43,13 @@ public final class DAO {
         this.connection = connection;
     }
 
+    /**
+     * Prepares a statement whose executions are recorded in {@link QueryMetrics} under the given DAO method.
+     */
+    private PreparedStatement prepare(String method, String sql) throws SQLException {
+        return QueryMetrics.instrument(method, connection.prepareStatement(sql));
+    }
+
     /**
      * Inserts a new user into the database.
      * This method uses a prepared statement to prevent SQL injection.
@@ -38,7 +62,7 @@ public final class DAO {
      */
     public Optional<User> insertUser(User user) throws SQLException {
         String sql = "INSERT INTO users (username, password_hash, full_name, last_session_invalidation) VALUES (?, ?, ?, ?) RETURNING username, password_hash, full_name, last_session_invalidation";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = prepare("insertUser", sql)) {
             ps.setString(1, user.getUsername());
             ps.setString(2, user.getPasswordHash());
             ps.setString(3, user.getFullName());
@@ -58,7 +82,7 @@ public final class DAO {
 
     public Optional<User> getUserByUsername(String username) throws SQLException {
         String sql = "SELECT * FROM users WHERE username = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = prepare("getUserByUsername", sql)) {
             ps.setString(1, username);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
@@ -71,6 +95,20 @@ public final class DAO {
         return Optional.empty();
     }
 
+    /**
+     * Receives the songs of a query one at a time, as the rows are read.
+     *
+     * @param <E> exception thrown by the consumer, e.g. IOException when writing the songs to a response
+     */
+    @FunctionalInterface
+    public interface SongConsumer<E extends Exception> {
+        void accept(Song song) throws E;
+    }
+
+    // Rows fetched per round trip when iterating over songs. The driver only honours it inside a transaction;
+    // in autocommit mode the whole result is still read at once.
+    private static final int SONG_FETCH_SIZE = 500;
+
     /**
      * Retrieves all songs owned by a specific user.
      * This method uses a prepared statement to prevent SQL injection.
@@ -81,89 +119,201 @@ public final class DAO {
      * @throws SQLException If there is an error during the database operation.
      */
     public List<Song> getSongsOfUser(User user) throws SQLException {
+        List<Song> songs = new ArrayList<>();
+        forEachSongOfUser(user, songs::add);
+        return songs;
+    }
+
+    /**
+     * Same as {@link #getSongsOfUser}, but hands each song to the consumer as soon as its row is read instead of
+     * collecting them in a list.
+     */
+    public <E extends Exception> void forEachSongOfUser(User user, SongConsumer<E> consumer) throws SQLException, E {
         if (user == null || user.getUsername() == null) {
             throw new IllegalArgumentException("User cannot be null and must have a valid username");
         }
         String sql = "SELECT * FROM songs WHERE owner = ? ORDER BY artist, release_year, title";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = prepare("forEachSongOfUser", sql)) {
             ps.setString(1, user.getUsername());
-            return mapResultSetToSongList(ps);
+            forEachSong(ps, consumer);
         }
     }
 
     /**
-     * Retrieves all songs in a specific playlist.
-     * This method uses a prepared statement to prevent SQL injection.
+     * Retrieves a playlist together with its number of songs and one page of its songs, in the order in which the
+     * playlist is displayed, with a single statement.
+     * Pages are addressed with keyset cursors rather than offsets, so the cost of a page does not depend on how deep
+     * into the playlist it is. A cursor that refers to the other sort mode (because the playlist has been reordered
+     * in the meantime) is ignored, and the first page is returned instead.
      *
-     * @param playlistId UUID of the playlist whose songs are to be retrieved.
-     * @return List of Song objects in the specified playlist, ordered by position.
-     * @throws SQLException If there is an error during the database operation.
+     * @param playlistId UUID of the playlist to retrieve.
+     * @param owner      Username of the user who must own the playlist.
+     * @param cursor     A cursor previously returned in a {@link SongPage}, or null for the first page.
+     * @param pageSize   Maximum number of songs in the page.
+     * @return The playlist and the requested page, or an empty Optional if the playlist does not exist or belongs to
+     *         someone else.
+     * @throws SQLException           If there is an error during the database operation.
+     * @throws InvalidCursorException If the cursor is malformed.
      */
-    public List<Song> getSongsInPlaylistPaginated(UUID playlistId, int page) throws SQLException {
-        String manualSortCheckSql = "SELECT is_manually_sorted FROM playlists WHERE id = ?";
-        boolean isManuallySorted = false;
-        try (PreparedStatement ps = connection.prepareStatement(manualSortCheckSql)) {
-            ps.setObject(1, playlistId);
+    public Optional<PlaylistPage> getPlaylistPage(UUID playlistId, String owner, String cursor, int pageSize) throws SQLException, InvalidCursorException {
+        PlaylistCursor decodedCursor = (cursor == null) ? null : PlaylistCursor.decode(cursor);
+        boolean manualBackward = decodedCursor != null && decodedCursor.manual() && decodedCursor.backward();
+        boolean implicitBackward = decodedCursor != null && !decodedCursor.manual() && decodedCursor.backward();
+
+        // The sort mode is only known once the playlist row is read, so the lateral subquery holds one branch per
+        // mode, each guarded by the flag; only the branch of the cursor's mode gets the keyset predicate.
+        String sql = "SELECT p.id AS playlist_id, p.name AS playlist_name, p.owner AS playlist_owner, p.created_at, p.is_manually_sorted, " +
+                "c.song_count, page.* " +
+                "FROM playlists p " +
+                "CROSS JOIN LATERAL (SELECT COUNT(*) AS song_count FROM playlistsongs WHERE playlist_id = p.id) c " +
+                "LEFT JOIN LATERAL (" +
+                "    (SELECT s.*, ps.position FROM songs s JOIN playlistsongs ps ON s.id = ps.song_id " +
+                "     WHERE p.is_manually_sorted IS TRUE AND ps.playlist_id = p.id " +
+                ((decodedCursor != null && decodedCursor.manual()) ? "AND " + playlistKeyComparison(true, manualBackward) + " " : "") +
+                "     ORDER BY " + playlistOrder(true, manualBackward) + " LIMIT ?) " +
+                "    UNION ALL " +
+                "    (SELECT s.*, ps.position FROM songs s JOIN playlistsongs ps ON s.id = ps.song_id " +
+                "     WHERE p.is_manually_sorted IS NOT TRUE AND ps.playlist_id = p.id " +
+                ((decodedCursor != null && !decodedCursor.manual()) ? "AND " + playlistKeyComparison(false, implicitBackward) + " " : "") +
+                "     ORDER BY " + playlistOrder(false, implicitBackward) + " LIMIT ?)" +
+                ") page ON TRUE " +
+                "WHERE p.id = ? AND p.owner = ? " +
+                // the position is NULL for every row of the implicit branch, so only the remaining keys apply there
+                "ORDER BY CASE WHEN p.is_manually_sorted IS TRUE THEN page.position END" + (manualBackward ? " DESC" : "") + ", " +
+                "page.artist" + (implicitBackward ? " DESC" : "") + ", " +
+                "COALESCE(page.release_year, " + PlaylistCursor.MISSING_RELEASE_YEAR + ")" + (implicitBackward ? " DESC" : "") + ", " +
+                "page.title" + (implicitBackward ? " DESC" : "") + ", " +
+                "page.id" + (implicitBackward ? " DESC" : "");
+
+        Playlist playlist = null;
+        int songCount = 0;
+        List<Song> songs = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        try (PreparedStatement ps = prepare("getPlaylistPage", sql)) {
+            int i = 1;
+            if (decodedCursor != null && decodedCursor.manual()) {
+                i = setPlaylistKey(ps, i, decodedCursor);
+            }
+            // one more row than needed tells whether there is anything beyond this page
+            ps.setInt(i++, pageSize + 1);
+            if (decodedCursor != null && !decodedCursor.manual()) {
+                i = setPlaylistKey(ps, i, decodedCursor);
+            }
+            ps.setInt(i++, pageSize + 1);
+            ps.setObject(i++, playlistId);
+            ps.setString(i, owner);
             try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    isManuallySorted = rs.getBoolean("is_manually_sorted");
+                while (rs.next()) {
+                    if (playlist == null) {
+                        playlist = new Playlist(
+                                (UUID) rs.getObject("playlist_id"),
+                                rs.getString("playlist_name"),
+                                rs.getString("playlist_owner"),
+                                rs.getTimestamp("created_at"),
+                                rs.getBoolean("is_manually_sorted"));
+                        songCount = rs.getInt("song_count");
+                    }
+                    // an empty page still yields the playlist row, with NULL song columns
+                    if (rs.getObject("id") != null) {
+                        songs.add(mapResultSetToSong(rs));
+                        positions.add(rs.getInt("position"));
+                    }
                 }
             }
         }
+        if (playlist == null) {
+            return Optional.empty();
+        }
 
-        String sql = "SELECT s.* FROM songs s " +
-                "JOIN playlistsongs ps ON s.id = ps.song_id " +
-                "WHERE ps.playlist_id = ? ORDER BY " + ((isManuallySorted) ? "ps.position " : "artist, release_year, title ") +
-                "LIMIT ? OFFSET ?";
-
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setObject(1, playlistId);
-            ps.setInt(2, PLAYLIST_SONG_PAGE_SIZE);
-            ps.setInt(3, page * PLAYLIST_SONG_PAGE_SIZE);
-            return mapResultSetToSongList(ps);
+        if (decodedCursor != null && decodedCursor.manual() != playlist.isManuallySorted()) {
+            decodedCursor = null;
         }
+        SongPage songPage = buildSongPage(songs, positions, pageSize, decodedCursor, playlist.isManuallySorted());
+        return Optional.of(new PlaylistPage(playlist, songCount, songPage));
     }
 
-    public List<Song> getSongsInPlaylist(UUID playlistId) throws SQLException {
-        String manualSortCheckSql = "SELECT is_manually_sorted FROM playlists WHERE id = ?";
-        boolean isManuallySorted = false;
-        try (PreparedStatement ps = connection.prepareStatement(manualSortCheckSql)) {
-            ps.setObject(1, playlistId);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    isManuallySorted = rs.getBoolean("is_manually_sorted");
-                }
-            }
+    /**
+     * Trims the rows fetched for a page (one more than the page size, in query order) and derives the cursors of
+     * the neighbouring pages.
+     */
+    private static SongPage buildSongPage(List<Song> songs, List<Integer> positions, int pageSize, PlaylistCursor cursor, boolean isManuallySorted) {
+        boolean backward = cursor != null && cursor.backward();
+        boolean hasMore = songs.size() > pageSize;
+        if (hasMore) {
+            songs.removeLast();
+            positions.removeLast();
+        }
+        if (backward) {
+            Collections.reverse(songs);
+            Collections.reverse(positions);
+        }
+        if (songs.isEmpty()) {
+            return new SongPage(songs, null, null);
         }
 
-        String sql = "SELECT s.* FROM songs s " +
-                "JOIN playlistsongs ps ON s.id = ps.song_id " +
-                "WHERE ps.playlist_id = ? ORDER BY " + ((isManuallySorted) ? "ps.position " : "artist, release_year, title ");
+        boolean hasNext = backward || hasMore;
+        boolean hasPrevious = backward ? hasMore : cursor != null;
+        return new SongPage(
+                songs,
+                hasNext ? PlaylistCursor.after(isManuallySorted, positions.getLast(), songs.getLast()).encode() : null,
+                hasPrevious ? PlaylistCursor.before(isManuallySorted, positions.getFirst(), songs.getFirst()).encode() : null
+        );
+    }
 
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setObject(1, playlistId);
-            return mapResultSetToSongList(ps);
+    /**
+     * The sort key of playlist rows, compared against a cursor as a row value. In manual order the key is the position,
+     * so the UNIQUE (playlist_id, position) index serves both the filter and the order. In implicit order the key
+     * (artist, release year, title, id) comes from songs while the filter is on playlistsongs, so no single index
+     * serves it: every song of the playlist is joined, and the comparison only drops the rows before the cursor ahead
+     * of a top-N sort bounded by the page size.
+     */
+    private static String playlistKeyComparison(boolean isManuallySorted, boolean backward) {
+        String operator = backward ? "<" : ">";
+        return isManuallySorted
+                ? "ps.position " + operator + " ?"
+                : "(s.artist, COALESCE(s.release_year, " + PlaylistCursor.MISSING_RELEASE_YEAR + "), s.title, s.id) " + operator + " (?, ?, ?, ?)";
+    }
+
+    private static String playlistOrder(boolean isManuallySorted, boolean backward) {
+        String direction = backward ? " DESC" : "";
+        return isManuallySorted
+                ? "ps.position" + direction
+                : "s.artist" + direction + ", COALESCE(s.release_year, " + PlaylistCursor.MISSING_RELEASE_YEAR + ")" + direction + ", s.title" + direction + ", s.id" + direction;
+    }
+
+    private static int setPlaylistKey(PreparedStatement ps, int index, PlaylistCursor cursor) throws SQLException {
+        if (cursor.manual()) {
+            ps.setInt(index++, cursor.position());
+        } else {
+            ps.setString(index++, cursor.artist());
+            ps.setInt(index++, cursor.releaseYear());
+            ps.setString(index++, cursor.title());
+            ps.setObject(index++, cursor.songId());
         }
+        return index;
+    }
+
+    public List<Song> getSongsInPlaylist(UUID playlistId) throws SQLException {
+        List<Song> songs = new ArrayList<>();
+        forEachSongInPlaylist(playlistId, songs::add);
+        return songs;
     }
 
     /**
-     * Calculates the total number of pages required to display all songs in a playlist,
-     * given a fixed page size.
-     *
-     * @param playlistId UUID of the playlist whose song page count is to be calculated.
-     * @return The number of pages required to display all songs in the specified playlist.
-     * @throws SQLException If there is an error during the database operation.
+     * Hands the songs in a playlist to the consumer one at a time, in the order in which the playlist is displayed.
      */
-    public int getSongPageCount(UUID playlistId) throws SQLException {
-        String sql = "SELECT COUNT(*) FROM playlistsongs WHERE playlist_id = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+    public <E extends Exception> void forEachSongInPlaylist(UUID playlistId, SongConsumer<E> consumer) throws SQLException, E {
+        // the position only decides the order of manually sorted playlists; for the others it is NULL on every row,
+        // and the implicit order of the pages applies
+        String sql = "SELECT s.* FROM songs s " +
+                "JOIN playlistsongs ps ON s.id = ps.song_id " +
+                "JOIN playlists p ON p.id = ps.playlist_id " +
+                "WHERE ps.playlist_id = ? " +
+                "ORDER BY CASE WHEN p.is_manually_sorted IS TRUE THEN ps.position END, " + playlistOrder(false, false);
+
+        try (PreparedStatement ps = prepare("forEachSongInPlaylist", sql)) {
             ps.setObject(1, playlistId);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    return (int) Math.ceil((double) rs.getInt(1) / PLAYLIST_SONG_PAGE_SIZE);
-                }
-                return 0;
-            }
+            forEachSong(ps, consumer);
         }
     }
 
@@ -178,6 +328,15 @@ public final class DAO {
      * @throws SQLException If there is an error during the database operation.
      */
     public List<Song> getSongsNotInPlaylist(User user, UUID playlistId) throws SQLException {
+        List<Song> songs = new ArrayList<>();
+        forEachSongNotInPlaylist(user, playlistId, songs::add);
+        return songs;
+    }
+
+    /**
+     * Same as {@link #getSongsNotInPlaylist}, but hands each song to the consumer as soon as its row is read.
+     */
+    public <E extends Exception> void forEachSongNotInPlaylist(User user, UUID playlistId, SongConsumer<E> consumer) throws SQLException, E {
         // TODO: replace owner passing with subquery
         if (user == null || user.getUsername() == null) {
             throw new IllegalArgumentException("User cannot be null and must have a valid username");
@@ -185,37 +344,20 @@ public final class DAO {
         String sql = "SELECT * FROM songs WHERE owner = ? AND id NOT IN " +
                 "(SELECT song_id FROM playlistsongs WHERE playlist_id = ?) ORDER BY artist, release_year, title";
 
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = prepare("forEachSongNotInPlaylist", sql)) {
             ps.setString(1, user.getUsername());
             ps.setObject(2, playlistId);
-            return mapResultSetToSongList(ps);
+            forEachSong(ps, consumer);
         }
     }
 
-    /**
-     * Private method to create a list of Song objects from a ResultSet.
-     * This method is used internally to convert the result set into a list of Song
-     * objects.
-     *
-     * @param ps PreparedStatement that has been executed.
-     * @return List of Song objects created from the result set.
-     * @throws SQLException If there is an error during the database operation.
-     */
-    private List<Song> mapResultSetToSongList(PreparedStatement ps) throws SQLException {
-        ResultSet rs = ps.executeQuery();
-        List<Song> songs = new ArrayList<>();
-        while (rs.next()) {
-            songs.add(new Song(
-                    (UUID) rs.getObject("id"),
-                    rs.getString("title"),
-                    rs.getString("album"),
-                    rs.getString("artist"),
-                    rs.getString("audio_mime_type"),
-                    rs.getInt("release_year"),
-                    rs.getString("genre"),
-                    rs.getString("owner")));
+    private <E extends Exception> void forEachSong(PreparedStatement ps, SongConsumer<E> consumer) throws SQLException, E {
+        ps.setFetchSize(SONG_FETCH_SIZE);
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                consumer.accept(mapResultSetToSong(rs));
+            }
         }
-        return songs;
     }
 
     /**
@@ -228,7 +370,7 @@ public final class DAO {
      * @throws SQLException If there is an error during the database operation.
      */
     private Song mapResultSetToSong(ResultSet rs) throws SQLException {
-        return new Song(
+        Song song = new Song(
                 (UUID) rs.getObject("id"),
                 rs.getString("title"),
                 rs.getString("album"),
@@ -237,6 +379,13 @@ public final class DAO {
                 rs.getInt("release_year"),
                 rs.getString("genre"),
                 rs.getString("owner"));
+        song.setAudioSha256(rs.getString("audio_sha256"));
+        song.setAudioSize(rs.getObject("audio_size", Long.class));
+        song.setDurationMillis(rs.getObject("duration_ms", Integer.class));
+        song.setBitrate(rs.getObject("bitrate", Integer.class));
+        song.setSampleRate(rs.getObject("sample_rate", Integer.class));
+        song.setChannels(rs.getObject("channels", Integer.class));
+        return song;
     }
 
     /**
@@ -258,11 +407,11 @@ public final class DAO {
     }
 
     public Song insertSong(Song song) throws SQLException {
-        String sql = "INSERT INTO songs (id, title, album, artist, audio_mime_type, release_year, genre, owner) "
-                +
-                "VALUES (?, ?, ?, ?, ?, ?, ?, ?) RETURNING *";
+        String sql = "INSERT INTO songs (id, title, album, artist, audio_mime_type, release_year, genre, owner, audio_sha256, " +
+                "audio_size, duration_ms, bitrate, sample_rate, channels) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) RETURNING *";
 
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = prepare("insertSong", sql)) {
             ps.setObject(1, song.getId());
             ps.setString(2, song.getTitle());
             ps.setString(3, song.getAlbum());
@@ -271,6 +420,12 @@ public final class DAO {
             ps.setObject(6, song.getReleaseYear());
             ps.setString(7, song.getGenre());
             ps.setString(8, song.getOwner());
+            ps.setString(9, song.getAudioSha256());
+            ps.setObject(10, song.getAudioSize());
+            ps.setObject(11, song.getDurationMillis());
+            ps.setObject(12, song.getBitrate());
+            ps.setObject(13, song.getSampleRate());
+            ps.setObject(14, song.getChannels());
 
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
@@ -292,80 +447,390 @@ public final class DAO {
      * @throws SQLException If any database error occurs
      */
     public boolean addSongToPlaylist(UUID playlistId, UUID songId, String username) throws SQLException {
+        return addSongsToPlaylist(playlistId, Collections.singletonList(songId), username).isEmpty();
+    }
 
-        try (PreparedStatement ps = connection.prepareStatement("SELECT * FROM playlists WHERE id = ? AND owner = ? LIMIT 1")) {
+    /**
+     * Appends several songs to a playlist, in the given order and at increasing positions, using a constant number
+     * of statements regardless of how many songs are added.
+     * A song is rejected if it does not exist, does not belong to the user, is already in the playlist or is repeated
+     * in the list; every song is rejected if the playlist does not exist or does not belong to the user.
+     * The playlist row is locked until the end of the transaction, so concurrent appends cannot pick the same positions.
+     *
+     * @param playlistId The playlist to add the songs to
+     * @param songIds    The songs to be added, null entries are rejected
+     * @param username   The user who must own both the playlist and the songs
+     * @return the IDs that were not added, in request order
+     * @throws SQLException If any database error occurs
+     */
+    public List<UUID> addSongsToPlaylist(UUID playlistId, List<UUID> songIds, String username) throws SQLException {
+        if (songIds.isEmpty()) {
+            return List.of();
+        }
+
+        try (PreparedStatement ps = prepare("addSongsToPlaylist", "SELECT id FROM playlists WHERE id = ? AND owner = ? FOR UPDATE")) {
             ps.setObject(1, playlistId);
             ps.setString(2, username);
             try (ResultSet rs = ps.executeQuery()) {
-                if (!rs.isBeforeFirst()) {
+                if (!rs.next()) {
                     // playlist does not exist or does not belong to user
-                    return false;
+                    return new ArrayList<>(songIds);
                 }
             }
         }
 
-        try (PreparedStatement ps = connection.prepareStatement("SELECT * FROM songs WHERE id = ? AND owner = ? LIMIT 1")) {
-            ps.setObject(1, songId);
+        List<UUID> rejected = new ArrayList<>();
+        LinkedHashSet<UUID> candidates = new LinkedHashSet<>();
+        for (UUID songId : songIds) {
+            if (songId == null || !candidates.add(songId)) {
+                rejected.add(songId);
+            }
+        }
+
+        // The requested songs keep their order through WITH ORDINALITY; those that are not owned by the user or that
+        // are already in the playlist are filtered out, and the remaining ones are spaced out after the current maximum.
+        String insertSql = "WITH requested AS (" +
+                "    SELECT r.song_id, r.ord FROM unnest(?::uuid[]) WITH ORDINALITY AS r(song_id, ord)" +
+                "), accepted AS (" +
+                "    SELECT r.song_id, r.ord FROM requested r" +
+                "    JOIN songs s ON s.id = r.song_id AND s.owner = ?" +
+                "    WHERE NOT EXISTS (SELECT 1 FROM playlistsongs ps WHERE ps.playlist_id = ? AND ps.song_id = r.song_id)" +
+                "), base AS (" +
+                "    SELECT COALESCE(MAX(position) + " + PLAYLIST_POSITION_GAP + ", 0) AS next_pos FROM playlistsongs WHERE playlist_id = ?" +
+                ") " +
+                "INSERT INTO playlistsongs (playlist_id, song_id, position) " +
+                "SELECT ?, a.song_id, b.next_pos + (ROW_NUMBER() OVER (ORDER BY a.ord) - 1) * " + PLAYLIST_POSITION_GAP + " FROM accepted a CROSS JOIN base b " +
+                "RETURNING song_id, position";
+        Set<UUID> inserted = new HashSet<>();
+        int maxInserted = -1;
+        try (PreparedStatement ps = prepare("addSongsToPlaylist", insertSql)) {
+            ps.setArray(1, connection.createArrayOf("uuid", candidates.toArray()));
             ps.setString(2, username);
+            ps.setObject(3, playlistId);
+            ps.setObject(4, playlistId);
+            ps.setObject(5, playlistId);
             try (ResultSet rs = ps.executeQuery()) {
-                if (!rs.isBeforeFirst()) {
-                    // song does not exist or does not belong to user
-                    return false;
+                while (rs.next()) {
+                    inserted.add((UUID) rs.getObject("song_id"));
+                    maxInserted = Math.max(maxInserted, rs.getInt("position"));
                 }
             }
         }
+        if (maxInserted > PLAYLIST_POSITION_LIMIT) {
+            renumberPlaylist(playlistId);
+        }
+
+        for (UUID songId : candidates) {
+            if (!inserted.contains(songId)) {
+                rejected.add(songId);
+            }
+        }
+        // report rejections in the order they were requested
+        List<UUID> ordered = new ArrayList<>(rejected.size());
+        for (UUID songId : songIds) {
+            if (rejected.remove(songId)) {
+                ordered.add(songId);
+            }
+        }
+        return ordered;
+    }
 
-        try (PreparedStatement checkPs = connection.prepareStatement("SELECT song_id FROM playlistsongs WHERE playlist_id = ? AND song_id = ? LIMIT 1")) {
-            checkPs.setObject(1, playlistId);
-            checkPs.setObject(2, songId);
-            try (ResultSet rs = checkPs.executeQuery()) {
-                if (rs.isBeforeFirst()) {
-                    // there already is a song
-                    return false;
+    /**
+     * Rearranges a playlist into the given order and marks it as manually sorted.
+     * As few rows as possible are written: the longest run of songs that are already in the right relative order
+     * keeps its positions, and the other songs are given positions in the gaps around them. Only if a gap is too
+     * narrow is the whole playlist renumbered. See {@link #writePlaylistPositions} for how the rows are updated.
+     *
+     * @param playlistId    The playlist to reorder
+     * @param orderedSongIds Every song of the playlist, exactly once, in the desired order
+     * @return false if the given songs are not exactly the songs in the playlist, true otherwise
+     * @throws SQLException If any database error occurs
+     */
+    public boolean reorderPlaylist(UUID playlistId, List<UUID> orderedSongIds) throws SQLException {
+        if (lockPlaylist(playlistId).isEmpty()) {
+            return false;
+        }
+
+        Map<UUID, Integer> currentPositions = getPlaylistPositions(playlistId);
+        if (orderedSongIds.size() != currentPositions.size() || !new HashSet<>(orderedSongIds).equals(currentPositions.keySet())) {
+            return false;
+        }
+
+        writePlaylistPositions(playlistId, orderedSongIds, currentPositions, false);
+        setManuallySorted(playlistId);
+        return true;
+    }
+
+    /**
+     * Spreads the positions of a locked playlist evenly again, keeping its stored order.
+     */
+    private void renumberPlaylist(UUID playlistId) throws SQLException {
+        Map<UUID, Integer> currentPositions = getPlaylistPositions(playlistId);
+        List<UUID> order = new ArrayList<>(currentPositions.keySet());
+        order.sort((a, b) -> Integer.compare(currentPositions.get(a), currentPositions.get(b)));
+        writePlaylistPositions(playlistId, order, currentPositions, true);
+    }
+
+    private Map<UUID, Integer> getPlaylistPositions(UUID playlistId) throws SQLException {
+        Map<UUID, Integer> positions = new HashMap<>();
+        try (PreparedStatement ps = prepare("getPlaylistPositions", "SELECT song_id, position FROM playlistsongs WHERE playlist_id = ?")) {
+            ps.setObject(1, playlistId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    positions.put((UUID) rs.getObject("song_id"), rs.getInt("position"));
                 }
             }
         }
+        return positions;
+    }
 
-        int nextPosition = 0;
-        // find the next available position in the playlist
-        // if there are no songs (position is null), start at 0
-        String posSql = "SELECT COALESCE(MAX(position) + 1, 0) AS next_pos FROM playlistsongs WHERE playlist_id = ?";
-        try (PreparedStatement ps = connection.prepareStatement(posSql)) {
+    /**
+     * Stores the given order of a locked playlist, writing only the rows whose position changes, with two batched
+     * UPDATEs: the first parks them past every current and new position, and the second moves them to their final
+     * positions. This keeps the UNIQUE (playlist_id, position) constraint, which Postgres checks row by row,
+     * satisfied at every step.
+     *
+     * @param renumber whether to spread every position evenly rather than move as few rows as possible
+     */
+    private void writePlaylistPositions(UUID playlistId, List<UUID> order, Map<UUID, Integer> currentPositions, boolean renumber) throws SQLException {
+        int[] current = new int[order.size()];
+        for (int i = 0; i < current.length; i++) {
+            current[i] = currentPositions.get(order.get(i));
+        }
+        int[] targets = renumber ? null : positionsAroundLongestRun(current);
+        if (targets == null) {
+            int gap = (int) Math.min(PLAYLIST_POSITION_GAP, PLAYLIST_POSITION_LIMIT / Math.max(1, current.length));
+            targets = new int[current.length];
+            for (int i = 0; i < targets.length; i++) {
+                targets[i] = i * gap;
+            }
+        }
+
+        List<UUID> movedSongIds = new ArrayList<>();
+        List<Integer> targetPositions = new ArrayList<>();
+        int maxPosition = -1;
+        for (int i = 0; i < current.length; i++) {
+            maxPosition = Math.max(maxPosition, Math.max(current[i], targets[i]));
+            if (current[i] != targets[i]) {
+                movedSongIds.add(order.get(i));
+                targetPositions.add(targets[i]);
+            }
+        }
+        if (movedSongIds.isEmpty()) {
+            return;
+        }
+
+        List<Integer> parkingPositions = new ArrayList<>(movedSongIds.size());
+        for (int i = 0; i < movedSongIds.size(); i++) {
+            parkingPositions.add(maxPosition + 1 + i);
+        }
+        String sql = "UPDATE playlistsongs ps SET position = v.position " +
+                "FROM unnest(?::uuid[], ?::int[]) AS v(song_id, position) " +
+                "WHERE ps.playlist_id = ? AND ps.song_id = v.song_id";
+        Array songIdArray = connection.createArrayOf("uuid", movedSongIds.toArray());
+        for (List<Integer> positions : List.of(parkingPositions, targetPositions)) {
+            try (PreparedStatement ps = prepare("writePlaylistPositions", sql)) {
+                ps.setArray(1, songIdArray);
+                ps.setArray(2, connection.createArrayOf("integer", positions.toArray()));
+                ps.setObject(3, playlistId);
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Computes new positions for songs given in their desired order with their current positions: the longest
+     * subsequence whose positions already increase keeps them, and the others are spread evenly in the gaps
+     * between those, or spaced by {@link #PLAYLIST_POSITION_GAP} after the last one.
+     *
+     * @return the new positions, or null if a gap is too narrow or they would exceed {@link #PLAYLIST_POSITION_LIMIT}
+     */
+    private static int[] positionsAroundLongestRun(int[] current) {
+        int n = current.length;
+        // longest strictly increasing subsequence in O(n log n): ends[k] is the index of the smallest position that
+        // ends an increasing subsequence of length k + 1, and previous links each index to its predecessor
+        int[] ends = new int[n];
+        int[] previous = new int[n];
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            if (current[i] > PLAYLIST_POSITION_LIMIT) {
+                return null;
+            }
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (current[ends[middle]] < current[i]) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            previous[i] = low > 0 ? ends[low - 1] : -1;
+            ends[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+        boolean[] kept = new boolean[n];
+        for (int i = length > 0 ? ends[length - 1] : -1; i >= 0; i = previous[i]) {
+            kept[i] = true;
+        }
+
+        int[] targets = new int[n];
+        long lower = -1;
+        int i = 0;
+        while (i < n) {
+            if (kept[i]) {
+                targets[i] = current[i];
+                lower = current[i];
+                i++;
+                continue;
+            }
+            int runEnd = i;
+            while (runEnd < n && !kept[runEnd]) {
+                runEnd++;
+            }
+            int count = runEnd - i;
+            long upper = runEnd < n
+                    ? current[runEnd]
+                    : Math.min(lower + (long) (count + 1) * PLAYLIST_POSITION_GAP, PLAYLIST_POSITION_LIMIT + 1L);
+            if (upper - lower - 1 < count) {
+                return null;
+            }
+            for (int j = 0; j < count; j++) {
+                targets[i + j] = (int) (lower + (j + 1) * (upper - lower) / (count + 1));
+            }
+            i = runEnd;
+        }
+        return targets;
+    }
+
+    /**
+     * Moves a song of a playlist right before another one, or to the end, and marks the playlist as manually sorted.
+     * When there is room between the target and its predecessor only the moved row is updated; otherwise (or if the
+     * playlist was sorted implicitly until now) the new order is stored through {@link #reorderPlaylist}.
+     *
+     * @param playlistId   The playlist containing the songs
+     * @param songId       The song to move
+     * @param beforeSongId The song that should follow the moved one, or null to move it to the end
+     * @return false if either song is not in the playlist, true otherwise
+     * @throws SQLException If any database error occurs
+     */
+    public boolean moveSongInPlaylist(UUID playlistId, UUID songId, UUID beforeSongId) throws SQLException {
+        Optional<Boolean> isManuallySorted = lockPlaylist(playlistId);
+        if (isManuallySorted.isEmpty() || songId.equals(beforeSongId)) {
+            return isManuallySorted.isPresent();
+        }
+
+        if (!isManuallySorted.get()) {
+            // the displayed order is not the stored one yet: store it, applying the move along the way
+            List<UUID> order = new ArrayList<>(getSongIdsInPlaylistOrder(playlistId, false));
+            if (!order.remove(songId) || (beforeSongId != null && !order.contains(beforeSongId))) {
+                return false;
+            }
+            order.add(beforeSongId == null ? order.size() : order.indexOf(beforeSongId), songId);
+            return reorderPlaylist(playlistId, order);
+        }
+
+        Integer movedPosition = null;
+        Integer beforePosition = null;
+        try (PreparedStatement ps = prepare("moveSongInPlaylist", "SELECT song_id, position FROM playlistsongs WHERE playlist_id = ? AND song_id = ANY(?)")) {
             ps.setObject(1, playlistId);
+            ps.setArray(2, connection.createArrayOf("uuid", new Object[]{songId, beforeSongId}));
             try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    nextPosition = rs.getInt("next_pos");
+                while (rs.next()) {
+                    if (songId.equals(rs.getObject("song_id"))) {
+                        movedPosition = rs.getInt("position");
+                    } else {
+                        beforePosition = rs.getInt("position");
+                    }
                 }
             }
         }
+        if (movedPosition == null || (beforeSongId != null && beforePosition == null)) {
+            return false;
+        }
 
-        String insertSql = "INSERT INTO playlistsongs (playlist_id, song_id, position) VALUES (?, ?, ?) RETURNING *";
-        try (PreparedStatement ps = connection.prepareStatement(insertSql)) {
+        // the closest position below the target slot, not counting the moved song itself
+        String boundSql = beforeSongId == null
+                ? "SELECT MAX(position) FROM playlistsongs WHERE playlist_id = ? AND song_id <> ?"
+                : "SELECT MAX(position) FROM playlistsongs WHERE playlist_id = ? AND song_id <> ? AND position < ?";
+        int lowerBound = -1;
+        try (PreparedStatement ps = prepare("moveSongInPlaylist", boundSql)) {
             ps.setObject(1, playlistId);
             ps.setObject(2, songId);
-            ps.setInt(3, nextPosition);
+            if (beforeSongId != null) {
+                ps.setInt(3, beforePosition);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next() && rs.getObject(1) != null) {
+                    lowerBound = rs.getInt(1);
+                }
+            }
+        }
+
+        int upperBound = beforeSongId == null ? lowerBound + 2 * PLAYLIST_POSITION_GAP : beforePosition;
+        if (movedPosition > lowerBound && movedPosition < upperBound) {
+            // already in place
+            return true;
+        }
+
+        if (upperBound - lowerBound < 2 || (beforeSongId == null && lowerBound + PLAYLIST_POSITION_GAP > PLAYLIST_POSITION_LIMIT)) {
+            // no free position left in between, or none below the limit at the end
+            List<UUID> order = new ArrayList<>(getSongIdsInPlaylistOrder(playlistId, true));
+            order.remove(songId);
+            order.add(beforeSongId == null ? order.size() : order.indexOf(beforeSongId), songId);
+            return reorderPlaylist(playlistId, order);
+        }
+
+        try (PreparedStatement ps = prepare("moveSongInPlaylist", "UPDATE playlistsongs SET position = ? WHERE playlist_id = ? AND song_id = ?")) {
+            ps.setInt(1, beforeSongId == null ? lowerBound + PLAYLIST_POSITION_GAP : lowerBound + (upperBound - lowerBound) / 2);
+            ps.setObject(2, playlistId);
+            ps.setObject(3, songId);
+            ps.executeUpdate();
+        }
+        return true;
+    }
+
+    /**
+     * Locks a playlist row until the end of the transaction.
+     *
+     * @return whether the playlist is manually sorted, or an empty Optional if it does not exist
+     */
+    private Optional<Boolean> lockPlaylist(UUID playlistId) throws SQLException {
+        try (PreparedStatement ps = prepare("lockPlaylist", "SELECT is_manually_sorted FROM playlists WHERE id = ? FOR UPDATE")) {
+            ps.setObject(1, playlistId);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    return true;
+                    return Optional.of(rs.getBoolean("is_manually_sorted"));
                 }
             }
         }
-        throw new SQLException("Failed to add song to playlist");
+        return Optional.empty();
     }
 
-    public void clearPlaylist(UUID playlistId, boolean setManuallySorted) throws SQLException {
-        String sql = "DELETE FROM playlistsongs WHERE playlist_id = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+    private void setManuallySorted(UUID playlistId) throws SQLException {
+        try (PreparedStatement ps = prepare("setManuallySorted", "UPDATE playlists SET is_manually_sorted = TRUE WHERE id = ? AND NOT is_manually_sorted")) {
             ps.setObject(1, playlistId);
             ps.executeUpdate();
-            if (setManuallySorted) {
-                sql = "UPDATE playlists SET is_manually_sorted = TRUE WHERE id = ?";
-                try (PreparedStatement psManualSort = connection.prepareStatement(sql)) {
-                    psManualSort.setObject(1, playlistId);
-                    psManualSort.executeUpdate();
+        }
+    }
+
+    private List<UUID> getSongIdsInPlaylistOrder(UUID playlistId, boolean isManuallySorted) throws SQLException {
+        String sql = "SELECT ps.song_id FROM playlistsongs ps " +
+                "JOIN songs s ON s.id = ps.song_id " +
+                "WHERE ps.playlist_id = ? ORDER BY " + playlistOrder(isManuallySorted, false);
+        List<UUID> songIds = new ArrayList<>();
+        try (PreparedStatement ps = prepare("getSongIdsInPlaylistOrder", sql)) {
+            ps.setObject(1, playlistId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    songIds.add((UUID) rs.getObject("song_id"));
                 }
             }
         }
+        return songIds;
     }
 
     /**
@@ -379,7 +844,7 @@ public final class DAO {
     public List<Playlist> getPlaylistsOfOwner(User user) throws SQLException {
         String sql = "SELECT id, name, owner, created_at, is_manually_sorted FROM playlists WHERE owner = ? ORDER BY created_at DESC, name";
         List<Playlist> playlists = new ArrayList<>();
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = prepare("getPlaylistsOfOwner", sql)) {
             ps.setString(1, user.getUsername());
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
@@ -397,7 +862,7 @@ public final class DAO {
 
     public Optional<Playlist> getPlaylistById(UUID playlistId) throws SQLException {
         String sql = "SELECT id, name, owner, created_at, is_manually_sorted FROM playlists WHERE id = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = prepare("getPlaylistById", sql)) {
             ps.setObject(1, playlistId);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
@@ -415,7 +880,7 @@ public final class DAO {
 
     public Playlist insertPlaylist(Playlist playlist) throws SQLException {
         String sql = "INSERT INTO playlists (id, name, owner, created_at, is_manually_sorted) VALUES (?, ?, ?, ?, ?) RETURNING *";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = prepare("insertPlaylist", sql)) {
             ps.setObject(1, playlist.getId());
             ps.setString(2, playlist.getName());
             ps.setString(3, playlist.getOwner());
@@ -433,7 +898,7 @@ public final class DAO {
 
     public List<Genre> getGenres() throws SQLException {
         String sql = "SELECT name FROM genres ORDER BY name";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = prepare("getGenres", sql)) {
             try (ResultSet rs = ps.executeQuery()) {
                 List<Genre> genres = new ArrayList<>();
                 while (rs.next()) {
@@ -453,7 +918,7 @@ public final class DAO {
      */
     public Optional<Song> getSongById(UUID songId) {
         String sql = "SELECT * FROM songs WHERE id = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = prepare("getSongById", sql)) {
             ps.setObject(1, songId);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
@@ -470,10 +935,259 @@ public final class DAO {
     public void setInvalidationDate(String nickname, Date date) throws SQLException {
         String sql = "UPDATE users SET last_session_invalidation = ? WHERE username = ?";
 
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = prepare("setInvalidationDate", sql)) {
             ps.setTimestamp(1, new Timestamp(date.getTime()));
             ps.setObject(2, nickname);
             ps.executeUpdate();
         }
     }
+
+    /**
+     * Claims an audio blob for a new reference: creates its row if needed and refreshes its touch time, which keeps
+     * garbage collection away from it for a while.
+     *
+     * @param sha256 Hex SHA-256 of the content.
+     * @param size   Size of the content in bytes.
+     * @throws SQLException If there is an error during the database operation.
+     */
+    public void claimAudioBlob(String sha256, long size) throws SQLException {
+        String sql = "INSERT INTO audioblobs (sha256, size) VALUES (?, ?) " +
+                "ON CONFLICT (sha256) DO UPDATE SET touched_at = CURRENT_TIMESTAMP";
+        try (PreparedStatement ps = prepare("claimAudioBlob", sql)) {
+            ps.setString(1, sha256);
+            ps.setLong(2, size);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Looks for a song of the given user with the given audio content. Only the user's own songs are considered,
+     * so that nobody can probe for content uploaded by others.
+     *
+     * @param owner  Username of the user.
+     * @param sha256 Hex SHA-256 of the content.
+     * @return One such song, if any.
+     * @throws SQLException If there is an error during the database operation.
+     */
+    public Optional<Song> findSongOfOwnerByAudioSha256(String owner, String sha256) throws SQLException {
+        // the hash may also be that of a WAV file which was stored converted
+        String sql = "SELECT * FROM songs WHERE owner = ? AND (audio_sha256 = ? " +
+                "OR audio_sha256 = (SELECT sha256 FROM audioblobaliases WHERE source_sha256 = ?)) LIMIT 1";
+        try (PreparedStatement ps = prepare("findSongOfOwnerByAudioSha256", sql)) {
+            ps.setString(1, owner);
+            ps.setString(2, sha256);
+            ps.setString(3, sha256);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? Optional.of(mapResultSetToSong(rs)) : Optional.empty();
+            }
+        }
+    }
+
+    /**
+     * Locks a batch of blobs that no song points at and that were not claimed since the given time. Blobs locked
+     * by another transaction are skipped.
+     *
+     * @param touchedBefore Only blobs last claimed before this time are returned.
+     * @param limit         Maximum number of blobs to return.
+     * @return The hashes of the locked blobs.
+     * @throws SQLException If there is an error during the database operation.
+     */
+    public List<String> lockUnreferencedAudioBlobs(Timestamp touchedBefore, int limit) throws SQLException {
+        String sql = "SELECT sha256 FROM audioblobs WHERE ref_count = 0 AND touched_at < ? " +
+                "ORDER BY touched_at LIMIT ? FOR UPDATE SKIP LOCKED";
+        List<String> hashes = new ArrayList<>();
+        try (PreparedStatement ps = prepare("lockUnreferencedAudioBlobs", sql)) {
+            ps.setTimestamp(1, touchedBefore);
+            ps.setInt(2, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    hashes.add(rs.getString("sha256"));
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Deletes the rows of the given blobs, provided they are still unreferenced.
+     *
+     * @param hashes Hex SHA-256 of the blobs.
+     * @throws SQLException If there is an error during the database operation.
+     */
+    public void deleteAudioBlobs(List<String> hashes) throws SQLException {
+        String sql = "DELETE FROM audioblobs WHERE sha256 = ANY(?::char(64)[]) AND ref_count = 0";
+        try (PreparedStatement ps = prepare("deleteAudioBlobs", sql)) {
+            ps.setArray(1, connection.createArrayOf("text", hashes.toArray()));
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Returns a batch of songs whose audio still lives in a per-song file, in id order.
+     *
+     * @param afterId Only songs with a greater id are returned, or all of them if null.
+     * @param limit   Maximum number of songs to return.
+     * @return The songs.
+     * @throws SQLException If there is an error during the database operation.
+     */
+    public List<Song> getSongsWithoutAudioBlob(UUID afterId, int limit) throws SQLException {
+        String sql = "SELECT * FROM songs WHERE audio_sha256 IS NULL " +
+                (afterId != null ? "AND id > ? " : "") +
+                "ORDER BY id LIMIT ?";
+        List<Song> songs = new ArrayList<>();
+        try (PreparedStatement ps = prepare("getSongsWithoutAudioBlob", sql)) {
+            int i = 1;
+            if (afterId != null) {
+                ps.setObject(i++, afterId);
+            }
+            ps.setInt(i, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    songs.add(mapResultSetToSong(rs));
+                }
+            }
+        }
+        return songs;
+    }
+
+    /**
+     * Points a song that has no blob yet at the given one.
+     *
+     * @param songId The song.
+     * @param sha256 Hex SHA-256 of the blob, which must exist.
+     * @return true if the song was updated, false if it is gone or already has a blob.
+     * @throws SQLException If there is an error during the database operation.
+     */
+    public boolean setSongAudioSha256(UUID songId, String sha256) throws SQLException {
+        String sql = "UPDATE songs SET audio_sha256 = ? WHERE id = ? AND audio_sha256 IS NULL";
+        try (PreparedStatement ps = prepare("setSongAudioSha256", sql)) {
+            ps.setString(1, sha256);
+            ps.setObject(2, songId);
+            return ps.executeUpdate() == 1;
+        }
+    }
+
+    /**
+     * Claims the blob that content with the given hash was converted to, if any, refreshing its touch time like
+     * {@link #claimAudioBlob(String, long)}. Waits for a garbage collector holding the blob, and finds nothing if
+     * the blob was collected.
+     *
+     * @param sourceSha256 Hex SHA-256 of the original content.
+     * @return The hash of the converted blob, if it still exists.
+     * @throws SQLException If there is an error during the database operation.
+     */
+    public Optional<String> claimAudioBlobAlias(String sourceSha256) throws SQLException {
+        String sql = "UPDATE audioblobs SET touched_at = CURRENT_TIMESTAMP " +
+                "WHERE sha256 = (SELECT sha256 FROM audioblobaliases WHERE source_sha256 = ?) RETURNING sha256";
+        try (PreparedStatement ps = prepare("claimAudioBlobAlias", sql)) {
+            ps.setString(1, sourceSha256);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? Optional.of(rs.getString("sha256")) : Optional.empty();
+            }
+        }
+    }
+
+    /**
+     * Records that content with the given hash is stored converted, as the given blob.
+     *
+     * @param sourceSha256 Hex SHA-256 of the original content.
+     * @param sha256       Hex SHA-256 of the blob, which must exist.
+     * @throws SQLException If there is an error during the database operation.
+     */
+    public void putAudioBlobAlias(String sourceSha256, String sha256) throws SQLException {
+        String sql = "INSERT INTO audioblobaliases (source_sha256, sha256) VALUES (?, ?) " +
+                "ON CONFLICT (source_sha256) DO UPDATE SET sha256 = EXCLUDED.sha256";
+        try (PreparedStatement ps = prepare("putAudioBlobAlias", sql)) {
+            ps.setString(1, sourceSha256);
+            ps.setString(2, sha256);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Returns the blobs that songs of the given audio type point at.
+     *
+     * @param audioMimeType The MIME type of the songs.
+     * @return The hashes of the blobs.
+     * @throws SQLException If there is an error during the database operation.
+     */
+    public List<String> getAudioBlobsOfType(String audioMimeType) throws SQLException {
+        String sql = "SELECT DISTINCT audio_sha256 FROM songs WHERE audio_mime_type = ? AND audio_sha256 IS NOT NULL";
+        List<String> hashes = new ArrayList<>();
+        try (PreparedStatement ps = prepare("getAudioBlobsOfType", sql)) {
+            ps.setString(1, audioMimeType);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    hashes.add(rs.getString("audio_sha256"));
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Points the songs of the given blob and type at another blob of another type, e.g. after a conversion, and
+     * clears their audio metadata.
+     *
+     * @param sha256           Hex SHA-256 of the current blob.
+     * @param audioMimeType    The current MIME type of the songs.
+     * @param newSha256        Hex SHA-256 of the new blob, which must exist.
+     * @param newAudioMimeType The new MIME type of the songs.
+     * @return The number of songs updated.
+     * @throws SQLException If there is an error during the database operation.
+     */
+    public int replaceSongsAudio(String sha256, String audioMimeType, String newSha256, String newAudioMimeType) throws SQLException {
+        // the metadata describes the old content; it is probed again
+        String sql = "UPDATE songs SET audio_sha256 = ?, audio_mime_type = ?, " +
+                "audio_size = NULL, duration_ms = NULL, bitrate = NULL, sample_rate = NULL, channels = NULL " +
+                "WHERE audio_sha256 = ? AND audio_mime_type = ?";
+        try (PreparedStatement ps = prepare("replaceSongsAudio", sql)) {
+            ps.setString(1, newSha256);
+            ps.setString(2, newAudioMimeType);
+            ps.setString(3, sha256);
+            ps.setString(4, audioMimeType);
+            return ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Returns one song for every blob and audio type whose metadata has not been probed yet.
+     *
+     * @return The songs.
+     * @throws SQLException If there is an error during the database operation.
+     */
+    public List<Song> getSongsWithUnprobedAudio() throws SQLException {
+        String sql = "SELECT DISTINCT ON (audio_sha256, audio_mime_type) * FROM songs " +
+                "WHERE audio_size IS NULL AND audio_sha256 IS NOT NULL";
+        List<Song> songs = new ArrayList<>();
+        try (PreparedStatement ps = prepare("getSongsWithUnprobedAudio", sql);
+             ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                songs.add(mapResultSetToSong(rs));
+            }
+        }
+        return songs;
+    }
+
+    /**
+     * Sets the audio metadata of the not yet probed songs of the given blob and type.
+     *
+     * @param song A song carrying the blob, type and metadata.
+     * @return The number of songs updated.
+     * @throws SQLException If there is an error during the database operation.
+     */
+    public int setAudioMetadata(Song song) throws SQLException {
+        String sql = "UPDATE songs SET audio_size = ?, duration_ms = ?, bitrate = ?, sample_rate = ?, channels = ? " +
+                "WHERE audio_sha256 = ? AND audio_mime_type = ? AND audio_size IS NULL";
+        try (PreparedStatement ps = prepare("setAudioMetadata", sql)) {
+            ps.setObject(1, song.getAudioSize());
+            ps.setObject(2, song.getDurationMillis());
+            ps.setObject(3, song.getBitrate());
+            ps.setObject(4, song.getSampleRate());
+            ps.setObject(5, song.getChannels());
+            ps.setString(6, song.getAudioSha256());
+            ps.setString(7, song.getAudioMimeType());
+            return ps.executeUpdate();
+        }
+    }
 }
@@ -19,13 +19,15 @@ public final class DatabaseManager {
         config.addDataSourceProperty("cachePrepStmts", "true");
         config.addDataSourceProperty("prepStmtCacheSize", "250");
         config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+        config.setMetricsTrackerFactory(ConnectionPoolMetrics.TRACKER_FACTORY);
         ds = new HikariDataSource(config);
     }
 
     private DatabaseManager() {}
 
     /**
-     * Gets a connection to the postgres database using HikariCP.
+     * Gets a connection to the postgres database using HikariCP. The time spent waiting for it is recorded in
+     * {@link ConnectionPoolMetrics}.
      *
      * @return a Connection object
      * @throws SQLException if a database access error occurs
@@ -0,0 +1,164 @@
+package org.titilda.music.base.database;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Brings the database schema up to date by applying the numbered SQL scripts in {@code db/migrations}, in order,
+ * exactly once per database. Applied versions are recorded in {@code schema_migrations} together with a checksum
+ * of their script, so that an edited script is detected instead of silently diverging between nodes.
+ * Nodes starting at the same time serialize on an advisory lock.
+ */
+public final class MigrationRunner {
+    private MigrationRunner() {}
+
+    public static class MigrationException extends Exception {
+        public MigrationException(String message) {
+            super(message);
+        }
+
+        public MigrationException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private static final String MIGRATIONS_PATH = "db/migrations/";
+
+    // New scripts are appended here; applied ones must never be edited.
+    private static final List<String> MIGRATIONS = List.of(
+            "V001__baseline.sql",
+            "V002__performance_indexes.sql",
+            "V003__audio_blobs.sql",
+            "V004__audio_blob_aliases.sql",
+            "V005__song_audio_metadata.sql"
+    );
+
+    // arbitrary, just has to be the same on every node
+    private static final long ADVISORY_LOCK_KEY = 0x7469_7469_6c64_6131L;
+
+    private record Migration(int version, String description, String script, String checksum) {}
+
+    /**
+     * Applies all pending migrations in a single transaction.
+     *
+     * @return the number of migrations applied
+     * @throws MigrationException if a script cannot be read, has been changed after being applied, or fails
+     */
+    public static int migrate() throws MigrationException {
+        List<Migration> migrations = loadMigrations();
+
+        try (Connection connection = DatabaseManager.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                try (PreparedStatement ps = connection.prepareStatement("SELECT pg_advisory_xact_lock(?)")) {
+                    ps.setLong(1, ADVISORY_LOCK_KEY);
+                    ps.execute();
+                }
+                try (Statement st = connection.createStatement()) {
+                    st.execute("CREATE TABLE IF NOT EXISTS schema_migrations (" +
+                            "version INTEGER PRIMARY KEY, " +
+                            "description TEXT NOT NULL, " +
+                            "checksum TEXT NOT NULL, " +
+                            "applied_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)");
+                }
+
+                Map<Integer, String> appliedChecksums = new HashMap<>();
+                try (PreparedStatement ps = connection.prepareStatement("SELECT version, checksum FROM schema_migrations");
+                     ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        appliedChecksums.put(rs.getInt("version"), rs.getString("checksum"));
+                    }
+                }
+
+                int applied = 0;
+                for (Migration migration : migrations) {
+                    String appliedChecksum = appliedChecksums.get(migration.version());
+                    if (appliedChecksum != null) {
+                        if (!appliedChecksum.equals(migration.checksum())) {
+                            throw new MigrationException("Migration V" + migration.version() + " has been modified after being applied");
+                        }
+                        continue;
+                    }
+
+                    try (Statement st = connection.createStatement()) {
+                        st.execute(migration.script());
+                    }
+                    try (PreparedStatement ps = connection.prepareStatement("INSERT INTO schema_migrations (version, description, checksum) VALUES (?, ?, ?)")) {
+                        ps.setInt(1, migration.version());
+                        ps.setString(2, migration.description());
+                        ps.setString(3, migration.checksum());
+                        ps.executeUpdate();
+                    }
+                    System.out.println("Applied migration V" + migration.version() + " (" + migration.description() + ")");
+                    applied++;
+                }
+
+                connection.commit();
+                return applied;
+            }
+            catch (SQLException | MigrationException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+        catch (SQLException e) {
+            throw new MigrationException("Failed to apply migrations: " + e.getMessage(), e);
+        }
+    }
+
+    private static List<Migration> loadMigrations() throws MigrationException {
+        int previousVersion = 0;
+        List<Migration> migrations = new ArrayList<>();
+        for (String fileName : MIGRATIONS) {
+            // V<version>__<description>.sql
+            String[] parts = fileName.substring(0, fileName.length() - ".sql".length()).split("__", 2);
+            int version = Integer.parseInt(parts[0].substring(1));
+            if (version <= previousVersion) {
+                throw new MigrationException("Migrations are not in increasing version order: " + fileName);
+            }
+            previousVersion = version;
+
+            byte[] content;
+            try (InputStream is = MigrationRunner.class.getClassLoader().getResourceAsStream(MIGRATIONS_PATH + fileName)) {
+                if (is == null) {
+                    throw new MigrationException("Missing migration script: " + fileName);
+                }
+                content = is.readAllBytes();
+            }
+            catch (IOException e) {
+                throw new MigrationException("Failed to read migration script: " + fileName, e);
+            }
+
+            migrations.add(new Migration(
+                    version,
+                    parts[1].replace('_', ' '),
+                    new String(content, StandardCharsets.UTF_8),
+                    checksum(content)
+            ));
+        }
+        return migrations;
+    }
+
+    private static String checksum(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every JVM is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.titilda.music.base.database;
+
+import org.titilda.music.base.model.Song;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * Position of a page boundary in a playlist, used for keyset pagination: the page starts right after (or ends right
+ * before) the row with this sort key. Manually sorted playlists are keyed by position, the others by
+ * (artist, release year, title, id), matching the ORDER BY clauses of the page queries.
+ * Cursors are handed to clients as opaque URL-safe strings.
+ *
+ * @param backward   whether the page ends before the key instead of starting after it
+ * @param manual     whether the key refers to the manual order
+ * @param position   position of the row, for the manual order
+ * @param artist     artist of the row, for the implicit order
+ * @param releaseYear release year of the row (or {@link #MISSING_RELEASE_YEAR}), for the implicit order
+ * @param title      title of the row, for the implicit order
+ * @param songId     id of the song in the row, for the implicit order
+ */
+record PlaylistCursor(boolean backward, boolean manual, int position, String artist, int releaseYear, String title, UUID songId) {
+    // songs without a release year sort after all the others, as NULLs do in ascending order
+    static final int MISSING_RELEASE_YEAR = Integer.MAX_VALUE;
+
+    private static final byte VERSION = 1;
+
+    static PlaylistCursor after(boolean manual, int position, Song song) {
+        return of(false, manual, position, song);
+    }
+
+    static PlaylistCursor before(boolean manual, int position, Song song) {
+        return of(true, manual, position, song);
+    }
+
+    private static PlaylistCursor of(boolean backward, boolean manual, int position, Song song) {
+        if (manual) {
+            return new PlaylistCursor(backward, true, position, null, 0, null, null);
+        }
+        // release years are positive, so 0 is how a NULL column comes out of ResultSet.getInt
+        Integer year = song.getReleaseYear();
+        int releaseYear = (year == null || year == 0) ? MISSING_RELEASE_YEAR : year;
+        return new PlaylistCursor(backward, false, 0, song.getArtist(), releaseYear, song.getTitle(), song.getId());
+    }
+
+    String encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeBoolean(backward);
+            out.writeBoolean(manual);
+            if (manual) {
+                out.writeInt(position);
+            } else {
+                out.writeUTF(artist);
+                out.writeInt(releaseYear);
+                out.writeUTF(title);
+                out.writeLong(songId.getMostSignificantBits());
+                out.writeLong(songId.getLeastSignificantBits());
+            }
+        }
+        catch (IOException e) {
+            // cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    static PlaylistCursor decode(String cursor) throws DAO.InvalidCursorException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(cursor)))) {
+            if (in.readByte() != VERSION) {
+                throw new DAO.InvalidCursorException();
+            }
+            boolean backward = in.readBoolean();
+            boolean manual = in.readBoolean();
+            PlaylistCursor decoded = manual
+                    ? new PlaylistCursor(backward, true, in.readInt(), null, 0, null, null)
+                    : new PlaylistCursor(backward, false, 0, in.readUTF(), in.readInt(), in.readUTF(), new UUID(in.readLong(), in.readLong()));
+            if (in.available() != 0) {
+                throw new DAO.InvalidCursorException();
+            }
+            return decoded;
+        }
+        catch (IllegalArgumentException | IOException _) {
+            throw new DAO.InvalidCursorException();
+        }
+    }
+}
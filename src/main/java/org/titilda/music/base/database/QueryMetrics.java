@@ -0,0 +1,195 @@
+package org.titilda.music.base.database;
+
+import org.titilda.music.base.metrics.LatencyHistogram;
+import org.titilda.music.base.metrics.PrometheusWriter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Times the statements of the {@link DAO} by the method that runs them, and counts the rows they return or affect
+ * and the ones that fail.
+ * <p>
+ * The time of a query is the time spent in the driver, executing it and then fetching its rows, but not the time
+ * the caller spends on each row in between, which matters for the methods that stream their results. A query is
+ * recorded when its result set or statement is closed; failures are recorded with their duration as well, even when
+ * the DAO method swallows them.
+ */
+public final class QueryMetrics {
+    private QueryMetrics() {}
+
+    private static final class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder rows = new LongAdder();
+        final LongAdder errors = new LongAdder();
+    }
+
+    private static final Map<String, Stats> STATS = new ConcurrentHashMap<>();
+
+    /**
+     * Wraps a statement so that its executions are recorded under the given DAO method.
+     */
+    static PreparedStatement instrument(String method, PreparedStatement statement) {
+        return (PreparedStatement) Proxy.newProxyInstance(
+                QueryMetrics.class.getClassLoader(),
+                new Class<?>[] {PreparedStatement.class},
+                new StatementHandler(STATS.computeIfAbsent(method, _ -> new Stats()), statement)
+        );
+    }
+
+    public static void writeTo(PrometheusWriter out) {
+        Map<String, LatencyHistogram.Snapshot> snapshots = new TreeMap<>();
+        STATS.forEach((method, stats) -> snapshots.put(method, stats.latency.snapshot()));
+
+        out.family("titilda_dao_query_duration_seconds", "histogram", "Time spent in the driver by the statements of each DAO method.");
+        snapshots.forEach((method, snapshot) -> out.histogram("titilda_dao_query_duration_seconds", snapshot, "method", method));
+        out.family("titilda_dao_query_duration_quantile_seconds", "gauge", "Median, 95th and 99th percentile of the statement durations, estimated from the histogram.");
+        snapshots.forEach((method, snapshot) -> out.quantiles("titilda_dao_query_duration_quantile_seconds", snapshot, "method", method));
+        out.family("titilda_dao_rows_total", "counter", "Rows returned or affected by the statements of each DAO method.");
+        snapshots.keySet().forEach(method -> out.sample("titilda_dao_rows_total", STATS.get(method).rows.sum(), "method", method));
+        out.family("titilda_dao_errors_total", "counter", "Statements of each DAO method that failed.");
+        snapshots.keySet().forEach(method -> out.sample("titilda_dao_errors_total", STATS.get(method).errors.sum(), "method", method));
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        }
+        catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Statements are used by one thread at a time, so the pending query needs no synchronization.
+     */
+    private static final class StatementHandler implements InvocationHandler {
+        private final Stats stats;
+        private final PreparedStatement statement;
+        // the query whose result set is still open
+        private boolean pending = false;
+        private long pendingNanos;
+        private long pendingRows;
+
+        StatementHandler(Stats stats, PreparedStatement statement) {
+            this.stats = stats;
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "executeQuery" -> {
+                    finishQuery();
+                    long start = System.nanoTime();
+                    ResultSet resultSet = (ResultSet) timed(method, args, start);
+                    pending = true;
+                    pendingNanos = System.nanoTime() - start;
+                    pendingRows = 0;
+                    return Proxy.newProxyInstance(
+                            QueryMetrics.class.getClassLoader(),
+                            new Class<?>[] {ResultSet.class},
+                            new ResultSetHandler(this, resultSet)
+                    );
+                }
+                case "executeUpdate", "executeLargeUpdate", "executeBatch", "executeLargeBatch", "execute" -> {
+                    finishQuery();
+                    long start = System.nanoTime();
+                    Object result = timed(method, args, start);
+                    stats.latency.record(System.nanoTime() - start);
+                    stats.rows.add(switch (result) {
+                        case Integer count -> count;
+                        case Long count -> count;
+                        // statements that did not report their count are negative
+                        case int[] counts -> Arrays.stream(counts).filter(count -> count > 0).sum();
+                        case long[] counts -> Arrays.stream(counts).filter(count -> count > 0).sum();
+                        default -> Math.max(0, statement.getUpdateCount());
+                    });
+                    return result;
+                }
+                case "close" -> {
+                    finishQuery();
+                    return QueryMetrics.invoke(statement, method, args);
+                }
+                default -> {
+                    return QueryMetrics.invoke(statement, method, args);
+                }
+            }
+        }
+
+        /**
+         * Runs a method of the statement, recording it as an error if it fails.
+         */
+        private Object timed(Method method, Object[] args, long start) throws Throwable {
+            try {
+                return QueryMetrics.invoke(statement, method, args);
+            }
+            catch (Throwable e) {
+                stats.latency.record(System.nanoTime() - start);
+                stats.errors.increment();
+                throw e;
+            }
+        }
+
+        void finishQuery() {
+            if (pending) {
+                pending = false;
+                stats.latency.record(pendingNanos);
+                stats.rows.add(pendingRows);
+            }
+        }
+    }
+
+    private static final class ResultSetHandler implements InvocationHandler {
+        private final StatementHandler owner;
+        private final ResultSet resultSet;
+
+        ResultSetHandler(StatementHandler owner, ResultSet resultSet) {
+            this.owner = owner;
+            this.resultSet = resultSet;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "next" -> {
+                    long start = System.nanoTime();
+                    try {
+                        boolean hasRow = resultSet.next();
+                        if (hasRow) {
+                            owner.pendingRows++;
+                        }
+                        return hasRow;
+                    }
+                    catch (Throwable e) {
+                        owner.stats.errors.increment();
+                        throw e;
+                    }
+                    finally {
+                        owner.pendingNanos += System.nanoTime() - start;
+                    }
+                }
+                case "close" -> {
+                    try {
+                        return QueryMetrics.invoke(resultSet, method, args);
+                    }
+                    finally {
+                        owner.finishQuery();
+                    }
+                }
+                default -> {
+                    return QueryMetrics.invoke(resultSet, method, args);
+                }
+            }
+        }
+    }
+}
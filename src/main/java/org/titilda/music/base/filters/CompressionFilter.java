@@ -0,0 +1,602 @@
+package org.titilda.music.base.filters;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.annotation.WebFilter;
+import jakarta.servlet.http.HttpFilter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.titilda.music.base.util.ConfigManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses textual responses (HTML pages, JSON, scripts) with gzip or deflate, as negotiated with Accept-Encoding.
+ * <p>
+ * Bodies are buffered up to the size threshold first: smaller ones are sent as they are, with an exact
+ * Content-Length, while larger ones are compressed as they are written. Responses that already carry a
+ * Content-Encoding, or whose type is already compressed (audio, webp artworks...), are left alone, and so are the
+ * paths listed in http.compression.excluded_paths.
+ * <p>
+ * A request that goes asynchronous outlives this filter, so its body is not compressed unless compression had
+ * already started; in that case the compressed stream is finished when the request completes.
+ * <p>
+ * Deflaters are pooled, since each one holds a sizeable native buffer. zstd is not offered, as the JDK has no
+ * encoder for it.
+ */
+@WebFilter(filterName = "CompressionFilter", asyncSupported = true)
+public final class CompressionFilter extends HttpFilter {
+    private static final boolean ENABLED = ConfigManager.getBoolean(ConfigManager.ConfigKey.COMPRESSION_ENABLED);
+    private static final int MIN_SIZE = ConfigManager.getInt(ConfigManager.ConfigKey.COMPRESSION_MIN_SIZE);
+    private static final List<String> EXCLUDED_PATHS = Arrays.stream(ConfigManager.getString(ConfigManager.ConfigKey.COMPRESSION_EXCLUDED_PATHS).split(","))
+            .map(String::trim)
+            .filter(s -> !s.isEmpty())
+            .toList();
+
+    // a fast level: most of the gain for a fraction of the CPU time of the higher ones
+    private static final int LEVEL = 5;
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+    private static final DeflaterPool GZIP_DEFLATERS = new DeflaterPool(true);
+    private static final DeflaterPool ZLIB_DEFLATERS = new DeflaterPool(false);
+
+    private enum Encoding {
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        private final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+    }
+
+    @Override
+    protected void doFilter(HttpServletRequest req, HttpServletResponse res, FilterChain chain) throws IOException, ServletException {
+        Encoding encoding = ENABLED && !req.getMethod().equals("HEAD") && !isExcluded(req)
+                ? negotiate(req.getHeader("Accept-Encoding"))
+                : null;
+        if (encoding == null) {
+            chain.doFilter(req, res);
+            return;
+        }
+
+        CompressingResponse wrapped = new CompressingResponse(res, encoding);
+        boolean completed = false;
+        try {
+            chain.doFilter(new AsyncAwareRequest(req, wrapped), wrapped);
+            completed = true;
+        }
+        finally {
+            if (!completed) {
+                // leave the response to the container's error handling
+                wrapped.abandon();
+            } else if (!req.isAsyncStarted()) {
+                req.setAttribute(RequestMetricsFilter.RESPONSE_BYTES, wrapped.finish());
+            }
+            // otherwise the handler keeps writing after we return, and the listener added by startAsync finishes
+            // the body
+        }
+    }
+
+    private static boolean isExcluded(HttpServletRequest req) {
+        String path = req.getRequestURI().substring(req.getContextPath().length());
+        for (String prefix : EXCLUDED_PATHS) {
+            if (path.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Picks gzip over deflate when both are accepted (deflate is notoriously ambiguous among clients).
+     */
+    private static Encoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean gzip = false;
+        boolean deflate = false;
+        for (String entry : acceptEncoding.split(",")) {
+            String[] parts = entry.trim().split(";");
+            String coding = parts[0].trim().toLowerCase();
+            boolean accepted = true;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(parameter.substring(2)) > 0;
+                    }
+                    catch (NumberFormatException _) {
+                        accepted = false;
+                    }
+                }
+            }
+            switch (coding) {
+                case "gzip", "x-gzip" -> gzip = accepted;
+                case "deflate" -> deflate = accepted;
+                default -> {}
+            }
+        }
+        return gzip ? Encoding.GZIP : deflate ? Encoding.DEFLATE : null;
+    }
+
+    private static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        return type.startsWith("text/")
+                || type.startsWith("application/json")
+                || type.startsWith("application/javascript")
+                || type.startsWith("application/xml")
+                || type.startsWith("image/svg+xml");
+    }
+
+    // ================ ASYNCHRONOUS REQUESTS ================
+
+    /**
+     * Hands the response over to the asynchronous mode as soon as the handler starts it, before any other thread
+     * can write to it.
+     */
+    private static final class AsyncAwareRequest extends HttpServletRequestWrapper {
+        private final CompressingResponse response;
+
+        AsyncAwareRequest(HttpServletRequest request, CompressingResponse response) {
+            super(request);
+            this.response = response;
+        }
+
+        @Override
+        public AsyncContext startAsync() {
+            return started(super.startAsync());
+        }
+
+        @Override
+        public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) {
+            return started(super.startAsync(servletRequest, servletResponse));
+        }
+
+        private AsyncContext started(AsyncContext context) {
+            response.passThroughIfBuffering();
+            context.addListener(new AsyncCompletion(getRequest(), response));
+            return context;
+        }
+    }
+
+    private static final class AsyncCompletion implements AsyncListener {
+        private final ServletRequest request;
+        private final CompressingResponse response;
+
+        AsyncCompletion(ServletRequest request, CompressingResponse response) {
+            this.request = request;
+            this.response = response;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            try {
+                request.setAttribute(RequestMetricsFilter.RESPONSE_BYTES, response.finish());
+            }
+            catch (IOException _) {
+                // the client is gone: nothing left to finish
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            // followed by onComplete once the container has answered
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            // followed by onComplete as well
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // a new cycle of the same request: keep listening to it
+            event.getAsyncContext().addListener(this);
+        }
+    }
+
+    // ================ DEFLATERS ================
+
+    private static final class DeflaterPool {
+        private final boolean nowrap;
+        private final BlockingQueue<Deflater> idle = new ArrayBlockingQueue<>(POOL_SIZE);
+
+        private DeflaterPool(boolean nowrap) {
+            this.nowrap = nowrap;
+        }
+
+        Deflater acquire() {
+            Deflater deflater = idle.poll();
+            return deflater != null ? deflater : new Deflater(LEVEL, nowrap);
+        }
+
+        void release(Deflater deflater) {
+            deflater.reset();
+            if (!idle.offer(deflater)) {
+                // pool full: free the native memory now rather than at GC time
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Compresses into the underlying stream with a pooled deflater; gzip framing (header, CRC and size trailer)
+     * is written by hand, as GZIPOutputStream cannot use a deflater of our own.
+     */
+    private static final class CompressorStream extends OutputStream {
+        private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final OutputStream target;
+        private final DeflaterPool pool;
+        private final Deflater deflater;
+        private final DeflaterOutputStream deflaterStream;
+        private final CRC32 crc;
+        private long uncompressedSize = 0;
+        private boolean finished = false;
+
+        CompressorStream(OutputStream target, Encoding encoding) throws IOException {
+            this.target = target;
+            this.pool = encoding == Encoding.GZIP ? GZIP_DEFLATERS : ZLIB_DEFLATERS;
+            this.deflater = pool.acquire();
+            this.deflaterStream = new DeflaterOutputStream(target, deflater, 8192);
+            this.crc = encoding == Encoding.GZIP ? new CRC32() : null;
+            if (crc != null) {
+                target.write(GZIP_HEADER);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (crc != null) {
+                crc.update(b, off, len);
+            }
+            uncompressedSize += len;
+            deflaterStream.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            deflaterStream.flush();
+        }
+
+        /**
+         * @return the size of the compressed body, framing included
+         */
+        long finish() throws IOException {
+            if (finished) {
+                return -1;
+            }
+            finished = true;
+            try {
+                deflaterStream.finish();
+                if (crc != null) {
+                    writeIntLE(crc.getValue());
+                    writeIntLE(uncompressedSize);
+                    return GZIP_HEADER.length + deflater.getBytesWritten() + 8;
+                }
+                return deflater.getBytesWritten();
+            }
+            finally {
+                pool.release(deflater);
+            }
+        }
+
+        /**
+         * Returns the deflater to the pool without completing the stream, e.g. when the response is reset.
+         */
+        void abandon() {
+            if (!finished) {
+                finished = true;
+                pool.release(deflater);
+            }
+        }
+
+        private void writeIntLE(long value) throws IOException {
+            target.write((int) value & 0xff);
+            target.write((int) (value >> 8) & 0xff);
+            target.write((int) (value >> 16) & 0xff);
+            target.write((int) (value >> 24) & 0xff);
+        }
+    }
+
+    // ================ RESPONSE WRAPPER ================
+
+    private static final class CompressingResponse extends HttpServletResponseWrapper {
+        private enum State { BUFFERING, COMPRESSING, PASSTHROUGH }
+
+        private final Encoding encoding;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private State state = State.BUFFERING;
+        private long declaredLength = -1;
+        // bytes written to the response as they are, when not compressing
+        private long passedThrough = 0;
+        private CompressorStream compressor;
+        private ServletOutputStream outputStream;
+        private PrintWriter writer;
+
+        CompressingResponse(HttpServletResponse response, Encoding encoding) {
+            super(response);
+            this.encoding = encoding;
+        }
+
+        // ---- writing ----
+
+        private void write(byte[] b, int off, int len) throws IOException {
+            switch (state) {
+                case BUFFERING -> {
+                    if (buffer.size() + len < MIN_SIZE) {
+                        buffer.write(b, off, len);
+                        return;
+                    }
+                    decide(false);
+                    write(b, off, len);
+                }
+                case COMPRESSING -> compressor.write(b, off, len);
+                case PASSTHROUGH -> {
+                    getResponse().getOutputStream().write(b, off, len);
+                    passedThrough += len;
+                }
+            }
+        }
+
+        /**
+         * Chooses between compressing and passing through, once enough of the body is known, and releases the
+         * buffered bytes accordingly.
+         *
+         * @param complete whether the whole body has been written
+         */
+        private void decide(boolean complete) throws IOException {
+            HttpServletResponse response = (HttpServletResponse) getResponse();
+            int status = response.getStatus();
+            boolean compressible = isCompressible(response.getContentType());
+            boolean compress = compressible
+                    && !response.containsHeader("Content-Encoding")
+                    && status != SC_NO_CONTENT && status != SC_PARTIAL_CONTENT && status != SC_NOT_MODIFIED
+                    && !(complete && buffer.size() < MIN_SIZE)
+                    && !(declaredLength >= 0 && declaredLength < MIN_SIZE);
+
+            if (compressible && response.getHeaders("Vary").stream().noneMatch(v -> v.toLowerCase().contains("accept-encoding"))) {
+                response.addHeader("Vary", "Accept-Encoding");
+            }
+            if (compress) {
+                response.setHeader("Content-Encoding", encoding.token);
+                // the compressed body is a different representation, so a strong validator no longer applies
+                String etag = response.getHeader("ETag");
+                if (etag != null && !etag.startsWith("W/")) {
+                    response.setHeader("ETag", "W/" + etag);
+                }
+                compressor = new CompressorStream(response.getOutputStream(), encoding);
+                state = State.COMPRESSING;
+                buffer.writeTo(compressor);
+            } else {
+                if (declaredLength >= 0) {
+                    response.setContentLengthLong(declaredLength);
+                } else if (complete) {
+                    response.setContentLength(buffer.size());
+                }
+                state = State.PASSTHROUGH;
+                passedThrough += buffer.size();
+                buffer.writeTo(response.getOutputStream());
+            }
+            buffer.reset();
+        }
+
+        /**
+         * Gives up compressing a body that is still being buffered, when the request goes asynchronous: the filter
+         * returns long before the body ends, so the decision cannot wait for it. A body already being compressed
+         * keeps being compressed, and is finished when the request completes.
+         */
+        void passThroughIfBuffering() {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (state == State.BUFFERING) {
+                HttpServletResponse response = (HttpServletResponse) getResponse();
+                if (declaredLength >= 0) {
+                    response.setContentLengthLong(declaredLength);
+                }
+                state = State.PASSTHROUGH;
+                passedThrough += buffer.size();
+                try {
+                    buffer.writeTo(response.getOutputStream());
+                }
+                catch (IOException _) {
+                    // the client is gone, which the next write reports to the handler
+                }
+                buffer.reset();
+            }
+        }
+
+        /**
+         * @return the size of the body as sent, compressed or not
+         */
+        long finish() throws IOException {
+            try {
+                if (writer != null) {
+                    writer.flush();
+                }
+                if (state == State.BUFFERING) {
+                    decide(true);
+                }
+                return state == State.COMPRESSING ? compressor.finish() : passedThrough;
+            }
+            finally {
+                if (compressor != null) {
+                    compressor.abandon();
+                }
+            }
+        }
+
+        void abandon() {
+            if (compressor != null) {
+                compressor.abandon();
+            }
+        }
+
+        // ---- overrides ----
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() has already been called");
+            }
+            if (outputStream == null) {
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        CompressingResponse.this.write(new byte[]{(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        CompressingResponse.this.write(b, off, len);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        // while buffering, flushing would only force the decision too early
+                        switch (state) {
+                            case COMPRESSING -> compressor.flush();
+                            case PASSTHROUGH -> getResponse().getOutputStream().flush();
+                            case BUFFERING -> {}
+                        }
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        try {
+                            return state == State.BUFFERING || getResponse().getOutputStream().isReady();
+                        }
+                        catch (IOException _) {
+                            return false;
+                        }
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                        try {
+                            passThroughIfBuffering();
+                            getResponse().getOutputStream().setWriteListener(writeListener);
+                        }
+                        catch (IOException e) {
+                            writeListener.onError(e);
+                        }
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (outputStream != null) {
+                    throw new IllegalStateException("getOutputStream() has already been called");
+                }
+                ServletOutputStream os = getOutputStream();
+                outputStream = null;
+                writer = new PrintWriter(new OutputStreamWriter(os, getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void setContentLength(int len) {
+            setContentLengthLong(len);
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+            switch (state) {
+                case BUFFERING -> declaredLength = len;
+                case PASSTHROUGH -> super.setContentLengthLong(len);
+                case COMPRESSING -> {}
+            }
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (name.equalsIgnoreCase("Content-Length")) {
+                setContentLengthLong(Long.parseLong(value));
+            } else {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (name.equalsIgnoreCase("Content-Length")) {
+                setContentLengthLong(Long.parseLong(value));
+            } else {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (state == State.BUFFERING) {
+                decide(false);
+            }
+            if (state == State.COMPRESSING) {
+                compressor.flush();
+            }
+            super.flushBuffer();
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            if (state == State.BUFFERING) {
+                buffer.reset();
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            if (compressor != null) {
+                compressor.abandon();
+                compressor = null;
+            }
+            state = State.BUFFERING;
+            buffer.reset();
+            declaredLength = -1;
+            passedThrough = 0;
+            outputStream = null;
+            writer = null;
+        }
+    }
+}
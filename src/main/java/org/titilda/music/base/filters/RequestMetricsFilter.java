@@ -0,0 +1,350 @@
+package org.titilda.music.base.filters;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebFilter;
+import jakarta.servlet.http.HttpFilter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.titilda.music.base.metrics.LatencyHistogram;
+import org.titilda.music.base.metrics.PrometheusWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records, for each route and method, the requests in flight, their latency, their status codes and the bytes of
+ * their responses, until the response is complete, asynchronous ones included.
+ * <p>
+ * Requests are grouped by the route templates listed here, so that for example every playlist counts towards
+ * {@code /api/playlists/{id}/songs}; anything else counts as {@code other}, so that the number of series stays
+ * bounded whatever paths clients make up. The path is matched in place against a trie of the templates and the
+ * counters are kept in arrays, so the synchronous path allocates nothing; asynchronous requests take one listener.
+ * <p>
+ * The size of a response is the bytes reported with {@link #RESPONSE_BYTES} by {@link CompressionFilter}, which sees
+ * every body it wraps, or else its Content-Length. Responses whose size is known neither way, such as streamed or
+ * asynchronous ones without a length, are counted apart rather than as empty.
+ */
+@WebFilter(filterName = "RequestMetricsFilter", asyncSupported = true)
+public final class RequestMetricsFilter extends HttpFilter {
+    /**
+     * Request attribute with the number of bytes of the body as sent, as a Long, whether or not it has a Content-Length.
+     */
+    public static final String RESPONSE_BYTES = RequestMetricsFilter.class.getName() + ".responseBytes";
+
+    // {name} stands for any single path segment
+    private static final List<String> ROUTES = List.of(
+            "/",
+            "/metrics",
+            // API
+            "/api/auth/login",
+            "/api/auth/signup",
+            "/api/me",
+            "/api/sessions",
+            "/api/genres",
+            "/api/songs",
+            "/api/songs/{id}",
+            "/api/audio/{sha256}",
+            "/api/playlists",
+            "/api/playlists/{id}",
+            "/api/playlists/{id}/songs",
+            "/api/playlists/{id}/song-order",
+            // files, in both builds
+            "/static/artworks/{file}",
+            "/static/songs/{file}",
+            "/static/waveforms/{file}",
+            // server-side rendered pages and forms
+            "/home",
+            "/login",
+            "/signup",
+            "/song",
+            "/playlist",
+            "/error",
+            "/auth/login",
+            "/auth/signup",
+            "/auth/logout",
+            "/auth/logout-everywhere",
+            "/form/create-playlist",
+            "/form/create-song",
+            "/form/add-songs-to-playlist",
+            // client-side rendered shell and its assets
+            "/songs",
+            "/songs/{id}",
+            "/playlists",
+            "/playlists/{id}",
+            "/css/{file}",
+            "/js/{file}"
+    );
+    private static final String UNMATCHED = "other";
+
+    private static final String[] METHODS = {"GET", "HEAD", "POST", "PUT", "PATCH", "DELETE", "OPTIONS", "OTHER"};
+    private static final int FIRST_STATUS = 100;
+    private static final int LAST_STATUS = 599;
+
+    private static final Node TRIE = new Node();
+    private static final Route OTHER = new Route(UNMATCHED);
+    // in the order of ROUTES, then OTHER, for a stable page
+    private static final List<Route> ALL_ROUTES = new ArrayList<>();
+
+    static {
+        for (String template : ROUTES) {
+            Node node = TRIE;
+            for (String segment : template.substring(1).split("/")) {
+                if (!segment.isEmpty()) {
+                    node = node.child(segment);
+                }
+            }
+            node.route = new Route(template);
+            ALL_ROUTES.add(node.route);
+        }
+        ALL_ROUTES.add(OTHER);
+    }
+
+    private static final class Node {
+        private String[] literals = {};
+        private Node[] children = {};
+        private Node wildcard;
+        private Route route;
+
+        Node child(String segment) {
+            if (segment.startsWith("{")) {
+                if (wildcard == null) {
+                    wildcard = new Node();
+                }
+                return wildcard;
+            }
+            int index = Arrays.asList(literals).indexOf(segment);
+            if (index < 0) {
+                index = literals.length;
+                literals = Arrays.copyOf(literals, index + 1);
+                children = Arrays.copyOf(children, index + 1);
+                literals[index] = segment;
+                children[index] = new Node();
+            }
+            return children[index];
+        }
+    }
+
+    private static final class Route {
+        final String template;
+        // by index in METHODS, created on first use
+        final AtomicReferenceArray<Stats> byMethod = new AtomicReferenceArray<>(METHODS.length);
+
+        Route(String template) {
+            this.template = template;
+        }
+
+        Stats stats(int method) {
+            Stats stats = byMethod.get(method);
+            if (stats == null) {
+                byMethod.compareAndSet(method, null, new Stats());
+                stats = byMethod.get(method);
+            }
+            return stats;
+        }
+    }
+
+    private static final class Stats {
+        final LongAdder inFlight = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLongArray statuses = new AtomicLongArray(LAST_STATUS - FIRST_STATUS + 1);
+        final LongAdder bytes = new LongAdder();
+        final LongAdder unknownLength = new LongAdder();
+
+        /**
+         * @param responseBytes the size of the body, or -1 if it is not known
+         */
+        void complete(long nanos, int status, long responseBytes) {
+            latency.record(nanos);
+            if (status >= FIRST_STATUS && status <= LAST_STATUS) {
+                statuses.incrementAndGet(status - FIRST_STATUS);
+            }
+            if (responseBytes >= 0) {
+                bytes.add(responseBytes);
+            } else {
+                unknownLength.increment();
+            }
+            inFlight.decrement();
+        }
+    }
+
+    @Override
+    protected void doFilter(HttpServletRequest req, HttpServletResponse res, FilterChain chain) throws IOException, ServletException {
+        Stats stats = match(req.getRequestURI(), req.getContextPath().length()).stats(methodIndex(req.getMethod()));
+        stats.inFlight.increment();
+        long start = System.nanoTime();
+        boolean completed = false;
+        try {
+            chain.doFilter(req, res);
+            completed = true;
+        }
+        finally {
+            if (completed && req.isAsyncStarted()) {
+                req.getAsyncContext().addListener(new AsyncCompletion(stats, start));
+            }
+            else {
+                // an exception leaves the response to the container's error handling, which answers 500
+                stats.complete(System.nanoTime() - start, completed ? res.getStatus() : 500, responseBytes(req, res));
+            }
+        }
+    }
+
+    /**
+     * Finds the route of a path by walking the trie one segment at a time, literals first; a trailing slash is
+     * ignored.
+     */
+    private static Route match(String uri, int from) {
+        int end = uri.indexOf(';', from);
+        if (end < 0) {
+            end = uri.length();
+        }
+        Node node = TRIE;
+        int position = from;
+        while (position < end) {
+            int start = position + 1;
+            if (start == end) {
+                break;
+            }
+            int stop = uri.indexOf('/', start);
+            if (stop < 0 || stop > end) {
+                stop = end;
+            }
+            int length = stop - start;
+            Node next = null;
+            for (int i = 0; i < node.literals.length; i++) {
+                String literal = node.literals[i];
+                if (literal.length() == length && uri.regionMatches(start, literal, 0, length)) {
+                    next = node.children[i];
+                    break;
+                }
+            }
+            if (next == null && length > 0) {
+                next = node.wildcard;
+            }
+            if (next == null) {
+                return OTHER;
+            }
+            node = next;
+            position = stop;
+        }
+        return node.route != null ? node.route : OTHER;
+    }
+
+    private static int methodIndex(String method) {
+        return switch (method) {
+            case "GET" -> 0;
+            case "HEAD" -> 1;
+            case "POST" -> 2;
+            case "PUT" -> 3;
+            case "PATCH" -> 4;
+            case "DELETE" -> 5;
+            case "OPTIONS" -> 6;
+            default -> 7;
+        };
+    }
+
+    private static long responseBytes(HttpServletRequest req, HttpServletResponse res) {
+        if (req.getAttribute(RESPONSE_BYTES) instanceof Long bytes) {
+            return bytes;
+        }
+        int status = res.getStatus();
+        if (req.getMethod().equals("HEAD") || status == HttpServletResponse.SC_NO_CONTENT || status == HttpServletResponse.SC_NOT_MODIFIED) {
+            return 0;
+        }
+        String length = res.getHeader("Content-Length");
+        if (length == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(length);
+        }
+        catch (NumberFormatException _) {
+            return -1;
+        }
+    }
+
+    private static final class AsyncCompletion implements AsyncListener {
+        private final Stats stats;
+        private final long start;
+
+        AsyncCompletion(Stats stats, long start) {
+            this.stats = stats;
+            this.start = start;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            HttpServletRequest req = (HttpServletRequest) event.getSuppliedRequest();
+            HttpServletResponse res = (HttpServletResponse) event.getSuppliedResponse();
+            stats.complete(System.nanoTime() - start, res.getStatus(), responseBytes(req, res));
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            // followed by onComplete once the container has answered
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            // followed by onComplete as well
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // a new cycle of the same request, e.g. after a dispatch: keep listening to it
+            event.getAsyncContext().addListener(this);
+        }
+    }
+
+    public static void writeMetrics(PrometheusWriter out) {
+        // read once, so that every family lists the same series even as requests create new ones
+        record Series(String route, String method, Stats stats, LatencyHistogram.Snapshot latency) {}
+        List<Series> series = new ArrayList<>();
+        for (Route route : ALL_ROUTES) {
+            for (int method = 0; method < METHODS.length; method++) {
+                Stats stats = route.byMethod.get(method);
+                if (stats != null) {
+                    series.add(new Series(route.template, METHODS[method], stats, stats.latency.snapshot()));
+                }
+            }
+        }
+
+        out.family("titilda_http_requests_in_flight", "gauge", "Requests being processed, by route and method.");
+        for (Series s : series) {
+            out.sample("titilda_http_requests_in_flight", s.stats().inFlight.sum(), "route", s.route(), "method", s.method());
+        }
+        out.family("titilda_http_request_duration_seconds", "histogram", "Time from the start of a request to the end of its response, by route and method.");
+        for (Series s : series) {
+            out.histogram("titilda_http_request_duration_seconds", s.latency(), "route", s.route(), "method", s.method());
+        }
+        out.family("titilda_http_request_duration_quantile_seconds", "gauge", "Median, 95th and 99th percentile of the request durations, estimated from the histogram.");
+        for (Series s : series) {
+            out.quantiles("titilda_http_request_duration_quantile_seconds", s.latency(), "route", s.route(), "method", s.method());
+        }
+        out.family("titilda_http_responses_total", "counter", "Completed requests, by route, method and status code.");
+        for (Series s : series) {
+            AtomicLongArray statuses = s.stats().statuses;
+            for (int i = 0; i < statuses.length(); i++) {
+                long count = statuses.get(i);
+                if (count > 0) {
+                    out.sample("titilda_http_responses_total", count, "route", s.route(), "method", s.method(), "status", Integer.toString(FIRST_STATUS + i));
+                }
+            }
+        }
+        out.family("titilda_http_response_bytes_total", "counter", "Bytes of the response bodies, by route and method.");
+        for (Series s : series) {
+            out.sample("titilda_http_response_bytes_total", s.stats().bytes.sum(), "route", s.route(), "method", s.method());
+        }
+        out.family("titilda_http_responses_unknown_length_total", "counter", "Completed requests whose body size is not known, and so is missing from the bytes, by route and method.");
+        for (Series s : series) {
+            out.sample("titilda_http_responses_unknown_length_total", s.stats().unknownLength.sum(), "route", s.route(), "method", s.method());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.titilda.music.base.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations into fixed buckets, from 100 microseconds to 10 seconds, so that recording one is a couple of
+ * uncontended additions and quantiles can still be estimated from the counts.
+ */
+public final class LatencyHistogram {
+    // upper bounds of the buckets in seconds; the last, implicit one is +Inf
+    private static final double[] BOUNDS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+    private static final long[] BOUND_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUND_NANOS[i] = Math.round(BOUNDS[i] * 1e9);
+        }
+    }
+
+    private final LongAdder[] counts = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BOUND_NANOS.length && nanos > BOUND_NANOS[bucket]) {
+            bucket++;
+        }
+        counts[bucket].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Reads the counts; recordings made meanwhile may or may not be included.
+     */
+    public Snapshot snapshot() {
+        long[] cumulative = new long[counts.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i].sum();
+            cumulative[i] = total;
+        }
+        return new Snapshot(cumulative, sumNanos.sum() / 1e9);
+    }
+
+    /**
+     * @param cumulative number of durations up to the upper bound of each bucket, the last one being all of them
+     * @param sumSeconds sum of the durations
+     */
+    public record Snapshot(long[] cumulative, double sumSeconds) {
+        public long count() {
+            return cumulative[cumulative.length - 1];
+        }
+
+        /**
+         * Upper bound of a bucket in seconds, or {@link Double#POSITIVE_INFINITY} for the last one.
+         */
+        public static double upperBound(int bucket) {
+            return bucket < BOUNDS.length ? BOUNDS[bucket] : Double.POSITIVE_INFINITY;
+        }
+
+        /**
+         * Estimates a quantile by interpolating linearly within the bucket it falls into, as Prometheus does with
+         * histogram_quantile; durations beyond the last bound are reported as that bound.
+         *
+         * @return the estimate in seconds, or NaN if nothing was recorded
+         */
+        public double quantile(double q) {
+            long count = count();
+            if (count == 0) {
+                return Double.NaN;
+            }
+            double rank = q * count;
+            int bucket = 0;
+            while (cumulative[bucket] < rank) {
+                bucket++;
+            }
+            if (bucket == BOUNDS.length) {
+                return BOUNDS[BOUNDS.length - 1];
+            }
+            double lower = bucket == 0 ? 0 : BOUNDS[bucket - 1];
+            long below = bucket == 0 ? 0 : cumulative[bucket - 1];
+            long inBucket = cumulative[bucket] - below;
+            return lower + (BOUNDS[bucket] - lower) * (rank - below) / inBucket;
+        }
+    }
+}
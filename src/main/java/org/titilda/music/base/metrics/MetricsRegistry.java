@@ -0,0 +1,31 @@
+package org.titilda.music.base.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The components whose metrics are published on {@link MetricsServlet}. Each one keeps its own counters and only
+ * formats them when the page is scraped.
+ */
+public final class MetricsRegistry {
+    private MetricsRegistry() {}
+
+    @FunctionalInterface
+    public interface Source {
+        void writeTo(PrometheusWriter out);
+    }
+
+    private static final List<Source> SOURCES = new CopyOnWriteArrayList<>();
+
+    public static void register(Source source) {
+        SOURCES.add(source);
+    }
+
+    public static String scrape() {
+        PrometheusWriter out = new PrometheusWriter();
+        for (Source source : SOURCES) {
+            source.writeTo(out);
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,48 @@
+package org.titilda.music.base.metrics;
+
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.titilda.music.base.util.ConfigManager;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Publishes the metrics of the {@link MetricsRegistry} for Prometheus to scrape. It lives outside the api and ssr
+ * packages so that both builds serve it; an exact mapping takes precedence over their catch-all routes. Scrapes must
+ * carry the configured bearer token, and without one the endpoint is disabled.
+ */
+@WebServlet(urlPatterns = {"/metrics"})
+public final class MetricsServlet extends HttpServlet {
+    private static final byte[] TOKEN = ConfigManager.getString(ConfigManager.ConfigKey.METRICS_TOKEN).getBytes(StandardCharsets.UTF_8);
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
+        if (TOKEN.length == 0) {
+            // not configured: fail closed rather than expose the metrics to anyone
+            res.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (!isAuthorized(req)) {
+            res.setHeader("WWW-Authenticate", "Bearer");
+            res.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+        byte[] body = MetricsRegistry.scrape().getBytes(StandardCharsets.UTF_8);
+        res.setContentType(PrometheusWriter.CONTENT_TYPE);
+        res.setHeader("Cache-Control", "no-store");
+        res.setContentLength(body.length);
+        res.getOutputStream().write(body);
+    }
+
+    private static boolean isAuthorized(HttpServletRequest req) {
+        String header = req.getHeader("Authorization");
+        return header != null
+                && header.startsWith("Bearer ")
+                // constant time, so the token cannot be guessed byte by byte
+                && MessageDigest.isEqual(header.substring("Bearer ".length()).getBytes(StandardCharsets.UTF_8), TOKEN);
+    }
+}
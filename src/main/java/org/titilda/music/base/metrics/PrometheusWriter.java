@@ -0,0 +1,124 @@
+package org.titilda.music.base.metrics;
+
+/**
+ * Builds a metrics page in the Prometheus text exposition format. Every family must be declared with
+ * {@link #family} right before its samples.
+ */
+public final class PrometheusWriter {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = {0.5, 0.95, 0.99};
+
+    private final StringBuilder out = new StringBuilder(8192);
+
+    /**
+     * Declares a family of samples.
+     *
+     * @param type counter, gauge or histogram
+     */
+    public PrometheusWriter family(String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    /**
+     * Writes a sample.
+     *
+     * @param labels label names and values, alternately
+     */
+    public PrometheusWriter sample(String name, double value, String... labels) {
+        out.append(name);
+        appendLabels(labels, null, null);
+        out.append(' ');
+        appendValue(value);
+        out.append('\n');
+        return this;
+    }
+
+    /**
+     * Writes the buckets, sum and count of a histogram.
+     */
+    public PrometheusWriter histogram(String name, LatencyHistogram.Snapshot snapshot, String... labels) {
+        long[] cumulative = snapshot.cumulative();
+        for (int bucket = 0; bucket < cumulative.length; bucket++) {
+            out.append(name).append("_bucket");
+            double bound = LatencyHistogram.Snapshot.upperBound(bucket);
+            appendLabels(labels, "le", bound == Double.POSITIVE_INFINITY ? "+Inf" : Double.toString(bound));
+            out.append(' ').append(cumulative[bucket]).append('\n');
+        }
+        sample(name + "_sum", snapshot.sumSeconds(), labels);
+        sample(name + "_count", snapshot.count(), labels);
+        return this;
+    }
+
+    /**
+     * Writes the estimated median, 95th and 99th percentiles of a histogram as samples of a gauge family, with
+     * a quantile label. Nothing is written if the histogram is empty.
+     */
+    public PrometheusWriter quantiles(String name, LatencyHistogram.Snapshot snapshot, String... labels) {
+        if (snapshot.count() == 0) {
+            return this;
+        }
+        for (double q : QUANTILES) {
+            out.append(name);
+            appendLabels(labels, "quantile", Double.toString(q));
+            out.append(' ');
+            appendValue(snapshot.quantile(q));
+            out.append('\n');
+        }
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+
+    private void appendLabels(String[] labels, String extraName, String extraValue) {
+        if (labels.length == 0 && extraName == null) {
+            return;
+        }
+        out.append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            appendLabel(labels[i], labels[i + 1]);
+            out.append(',');
+        }
+        if (extraName != null) {
+            appendLabel(extraName, extraValue);
+        }
+        else {
+            out.setLength(out.length() - 1);
+        }
+        out.append('}');
+    }
+
+    private void appendLabel(String name, String value) {
+        out.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> out.append("\\\\");
+                case '"' -> out.append("\\\"");
+                case '\n' -> out.append("\\n");
+                default -> out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private void appendValue(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        }
+        else if (Double.isNaN(value)) {
+            out.append("NaN");
+        }
+        else if (Double.isInfinite(value)) {
+            out.append(value > 0 ? "+Inf" : "-Inf");
+        }
+        else {
+            out.append(value);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.titilda.music.base.model;
+
+/**
+ * Model class representing a playlist as shown on its page: its metadata, its total number of songs and the
+ * songs of the page being viewed.
+ */
+public final class PlaylistPage {
+    private final Playlist playlist;
+    private final int songCount;
+    private final SongPage songPage;
+
+    public PlaylistPage(Playlist playlist, int songCount, SongPage songPage) {
+        this.playlist = playlist;
+        this.songCount = songCount;
+        this.songPage = songPage;
+    }
+
+    public Playlist getPlaylist() {
+        return playlist;
+    }
+
+    public int getSongCount() {
+        return songCount;
+    }
+
+    public SongPage getSongPage() {
+        return songPage;
+    }
+}
@@ -15,6 +15,11 @@ import org.titilda.music.base.model.mimetypes.SongMimeType;
  * Model class representing a Song in the music application.
  */
 public final class Song {
+    /**
+     * Square bounds, in pixels, of the artwork variants stored for every song, smallest first.
+     */
+    public static final List<Integer> ARTWORK_SIZES = List.of(64, 128, 256, 512);
+
     private UUID id;
     private String title;
     private String album;
@@ -23,6 +28,14 @@ public final class Song {
     private Integer releaseYear;
     private String genre;
     private String owner;
+    // SHA-256 of the audio content; null for songs whose file predates content-addressed storage
+    private String audioSha256;
+    // technical metadata of the audio, each null when unknown
+    private Long audioSize;
+    private Integer durationMillis;
+    private Integer bitrate;
+    private Integer sampleRate;
+    private Integer channels;
 
     // Default constructor
     public Song() {
@@ -106,11 +119,81 @@ public final class Song {
         this.owner = owner;
     }
 
+    public String getAudioSha256() {
+        return audioSha256;
+    }
+
+    public void setAudioSha256(String audioSha256) {
+        this.audioSha256 = audioSha256;
+    }
+
+    public Long getAudioSize() {
+        return audioSize;
+    }
+
+    public void setAudioSize(Long audioSize) {
+        this.audioSize = audioSize;
+    }
+
+    public Integer getDurationMillis() {
+        return durationMillis;
+    }
+
+    public void setDurationMillis(Integer durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public Integer getBitrate() {
+        return bitrate;
+    }
+
+    public void setBitrate(Integer bitrate) {
+        this.bitrate = bitrate;
+    }
+
+    public Integer getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setSampleRate(Integer sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public Integer getChannels() {
+        return channels;
+    }
+
+    public void setChannels(Integer channels) {
+        this.channels = channels;
+    }
+
     public String getArtworkUrl() {
         return "/static/artworks/" + id + ".webp";
     }
 
+    public String getArtworkUrl(int size) {
+        return getArtworkUrl() + "?size=" + size;
+    }
+
+    /**
+     * All artwork variants in srcset syntax, letting the browser pick the smallest one that is sharp enough.
+     */
+    public String getArtworkSrcset() {
+        StringBuilder srcset = new StringBuilder();
+        for (int size : ARTWORK_SIZES) {
+            if (!srcset.isEmpty()) {
+                srcset.append(", ");
+            }
+            srcset.append(getArtworkUrl(size)).append(' ').append(size).append('w');
+        }
+        return srcset.toString();
+    }
+
     public String getAudioUrl() {
         return "/static/songs/" + id + "." + SongMimeType.fromMimeType(audioMimeType).getExtension();
     }
+
+    public String getWaveformUrl() {
+        return "/static/waveforms/" + id + ".peaks";
+    }
 }
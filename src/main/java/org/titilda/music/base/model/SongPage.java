@@ -0,0 +1,45 @@
+package org.titilda.music.base.model;
+
+import java.util.List;
+
+/**
+ * Model class representing one page of the songs in a playlist, together with the opaque cursors
+ * pointing to the neighbouring pages.
+ */
+public final class SongPage {
+    private final List<Song> songs;
+    private final String nextCursor;
+    private final String previousCursor;
+
+    public SongPage(List<Song> songs, String nextCursor, String previousCursor) {
+        this.songs = songs;
+        this.nextCursor = nextCursor;
+        this.previousCursor = previousCursor;
+    }
+
+    public List<Song> getSongs() {
+        return songs;
+    }
+
+    /**
+     * @return the cursor of the following page, or null if this is the last one
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * @return the cursor of the preceding page, or null if this is the first one
+     */
+    public String getPreviousCursor() {
+        return previousCursor;
+    }
+
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+
+    public boolean hasPrevious() {
+        return previousCursor != null;
+    }
+}
@@ -1,10 +1,13 @@
 package org.titilda.music.base.model.forms;
 
 import jakarta.servlet.http.HttpServletRequest;
-import jakarta.servlet.http.Part;
 import org.titilda.music.base.util.MultiPartValidator;
 
 public final class CreateSongFormData extends MultiPartValidator {
+    public static final String ARTWORK_FIELD = "artwork";
+    public static final String SONG_FILE_FIELD = "songFile";
+    public static final String AUDIO_SHA256_FIELD = "audioSha256";
+
     @MultipartField(name = "songName", contentTypes = {}, maxSize = 256L)
     public String songName;
 
@@ -20,16 +23,33 @@ public final class CreateSongFormData extends MultiPartValidator {
     @MultipartField(name = "albumYear", contentTypes = {}, maxSize = 256L)
     public Integer albumYear;
 
-    @MultipartField(name = "artwork", contentTypes = {"image/jpeg", "image/png", "image/webp"}, maxSize = 1024L * 1024L * 2L, required = false)
+    @MultipartField(name = ARTWORK_FIELD, contentTypes = {"image/jpeg", "image/png", "image/webp"}, maxSize = 1024L * 1024L * 2L, required = false)
     // 4 MiB
-    public Part artwork;
+    public UploadedFile artwork;
 
     // TODO: unfortunately I've found no way to grab the allowed MIME types from the appropriate enum :/
-    @MultipartField(name = "songFile", contentTypes = {"audio/mpeg", "audio/wav", "audio/ogg", "audio/flac"}, maxSize = 1024L * 1024L * 50L)
+    @MultipartField(name = SONG_FILE_FIELD, contentTypes = {"audio/mpeg", "audio/wav", "audio/ogg", "audio/flac"}, maxSize = 1024L * 1024L * 50L, required = false)
     // 50 MiB
-    public Part songFile;
-
-    public CreateSongFormData(HttpServletRequest request) throws InvalidFormDataException, InvalidDataSizeException, InvalidFieldDataException {
-        super(request);
+    public UploadedFile songFile;
+
+    // hex SHA-256 of audio the user already uploaded, sent instead of the song file
+    @MultipartField(name = AUDIO_SHA256_FIELD, contentTypes = {}, maxSize = 64L, required = false)
+    public String audioSha256;
+
+    /**
+     * Reads the form, writing the artwork and song file wherever the destination says as they arrive. Exactly one
+     * of the song file and the audio hash must be present.
+     */
+    public <E extends Exception> CreateSongFormData(HttpServletRequest request, UploadDestination<E> destination)
+            throws InvalidFormDataException, InvalidDataSizeException, InvalidFieldDataException, E {
+        super(request, destination);
+        if ((songFile == null) == (audioSha256 == null)) {
+            deleteUploadedFiles();
+            throw invalidField(SONG_FILE_FIELD, "Either a song file or the hash of a known one is required");
+        }
+        if (audioSha256 != null && !audioSha256.matches("[0-9a-f]{64}")) {
+            deleteUploadedFiles();
+            throw invalidField(AUDIO_SHA256_FIELD, "Not a hex SHA-256");
+        }
     }
 }
@@ -0,0 +1,109 @@
+package org.titilda.music.base.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * An inclusive byte range of a representation, as requested through the HTTP {@code Range} header.
+ *
+ * @param start offset of the first byte
+ * @param end   offset of the last byte (inclusive)
+ */
+public record ByteRange(long start, long end) {
+    private static final String BYTES_UNIT = "bytes=";
+
+    // More ranges than this are most likely an attempt to make us do pointless work: we just send the full content.
+    private static final int MAX_RANGES = 16;
+
+    public static class UnsatisfiableRangeException extends Exception {
+        public UnsatisfiableRangeException() {
+            super();
+        }
+    }
+
+    public long length() {
+        return end - start + 1;
+    }
+
+    public String toContentRange(long totalLength) {
+        return "bytes " + start + "-" + end + "/" + totalLength;
+    }
+
+    /**
+     * Parses the value of a {@code Range} header against a representation of the given length.
+     * Overlapping and adjacent ranges are coalesced and the result is sorted by offset.
+     *
+     * @param header the raw header value, possibly null
+     * @param length the length of the full representation
+     * @return the satisfiable ranges, or an empty Optional if the header is absent, malformed or should be ignored
+     * @throws UnsatisfiableRangeException if the header is valid but none of its ranges can be satisfied
+     */
+    public static Optional<List<ByteRange>> parse(String header, long length) throws UnsatisfiableRangeException {
+        if (header == null || !header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return Optional.empty();
+        }
+
+        String[] specs = header.substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return Optional.empty();
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String rawSpec : specs) {
+            String spec = rawSpec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return Optional.empty();
+            }
+            try {
+                if (dash == 0) {
+                    // suffix range: the last N bytes
+                    long suffixLength = Long.parseLong(spec.substring(1));
+                    if (suffixLength < 0) {
+                        return Optional.empty();
+                    }
+                    if (suffixLength > 0 && length > 0) {
+                        ranges.add(new ByteRange(Math.max(0, length - suffixLength), length - 1));
+                    }
+                    continue;
+                }
+
+                long start = Long.parseLong(spec.substring(0, dash));
+                String endStr = spec.substring(dash + 1);
+                long end = endStr.isEmpty() ? length - 1 : Long.parseLong(endStr);
+                if (start < 0 || end < start) {
+                    return Optional.empty();
+                }
+                if (start < length) {
+                    ranges.add(new ByteRange(start, Math.min(end, length - 1)));
+                }
+            }
+            catch (NumberFormatException _) {
+                return Optional.empty();
+            }
+        }
+
+        if (ranges.isEmpty()) {
+            throw new UnsatisfiableRangeException();
+        }
+        return Optional.of(coalesce(ranges));
+    }
+
+    private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+        ranges.sort(Comparator.comparingLong(ByteRange::start));
+        List<ByteRange> merged = new ArrayList<>(ranges.size());
+        ByteRange current = ranges.getFirst();
+        for (ByteRange next : ranges.subList(1, ranges.size())) {
+            if (next.start() <= current.end() + 1) {
+                current = new ByteRange(current.start(), Math.max(current.end(), next.end()));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+}
@@ -9,18 +9,55 @@ public final class ConfigManager {
         DATABASE_URL("db.url"),
         DATABASE_USER("db.user"),
         DATABASE_PASSWORD("db.password"),
+        DATABASE_MIGRATE_ON_STARTUP("db.migrate_on_startup", "true"),
         AUTH_SECRET("auth.secret"),
-        STATIC_ASSETS_ROOT("fs.static_root");
+        STATIC_ASSETS_ROOT("fs.static_root"),
+        ASYNC_STATIC_DELIVERY("fs.async_delivery", "true"),
+        ARTWORK_BACKFILL_ON_STARTUP("fs.artwork_backfill_on_startup", "true"),
+        ARTWORK_WORKERS("fs.artwork_workers", "2"),
+        // unreferenced audio blobs are kept this long, so that a client retrying an upload still finds them
+        AUDIO_BLOB_GC_GRACE_MINUTES("fs.audio_blob_gc_grace_minutes", "60"),
+        AUDIO_BLOB_GC_INTERVAL_MINUTES("fs.audio_blob_gc_interval_minutes", "60"),
+        // WAV uploads (and the WAV songs already stored) are losslessly re-encoded to FLAC
+        AUDIO_WAV_TO_FLAC("fs.wav_to_flac", "true"),
+        AUDIO_TRANSCODE_WORKERS("fs.transcode_workers", "2"),
+        AUDIO_METADATA_WORKERS("fs.audio_metadata_workers", "4"),
+        WAVEFORM_WORKERS("fs.waveform_workers", "1"),
+        // artworks waiting or in progress; uploads beyond this are rejected until a slot frees up
+        ARTWORK_QUEUE_CAPACITY("fs.artwork_queue_capacity", "32"),
+        USER_CACHE_SIZE("auth.user_cache.size", "10000"),
+        USER_CACHE_TTL_SECONDS("auth.user_cache.ttl_seconds", "30"),
+        TOKEN_CACHE_SIZE("auth.token_cache.size", "10000"),
+        TOKEN_CACHE_TTL_SECONDS("auth.token_cache.ttl_seconds", "600"),
+        PLAYLIST_PAGE_SIZE("ui.playlist_page_size", "5"),
+        TEMPLATE_CACHE("ssr.template_cache", "true"),
+        TEMPLATE_CACHE_TTL_MS("ssr.template_cache_ttl_ms", "0"),
+        COMPRESSION_ENABLED("http.compression.enabled", "true"),
+        COMPRESSION_MIN_SIZE("http.compression.min_size", "1024"),
+        // comma-separated path prefixes whose responses are never compressed
+        COMPRESSION_EXCLUDED_PATHS("http.compression.excluded_paths", "/static/"),
+        // bearer token required by /metrics; while empty the endpoint is disabled and answers 404
+        METRICS_TOKEN("metrics.token", "");
 
         private final String key;
+        private final String defaultValue;
 
         ConfigKey(String key) {
+            this(key, null);
+        }
+
+        ConfigKey(String key, String defaultValue) {
             this.key = key;
+            this.defaultValue = defaultValue;
         }
 
         public String getKey() {
             return key;
         }
+
+        public String getDefaultValue() {
+            return defaultValue;
+        }
     }
     // File is in /opt/homebrew/Cellar/tomcat@10/10.1.44/libexec/bin (on macOS)
     public static final String CONFIG_FILE = "config.properties";
@@ -35,7 +72,7 @@ public final class ConfigManager {
             prop = new java.util.Properties();
             prop.load(input);
             for (ConfigKey key : ConfigKey.values()) {
-                if (!prop.containsKey(key.getKey())) {
+                if (!prop.containsKey(key.getKey()) && key.getDefaultValue() == null) {
                     System.err.println("Missing configuration key: " + key.getKey());
                 }
             }
@@ -49,7 +86,7 @@ public final class ConfigManager {
         if (prop == null) {
             loadConfig();
         }
-        return prop.getProperty(key.getKey());
+        return prop.getProperty(key.getKey(), key.getDefaultValue());
     }
 
     public static int getInt(ConfigKey key) {
@@ -62,4 +99,8 @@ public final class ConfigManager {
             return 0;
         }
     }
+
+    public static boolean getBoolean(ConfigKey key) {
+        return Boolean.parseBoolean(getString(key));
+    }
 }
@@ -1,18 +1,32 @@
 package org.titilda.music.base.util;
 
-import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
-import jakarta.servlet.http.Part;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 
 public abstract class MultiPartValidator {
     @Retention(RetentionPolicy.RUNTIME)
@@ -65,64 +79,256 @@ public abstract class MultiPartValidator {
         }
     }
 
-    private static void assignField(Field field, Object obj, Part part) throws InvalidFieldDataException {
-        try {
-            if (field.getType().equals(Part.class)) {
-                field.set(obj, part);
-            } else if (field.getType().equals(String.class)) {
-                field.set(obj, new String(part.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
-            } else if (field.getType().equals(Integer.class)) {
-                field.set(obj, Integer.parseInt(new String(part.getInputStream().readAllBytes(), StandardCharsets.UTF_8)));
+    /**
+     * Thrown before reading anything when the declared length of the request exceeds what the form can hold, or
+     * while reading once an undeclared length turns out to exceed it.
+     */
+    public static class RequestTooLargeException extends InvalidFormDataException {
+        private final long maxSize;
+
+        public RequestTooLargeException(long maxSize) {
+            super("Request exceeds maximum size");
+            this.maxSize = maxSize;
+        }
+
+        public long getMaxSize() {
+            return maxSize;
+        }
+    }
+
+    /**
+     * A file field, already written to the location chosen by the {@link UploadDestination}, with the hex SHA-256
+     * of its content computed on the way.
+     */
+    public record UploadedFile(Path path, String contentType, long size, String sha256) {}
+
+    /**
+     * Chooses where the content of a file field is written, once its content type has been validated.
+     *
+     * @param <E> exception the destination may throw to abort the upload
+     */
+    @FunctionalInterface
+    public interface UploadDestination<E extends Exception> {
+        Path resolve(String fieldName, String contentType) throws E;
+    }
+
+    // room for the delimiter and headers of each part, on top of the content limits
+    private static final long PART_OVERHEAD = 4096L;
+
+    /**
+     * Counts the bytes read from the request body and fails once there are more than allowed.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final long maxSize;
+        private long count = 0;
+
+        private LimitedInputStream(InputStream in, long maxSize) {
+            super(in);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                charge(1);
             }
-        } catch (IOException | IllegalAccessException _) {
-            throw new InvalidFieldDataException(field, "Error parsing data");
+            return b;
         }
-        catch (NumberFormatException _) {
-            throw new InvalidFieldDataException(field, "Number format is invalid");
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                charge(n);
+            }
+            return n;
+        }
+
+        private void charge(long n) throws IOException {
+            count += n;
+            if (maxSize >= 0 && count > maxSize) {
+                throw new BodyLimitExceededException();
+            }
         }
     }
 
-    public MultiPartValidator(HttpServletRequest request) throws InvalidFieldDataException, InvalidFormDataException, InvalidDataSizeException {
-        if (!request.getContentType().startsWith("multipart/form-data;")) {
+    private static final class BodyLimitExceededException extends IOException {}
+
+    private final List<Path> writtenFiles = new ArrayList<>();
+
+    /**
+     * Reads the form straight from the request body, in a single pass: text fields are kept in memory, file fields
+     * are streamed to their destination. Sizes are enforced while reading, and the request is refused upfront if
+     * its Content-Length already exceeds the sum of the field limits. If anything goes wrong, the files written so
+     * far are deleted.
+     */
+    protected <E extends Exception> MultiPartValidator(HttpServletRequest request, UploadDestination<E> destination)
+            throws InvalidFieldDataException, InvalidFormDataException, InvalidDataSizeException, E {
+        String requestContentType = request.getContentType();
+        if (requestContentType == null || !requestContentType.startsWith("multipart/form-data;")) {
             throw new InvalidFormDataException("Invalid content type");
         }
+        String boundary = MultipartStream.boundaryOf(requestContentType)
+                .orElseThrow(() -> new InvalidFormDataException("Missing multipart boundary"));
+
+        Map<String, Field> fields = new HashMap<>();
+        long maxRequestSize = 0;
+        for (Field field : this.getClass().getDeclaredFields()) {
+            MultipartField annotation = field.getAnnotation(MultipartField.class);
+            if (annotation == null) continue;
+            field.setAccessible(true);
+            fields.put(annotation.name(), field);
+            maxRequestSize = maxRequestSize < 0 || annotation.maxSize() < 0 ? -1 : maxRequestSize + annotation.maxSize() + PART_OVERHEAD;
+        }
+        if (maxRequestSize >= 0 && request.getContentLengthLong() > maxRequestSize) {
+            throw new RequestTooLargeException(maxRequestSize);
+        }
+
+        boolean completed = false;
         try {
-            Collection<Part> parts = request.getParts();
-            for (Field field : this.getClass().getDeclaredFields()) {
-                field.setAccessible(true);
-                MultipartField annotation = field.getAnnotation(MultipartField.class);
-                if (annotation == null) continue;
-
-                Part part = parts.stream().filter(p -> p.getName().equals(annotation.name())).findFirst().orElse(null);
-                if (part == null || part.getSize() == 0) {
-                    if (annotation.required()) {
-                        throw new InvalidFieldDataException(field, "Missing required field in multipart form");
-                    } else {
-                        continue;
-                    }
+            MultipartStream multipart = new MultipartStream(new LimitedInputStream(request.getInputStream(), maxRequestSize), boundary);
+            Set<String> seen = new HashSet<>();
+            Optional<MultipartStream.PartHeaders> headers;
+            while ((headers = multipart.nextPart()).isPresent()) {
+                Field field = fields.get(headers.get().name());
+                // unknown and repeated parts are skipped, like before
+                if (field != null && seen.add(headers.get().name())) {
+                    readField(field, headers.get(), multipart.partBody(), destination);
                 }
+            }
 
-                if (annotation.maxSize() > 0 && part.getSize() > annotation.maxSize()) {
-                    System.out.println("Part of size " + part.getSize() + " exceeds maximum size of " + annotation.maxSize() + " for field " + field.getName());
-                    throw new InvalidDataSizeException(field, annotation.maxSize(), "Field exceeds maximum size");
+            for (Field field : fields.values()) {
+                MultipartField annotation = field.getAnnotation(MultipartField.class);
+                if (annotation.required() && field.get(this) == null) {
+                    throw new InvalidFieldDataException(field, "Missing required field in multipart form");
                 }
+            }
+            completed = true;
+        }
+        catch (BodyLimitExceededException _) {
+            throw new RequestTooLargeException(maxRequestSize);
+        }
+        catch (IOException | IllegalAccessException _) {
+            throw new InvalidFormDataException("Error reading form");
+        }
+        finally {
+            if (!completed) {
+                deleteUploadedFiles();
+            }
+        }
+    }
+
+    private <E extends Exception> void readField(Field field, MultipartStream.PartHeaders headers, InputStream body, UploadDestination<E> destination)
+            throws InvalidFieldDataException, InvalidDataSizeException, IOException, IllegalAccessException, E {
+        MultipartField annotation = field.getAnnotation(MultipartField.class);
+        PushbackInputStream content = new PushbackInputStream(body, 1);
+        byte[] first = new byte[1];
+        if (content.read(first, 0, 1) == -1) {
+            // empty fields, like a file input left blank, count as missing
+            return;
+        }
+        content.unread(first);
+
+        String partContentType = headers.contentType();
+        String[] allowedContentTypes = annotation.contentTypes();
 
-                String partContentType = part.getContentType();
-                String[] allowedContentTypes = annotation.contentTypes();
+        // Apparently, the content type is null when dealing with raw text fields, which is represented by an
+        // empty array in the @MultipartField annotation. This means that we must check for nullity if the array
+        // is empty, for inclusion if it's not.
+        if ((allowedContentTypes.length == 0 && partContentType != null) ||
+                (allowedContentTypes.length != 0 && !Arrays.asList(allowedContentTypes).contains(partContentType))) {
+            throw new InvalidFieldDataException(field, "Field has wrong content type");
+        }
+
+        if (field.getType().equals(UploadedFile.class)) {
+            Path path = destination.resolve(annotation.name(), partContentType);
+            MessageDigest digest = sha256();
+            long size = copyLimited(content, path, field, annotation.maxSize(), digest);
+            field.set(this, new UploadedFile(path, partContentType, size, HexFormat.of().formatHex(digest.digest())));
+            return;
+        }
+
+        byte[] value = annotation.maxSize() > 0 ? content.readNBytes((int) Math.min(Integer.MAX_VALUE - 8, annotation.maxSize() + 1)) : content.readAllBytes();
+        if (annotation.maxSize() > 0 && value.length > annotation.maxSize()) {
+            throw sizeExceeded(field, annotation.maxSize());
+        }
+        String text = new String(value, StandardCharsets.UTF_8);
+        try {
+            if (field.getType().equals(String.class)) {
+                field.set(this, text);
+            } else if (field.getType().equals(Integer.class)) {
+                field.set(this, Integer.parseInt(text));
+            }
+        }
+        catch (NumberFormatException _) {
+            throw new InvalidFieldDataException(field, "Number format is invalid");
+        }
+    }
 
-                // Apparently, the content type is null when dealing with raw text fields, which is represented by an
-                // empty array in the @MultipartField annotation. This means that we must check for nullity if the array
-                // is empty, for inclusion if it's not.
-                if ((allowedContentTypes.length == 0 && partContentType != null) ||
-                        (allowedContentTypes.length != 0 && !Arrays.asList(allowedContentTypes).contains(partContentType))) {
-                    throw new InvalidFieldDataException(field, "Field has wrong content type");
+    /**
+     * Streams a part to its destination, stopping as soon as it exceeds the size limit of its field.
+     */
+    private long copyLimited(InputStream content, Path path, Field field, long maxSize, MessageDigest digest) throws IOException, InvalidDataSizeException {
+        long size = 0;
+        byte[] buffer = new byte[64 * 1024];
+        try (OutputStream os = Files.newOutputStream(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            // only once created, so that a clash never deletes somebody else's file
+            writtenFiles.add(path);
+            int n;
+            while ((n = content.read(buffer)) != -1) {
+                size += n;
+                if (maxSize > 0 && size > maxSize) {
+                    throw sizeExceeded(field, maxSize);
                 }
+                digest.update(buffer, 0, n);
+                os.write(buffer, 0, n);
+            }
+        }
+        return size;
+    }
 
-                assignField(field, this, part);
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every JVM is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static InvalidDataSizeException sizeExceeded(Field field, long maxSize) {
+        System.out.println("Part exceeds maximum size of " + maxSize + " for field " + field.getName());
+        return new InvalidDataSizeException(field, maxSize, "Field exceeds maximum size");
+    }
+
+    /**
+     * Builds the exception for a field that failed a check beyond those of its annotation.
+     *
+     * @param name the name of the field in the form
+     */
+    public final InvalidFieldDataException invalidField(String name, String message) {
+        for (Field field : this.getClass().getDeclaredFields()) {
+            MultipartField annotation = field.getAnnotation(MultipartField.class);
+            if (annotation != null && annotation.name().equals(name)) {
+                return new InvalidFieldDataException(field, message);
             }
+        }
+        throw new IllegalArgumentException("No such field: " + name);
+    }
 
-        } catch (IOException | ServletException _) {
-            throw new InvalidFormDataException("Error reading form");
+    /**
+     * Deletes the files written for this form, for callers that fail after it has been read.
+     */
+    public final void deleteUploadedFiles() {
+        for (Path path : writtenFiles) {
+            try {
+                Files.deleteIfExists(path);
+            }
+            catch (IOException _) {
+                // at least we tried
+            }
         }
     }
 }
@@ -0,0 +1,248 @@
+package org.titilda.music.base.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+/**
+ * A forward-only reader of a multipart/form-data body (RFC 7578), exposing each part as a stream as it arrives
+ * instead of spooling the request anywhere first.
+ * <p>
+ * The body of the current part has to be read through {@link #partBody()} before moving on; whatever is left
+ * unread is skipped by the next call to {@link #nextPart()}.
+ */
+final class MultipartStream {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADERS_SIZE = 16 * 1024;
+
+    /**
+     * The headers of a part that matter to form data; the file name and content type are null when not sent.
+     */
+    record PartHeaders(String name, String filename, String contentType) {}
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buffer;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean partEnded = false;
+    private boolean finished = false;
+    private final InputStream partStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return readBody(b, off, len);
+        }
+    };
+
+    MultipartStream(InputStream in, String boundary) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        this.buffer = new byte[Math.max(BUFFER_SIZE, delimiter.length * 2)];
+        // the first delimiter is not preceded by a line break; pretend it is, so that every delimiter looks the same
+        // and the preamble can be skipped like the body of a part
+        buffer[limit++] = '\r';
+        buffer[limit++] = '\n';
+    }
+
+    /**
+     * Extracts the boundary parameter of a multipart content type.
+     */
+    static Optional<String> boundaryOf(String contentType) {
+        return Optional.ofNullable(parameter(contentType, "boundary")).filter(b -> !b.isEmpty() && b.length() <= 70);
+    }
+
+    /**
+     * Skips what is left of the current part and reads the headers of the next one.
+     *
+     * @return the headers, or empty once the closing delimiter has been reached
+     * @throws IOException if the body is malformed or ends early
+     */
+    Optional<PartHeaders> nextPart() throws IOException {
+        if (finished) {
+            return Optional.empty();
+        }
+        byte[] scratch = new byte[8192];
+        while (readBody(scratch, 0, scratch.length) != -1) {
+            // skipping
+        }
+        pos += delimiter.length;
+
+        ensureAvailable(2);
+        if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+            finished = true;
+            return Optional.empty();
+        }
+        // the rest of the delimiter line may only hold transport padding
+        readLine(new int[]{MAX_HEADERS_SIZE});
+
+        int[] headerBudget = {MAX_HEADERS_SIZE};
+        String name = null;
+        String filename = null;
+        String contentType = null;
+        for (String line = readLine(headerBudget); !line.isEmpty(); line = readLine(headerBudget)) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                throw new IOException("Malformed part header");
+            }
+            String headerName = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (headerName.equalsIgnoreCase("Content-Disposition")) {
+                name = parameter(value, "name");
+                filename = parameter(value, "filename");
+            } else if (headerName.equalsIgnoreCase("Content-Type")) {
+                contentType = value;
+            }
+        }
+        if (name == null) {
+            throw new IOException("Part without a name");
+        }
+        partEnded = false;
+        return Optional.of(new PartHeaders(name, filename, contentType));
+    }
+
+    /**
+     * The body of the current part, ending right before the next delimiter.
+     */
+    InputStream partBody() {
+        return partStream;
+    }
+
+    private int readBody(byte[] b, int off, int len) throws IOException {
+        if (partEnded) {
+            return -1;
+        }
+        while (true) {
+            int found = indexOfDelimiter();
+            // without a match, the tail of the buffer may still be the beginning of a delimiter
+            int available = found >= 0 ? found - pos : limit - pos - (delimiter.length - 1);
+            if (available > 0) {
+                int n = Math.min(available, len);
+                System.arraycopy(buffer, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+            if (found >= 0) {
+                partEnded = true;
+                return -1;
+            }
+            if (!fill()) {
+                throw new EOFException("Multipart body ended before its closing delimiter");
+            }
+        }
+    }
+
+    private int indexOfDelimiter() {
+        int last = limit - delimiter.length;
+        outer:
+        for (int i = pos; i <= last; i++) {
+            for (int j = 0; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Moves the unread bytes to the front of the buffer and reads more after them.
+     *
+     * @return false at the end of the underlying stream
+     */
+    private boolean fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        int n = in.read(buffer, limit, buffer.length - limit);
+        if (n < 0) {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    private void ensureAvailable(int count) throws IOException {
+        while (limit - pos < count) {
+            if (!fill()) {
+                throw new EOFException("Multipart body ended unexpectedly");
+            }
+        }
+    }
+
+    /**
+     * Reads a CRLF-terminated line, charging its length to the given budget.
+     */
+    private String readLine(int[] budget) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            ensureAvailable(1);
+            byte current = buffer[pos++];
+            if (--budget[0] < 0) {
+                throw new IOException("Part headers too large");
+            }
+            if (current == '\r') {
+                ensureAvailable(1);
+                if (buffer[pos] == '\n') {
+                    pos++;
+                    // browsers send non-ASCII file names as raw UTF-8
+                    return line.toString(StandardCharsets.UTF_8);
+                }
+            }
+            line.write(current);
+        }
+    }
+
+    /**
+     * Reads a parameter of a header value such as {@code form-data; name="x"}, unquoting it if needed.
+     */
+    private static String parameter(String headerValue, String parameterName) {
+        if (headerValue == null) {
+            return null;
+        }
+        int i = headerValue.indexOf(';');
+        while (i >= 0 && i < headerValue.length()) {
+            int start = i + 1;
+            while (start < headerValue.length() && headerValue.charAt(start) == ' ') {
+                start++;
+            }
+            int equals = headerValue.indexOf('=', start);
+            if (equals < 0) {
+                return null;
+            }
+            String key = headerValue.substring(start, equals).trim();
+            StringBuilder value = new StringBuilder();
+            int j = equals + 1;
+            if (j < headerValue.length() && headerValue.charAt(j) == '"') {
+                for (j++; j < headerValue.length() && headerValue.charAt(j) != '"'; j++) {
+                    char c = headerValue.charAt(j);
+                    if (c == '\\' && j + 1 < headerValue.length()) {
+                        c = headerValue.charAt(++j);
+                    }
+                    value.append(c);
+                }
+                j = headerValue.indexOf(';', j);
+            } else {
+                int end = headerValue.indexOf(';', j);
+                value.append(headerValue, j, end < 0 ? headerValue.length() : end);
+                j = end;
+            }
+            if (key.equalsIgnoreCase(parameterName)) {
+                return value.toString().trim();
+            }
+            i = j;
+        }
+        return null;
+    }
+}
@@ -38,12 +38,9 @@ public abstract non-sealed class BaseGetServlet extends BaseServlet {
             response.setContentType("text/html;charset=UTF-8");
             Map<String, Object> variables = prepareTemplateVariables(request, response);
 
-            // Render template
-            String html = TemplateManager.render(getTemplatePath(), variables);
-
-            // Write response
+            // Render template straight into the response
             PrintWriter out = response.getWriter();
-            out.print(html);
+            TemplateManager.render(getTemplatePath(), variables, out);
             out.flush();
         }
         catch (UnauthenticatedException _) {
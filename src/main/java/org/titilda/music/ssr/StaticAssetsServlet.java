@@ -8,7 +8,7 @@ import org.titilda.music.base.controller.StaticAssetsServletFoundation;
 import java.io.IOException;
 import java.util.Optional;
 
-@WebServlet(urlPatterns = {"/static/*"})
+@WebServlet(urlPatterns = {"/static/*"}, asyncSupported = true)
 public final class StaticAssetsServlet extends StaticAssetsServletFoundation implements CookieTokenInterface {
     @Override
     public Optional<String> getToken(HttpServletRequest req) {
@@ -2,8 +2,13 @@ package org.titilda.music.ssr;
 
 import org.thymeleaf.TemplateEngine;
 import org.thymeleaf.context.Context;
+import org.thymeleaf.exceptions.TemplateInputException;
+import org.thymeleaf.exceptions.TemplateProcessingException;
 import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
+import org.titilda.music.base.util.ConfigManager;
 
+import java.io.Writer;
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -22,32 +27,55 @@ public final class TemplateManager {
         templateResolver.setSuffix(".html");
         templateResolver.setTemplateMode("HTML");
         templateResolver.setCharacterEncoding("UTF-8");
-        templateResolver.setCacheable(false); // TODO: set this to true maybe?
+        // Parsed templates are kept in memory; a TTL lets edits show up during development without a redeploy.
+        templateResolver.setCacheable(ConfigManager.getBoolean(ConfigManager.ConfigKey.TEMPLATE_CACHE));
+        long cacheTtlMs = ConfigManager.getInt(ConfigManager.ConfigKey.TEMPLATE_CACHE_TTL_MS);
+        if (cacheTtlMs > 0) {
+            templateResolver.setCacheTTLMs(cacheTtlMs);
+        }
         templateEngine.setTemplateResolver(templateResolver);
     }
-    
+
+    private TemplateManager() {}
+
     /**
-     * Renders a template with the given variables.
-     * 
+     * Renders a template with the given variables straight to a writer, without buffering the page.
+     *
      * @param templateName the name of the template (without .html extension)
      * @param variables map of variables to pass to the template
-     * @return the rendered HTML as a string
+     * @param writer where the rendered HTML is written
      */
-    public static String render(String templateName, Map<String, Object> variables) {
+    public static void render(String templateName, Map<String, Object> variables, Writer writer) {
         Context context = new Context();
         if (variables != null) {
             context.setVariables(variables);
         }
-        return templateEngine.process(templateName, context);
+        templateEngine.process(templateName, context, writer);
     }
-    
+
     /**
-     * Renders a template without any variables.
-     * 
-     * @param templateName the name of the template (without .html extension)
-     * @return the rendered HTML as a string
+     * Parses the given templates ahead of the first request, so that it does not pay for it.
+     * Templates are processed with no variables and the output is discarded: parsing (and caching) happens before
+     * processing, so templates that fail without their variables are still warmed up.
+     *
+     * @param templateNames the names of the templates (without .html extension)
+     * @return the number of templates that could be parsed; the others, missing or malformed, are logged
      */
-    public static String render(String templateName) {
-        return render(templateName, null);
+    public static int preload(Collection<String> templateNames) {
+        int loaded = 0;
+        for (String templateName : templateNames) {
+            try {
+                templateEngine.process(templateName, new Context(), Writer.nullWriter());
+            }
+            catch (TemplateInputException e) {
+                System.err.println("Could not preload template " + templateName + ": " + e.getMessage());
+                continue;
+            }
+            catch (TemplateProcessingException _) {
+                // expected for pages that need their variables
+            }
+            loaded++;
+        }
+        return loaded;
     }
 }
@@ -0,0 +1,41 @@
+package org.titilda.music.ssr;
+
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import jakarta.servlet.annotation.WebListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Warms up the template cache at startup with every template packaged in the webapp.
+ */
+@WebListener
+public final class TemplatePreloadListener implements ServletContextListener {
+    private static final String TEMPLATES_ROOT = "/WEB-INF/classes/templates/";
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        List<String> templateNames = new ArrayList<>();
+        collectTemplates(sce.getServletContext(), TEMPLATES_ROOT, templateNames);
+        int loaded = TemplateManager.preload(templateNames);
+        System.out.println("Preloaded " + loaded + " templates");
+    }
+
+    private static void collectTemplates(ServletContext context, String directory, List<String> templateNames) {
+        Set<String> paths = context.getResourcePaths(directory);
+        if (paths == null) {
+            return;
+        }
+        for (String path : paths) {
+            if (path.endsWith("/")) {
+                collectTemplates(context, path, templateNames);
+            }
+            else if (path.endsWith(".html")) {
+                templateNames.add(path.substring(TEMPLATES_ROOT.length(), path.length() - ".html".length()));
+            }
+        }
+    }
+}
@@ -12,6 +12,8 @@ import org.titilda.music.ssr.BaseAuthenticatedPostWithRedirectServlet;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 @WebServlet(urlPatterns = { "/form/add-songs-to-playlist" })
@@ -38,15 +40,16 @@ public final class FormAddSongsToPlaylist extends BaseAuthenticatedPostWithRedir
         try (Connection connection = DatabaseManager.getConnection()) {
             connection.setAutoCommit(false);
             DAO dao = new DAO(connection);
+            List<UUID> songIdList = new ArrayList<>();
             for (String idStr : songIds) {
                 try {
-                    UUID songId = UUID.fromString(idStr);
-                    // ownership of the song and playlist is already checked in the DAO, failures are silent
-                    dao.addSongToPlaylist(playlistId, songId, user.getUsername());
+                    songIdList.add(UUID.fromString(idStr));
                 } catch (IllegalArgumentException _) {
                     // ignore invalid UUIDs
                 }
             }
+            // ownership of the song and playlist is already checked in the DAO, failures are silent
+            dao.addSongsToPlaylist(playlistId, songIdList, user.getUsername());
 
             connection.commit();
         } catch (SQLException _) {
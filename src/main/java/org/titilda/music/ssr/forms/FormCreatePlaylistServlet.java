@@ -13,6 +13,8 @@ import org.titilda.music.ssr.BaseAuthenticatedPostWithRedirectServlet;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 @WebServlet(urlPatterns = { "/form/create-playlist" })
@@ -40,15 +42,16 @@ public final class FormCreatePlaylistServlet extends BaseAuthenticatedPostWithRe
             Playlist playlist = new Playlist(name.trim(), user.getUsername(), false);
             playlist = dao.insertPlaylist(playlist);
 
+            List<UUID> songIds = new ArrayList<>();
             for (String idStr : selectedSongIds) {
                 try {
-                    UUID songId = UUID.fromString(idStr);
-                    // ownership of the song and playlist is already checked in the DAO, failures are silent
-                    dao.addSongToPlaylist(playlist.getId(), songId, user.getUsername());
+                    songIds.add(UUID.fromString(idStr));
                 } catch (IllegalArgumentException _) {
                     // skip invalid UUIDs silently
                 }
             }
+            // ownership of the song and playlist is already checked in the DAO, failures are silent
+            dao.addSongsToPlaylist(playlist.getId(), songIds, user.getUsername());
 
             connection.commit();
             return "/playlist?id=" + playlist.getId();
@@ -1,17 +1,15 @@
 package org.titilda.music.ssr.forms;
 
-import jakarta.servlet.annotation.MultipartConfig;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import org.titilda.music.base.controller.ArtworkProcessingQueue;
 import org.titilda.music.base.controller.AssetCrudManager;
 import org.titilda.music.base.model.User;
-import org.titilda.music.base.model.forms.CreateSongFormData;
 import org.titilda.music.base.util.MultiPartValidator;
 import org.titilda.music.ssr.BaseAuthenticatedPostWithRedirectServlet;
 
 @WebServlet(urlPatterns = { "/form/create-song" })
-@MultipartConfig
 public final class FormCreateSongServlet extends BaseAuthenticatedPostWithRedirectServlet {
 
     @Override
@@ -21,8 +19,10 @@ public final class FormCreateSongServlet extends BaseAuthenticatedPostWithRedire
         }
 
         try {
-            CreateSongFormData formData = new CreateSongFormData(request);
-            AssetCrudManager.createSongFromFormData(formData, user);
+            AssetCrudManager.createSongFromRequest(request, user);
+        }
+        catch (MultiPartValidator.RequestTooLargeException e) {
+            return "/home?error=request_too_large&maxSize=" + e.getMaxSize();
         }
         catch (MultiPartValidator.InvalidFormDataException _) {
             return "/home?error=invalid_data";
@@ -34,6 +34,9 @@ public final class FormCreateSongServlet extends BaseAuthenticatedPostWithRedire
         catch (MultiPartValidator.InvalidDataSizeException e) {
             return "/home?error=invalid_data&field=" + e.getField().getName() + "&maxSize=" + e.getMaxSize();
         }
+        catch (ArtworkProcessingQueue.QueueFullException _) {
+            return "/home?error=server_busy";
+        }
 
         return "/home";
     }
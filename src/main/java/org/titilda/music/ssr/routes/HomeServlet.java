@@ -52,6 +52,9 @@ public final class HomeServlet extends BaseAuthenticatedGetServlet {
                         variables.put("error", "Invalid data provided. Please check all fields and try again.");
                     }
                 }
+                case "request_too_large" -> variables.put("error",
+                        "The upload is too large. Maximum size is " + (maxSize != null ? maxSize : "unknown") + " bytes.");
+                case "server_busy" -> variables.put("error", "The server is busy processing other uploads. Please try again in a moment.");
                 case "playlist_creation_failed" -> variables.put("playlistError", "Failed to create playlist. Please try again.");
                 case "playlist_invalid_name" -> variables.put("playlistError", "Playlist name cannot be empty. Please provide a valid name.");
                 default -> variables.put("error", "An unexpected error occurred. Please try again.");
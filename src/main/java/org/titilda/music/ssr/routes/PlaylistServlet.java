@@ -6,9 +6,11 @@ import jakarta.servlet.http.HttpServletResponse;
 import org.titilda.music.base.database.DAO;
 import org.titilda.music.base.database.DatabaseManager;
 import org.titilda.music.ssr.exceptions.InternalErrorException;
-import org.titilda.music.base.model.Playlist;
+import org.titilda.music.base.model.PlaylistPage;
 import org.titilda.music.base.model.Song;
+import org.titilda.music.base.model.SongPage;
 import org.titilda.music.base.model.User;
+import org.titilda.music.base.util.ConfigManager;
 import org.titilda.music.ssr.BaseAuthenticatedGetServlet;
 
 import java.sql.Connection;
@@ -20,6 +22,8 @@ import java.util.UUID;
 public final class PlaylistServlet extends BaseAuthenticatedGetServlet {
     private static class PlaylistNotFoundException extends Exception {}
 
+    private static final int PAGE_SIZE = Math.max(1, ConfigManager.getInt(ConfigManager.ConfigKey.PLAYLIST_PAGE_SIZE));
+
     @Override
     protected String getTemplatePath() {
         return "playlist";
@@ -49,37 +53,24 @@ public final class PlaylistServlet extends BaseAuthenticatedGetServlet {
 
             try (Connection connection = DatabaseManager.getConnection()) {
                 DAO dao = new DAO(connection);
-                Playlist playlist = dao.getPlaylistById(playlistId)
-                        .filter(p -> p.getOwner().equals(user.getUsername()))
-                        .orElseThrow(PlaylistNotFoundException::new);
-
-                int page = 0;
-                int totalPageCount = dao.getSongPageCount(playlistId);
-                String pageStringValue = request.getParameter("page");
-                if (pageStringValue != null) {
-                    if (totalPageCount == 0) {
-                        throw new InternalErrorException("Playlist is empty, cannot access pages", "/error?error=bad_request");
-                    }
-                    try {
-                        page = Integer.parseInt(pageStringValue);
-                    } catch (NumberFormatException _) {
-                    }
+                PlaylistPage playlistPage;
+                try {
+                    playlistPage = dao.getPlaylistPage(playlistId, user.getUsername(), request.getParameter("cursor"), PAGE_SIZE)
+                            .orElseThrow(PlaylistNotFoundException::new);
+                } catch (DAO.InvalidCursorException _) {
+                    throw new InternalErrorException("Invalid page cursor", "/error?error=bad_request");
                 }
 
-                if (page < 0 || (totalPageCount > 0 && page >= totalPageCount)) {
-                    throw new InternalErrorException("Invalid page number", "/error?error=bad_request");
-                }
-
-                variables.put("playlist", playlist);
-                List<Song> songs = dao.getSongsInPlaylistPaginated(playlistId, page);
-                variables.put("songs", songs);
+                SongPage songPage = playlistPage.getSongPage();
+                variables.put("playlist", playlistPage.getPlaylist());
+                variables.put("songCount", playlistPage.getSongCount());
+                variables.put("songs", songPage.getSongs());
+                variables.put("songPage", songPage);
+                variables.put("pageSize", PAGE_SIZE);
 
                 // Get songs not in this playlist for the add-songs form
                 List<Song> songsNotInPlaylist = dao.getSongsNotInPlaylist(user, playlistId);
                 variables.put("songsNotInPlaylist", songsNotInPlaylist);
-
-                variables.put("page", page);
-                variables.put("pageCount", dao.getSongPageCount(playlistId));
             } catch (SQLException _) {
                 throw new InternalErrorException("Internal server error");
             }
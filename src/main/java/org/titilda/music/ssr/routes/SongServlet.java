@@ -3,6 +3,8 @@ package org.titilda.music.ssr.routes;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import org.titilda.music.base.audio.WaveformPeaks;
+import org.titilda.music.base.controller.AssetCrudManager;
 import org.titilda.music.base.database.DAO;
 import org.titilda.music.base.database.DatabaseManager;
 import org.titilda.music.ssr.exceptions.InternalErrorException;
@@ -19,6 +21,7 @@ import java.util.UUID;
 
 @WebServlet(urlPatterns = { "/song" })
 public final class SongServlet extends BaseAuthenticatedGetServlet {
+    private static final int WAVEFORM_BUCKETS = 512;
 
     @Override
     protected String getTemplatePath() {
@@ -47,6 +50,7 @@ public final class SongServlet extends BaseAuthenticatedGetServlet {
             return variables;
         }
 
+        Song song;
         try (Connection connection = DatabaseManager.getConnection()) {
             DAO dao = new DAO(connection);
             Optional<Song> songOpt = dao.getSongById(songId);
@@ -56,7 +60,7 @@ public final class SongServlet extends BaseAuthenticatedGetServlet {
                 return variables;
             }
 
-            Song song = songOpt.get();
+            song = songOpt.get();
 
             if (!song.getOwner().equals(user.getUsername())) {
                 response.setStatus(HttpServletResponse.SC_NOT_FOUND); // we don't even tell the user a song exists but
@@ -70,6 +74,26 @@ public final class SongServlet extends BaseAuthenticatedGetServlet {
             throw new InternalErrorException("Internal server error");
         }
 
+        // read once the connection is released; without peaks (yet) the page simply has no waveform
+        AssetCrudManager.getWaveform(song, WAVEFORM_BUCKETS).ifPresent(waveform -> {
+            variables.put("waveformBuckets", waveform.buckets());
+            variables.put("waveformPath", toSvgPath(waveform));
+        });
+
         return variables;
     }
+
+    /**
+     * Draws the waveform as one vertical stroke per bucket, in a 256 units high box with the zero line in the middle.
+     */
+    private static String toSvgPath(WaveformPeaks.Level waveform) {
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < waveform.buckets(); i++) {
+            int top = 128 - waveform.max()[i];
+            // at least one unit, so that silence still shows as a line
+            int bottom = Math.max(top + 1, 128 - waveform.min()[i]);
+            path.append('M').append(i).append(".5 ").append(top).append('V').append(bottom);
+        }
+        return path.toString();
+    }
 }
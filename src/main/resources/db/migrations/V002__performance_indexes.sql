@@ -0,0 +1,19 @@
+-- Indexes matched to the queries in DAO.
+
+-- Library listings and the songs-not-in-playlist form: WHERE owner = ? ORDER BY artist, release_year, title
+CREATE INDEX IF NOT EXISTS songs_owner_artist_year_title_idx
+    ON Songs (owner, artist, release_year, title);
+
+-- Duplicate checks when adding songs, and per-song lookups when reordering: WHERE playlist_id = ? AND song_id = ?
+-- The position is included so that reorders read it from the index alone.
+-- (WHERE playlist_id = ? ORDER BY position is already served by the UNIQUE (playlist_id, position) index.)
+CREATE INDEX IF NOT EXISTS playlistsongs_playlist_song_idx
+    ON PlaylistSongs (playlist_id, song_id) INCLUDE (position);
+
+-- ON DELETE CASCADE from Songs, which would otherwise scan every playlist entry for each deleted song
+CREATE INDEX IF NOT EXISTS playlistsongs_song_idx
+    ON PlaylistSongs (song_id);
+
+-- Home page: WHERE owner = ? ORDER BY created_at DESC, name
+CREATE INDEX IF NOT EXISTS playlists_owner_created_at_name_idx
+    ON Playlists (owner, created_at DESC, name);
@@ -0,0 +1,44 @@
+-- Content-addressed audio storage: every distinct audio file is stored once, under its SHA-256, and songs point at it.
+-- Songs created before this migration keep a NULL hash and their {id}.{ext} file until the background migration
+-- moves them over.
+
+CREATE TABLE AudioBlobs (
+    sha256 CHAR(64) PRIMARY KEY CHECK (sha256 ~ '^[0-9a-f]{64}$'),
+    size BIGINT NOT NULL CHECK (size >= 0),
+    -- number of songs pointing at the blob, maintained by the trigger below
+    ref_count INTEGER NOT NULL DEFAULT 0 CHECK (ref_count >= 0),
+    -- last time an upload claimed the blob; unreferenced blobs are only collected after a grace period
+    touched_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+ALTER TABLE Songs ADD COLUMN audio_sha256 CHAR(64) REFERENCES AudioBlobs(sha256);
+
+-- Hash precheck: does this user already have a song with these bytes?
+CREATE INDEX songs_owner_audio_sha256_idx
+    ON Songs (owner, audio_sha256);
+
+-- Garbage collection: WHERE ref_count = 0 AND touched_at < ?
+CREATE INDEX audioblobs_unreferenced_idx
+    ON AudioBlobs (touched_at) WHERE ref_count = 0;
+
+-- Reference counts are kept by the database, so that they stay right however songs go away (e.g. cascades from Users).
+CREATE FUNCTION songs_audio_blob_refcount() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP IN ('UPDATE', 'DELETE') AND OLD.audio_sha256 IS NOT NULL THEN
+        UPDATE AudioBlobs SET ref_count = ref_count - 1 WHERE sha256 = OLD.audio_sha256;
+    END IF;
+    IF TG_OP IN ('INSERT', 'UPDATE') AND NEW.audio_sha256 IS NOT NULL THEN
+        UPDATE AudioBlobs SET ref_count = ref_count + 1 WHERE sha256 = NEW.audio_sha256;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER songs_audio_blob_refcount_insert_delete
+    AFTER INSERT OR DELETE ON Songs
+    FOR EACH ROW EXECUTE FUNCTION songs_audio_blob_refcount();
+
+CREATE TRIGGER songs_audio_blob_refcount_update
+    AFTER UPDATE OF audio_sha256 ON Songs
+    FOR EACH ROW WHEN (OLD.audio_sha256 IS DISTINCT FROM NEW.audio_sha256)
+    EXECUTE FUNCTION songs_audio_blob_refcount();
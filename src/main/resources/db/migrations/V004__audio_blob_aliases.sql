@@ -0,0 +1,11 @@
+-- WAV uploads are stored converted to FLAC. The hash of the uploaded WAV maps to the blob it was converted to, so that
+-- the same WAV is converted only once and the hash precheck still finds it.
+
+CREATE TABLE AudioBlobAliases (
+    source_sha256 CHAR(64) PRIMARY KEY CHECK (source_sha256 ~ '^[0-9a-f]{64}$'),
+    -- aliases go away with the blob they point at
+    sha256 CHAR(64) NOT NULL REFERENCES AudioBlobs(sha256) ON DELETE CASCADE
+);
+
+CREATE INDEX audioblobaliases_sha256_idx
+    ON AudioBlobAliases (sha256);
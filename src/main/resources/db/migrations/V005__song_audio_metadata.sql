@@ -0,0 +1,14 @@
+-- Technical metadata of the audio of every song, read from its headers at upload. NULL until the background job has
+-- probed songs uploaded before this migration; audio_size is set even when the headers could not be read, so it
+-- tells which songs have been probed.
+
+ALTER TABLE Songs
+    ADD COLUMN audio_size BIGINT CHECK (audio_size >= 0),
+    ADD COLUMN duration_ms INTEGER CHECK (duration_ms >= 0),
+    ADD COLUMN bitrate INTEGER CHECK (bitrate > 0),
+    ADD COLUMN sample_rate INTEGER CHECK (sample_rate > 0),
+    ADD COLUMN channels SMALLINT CHECK (channels > 0);
+
+-- Backfill: WHERE audio_size IS NULL
+CREATE INDEX songs_unprobed_audio_idx
+    ON Songs (audio_sha256) WHERE audio_size IS NULL;
@@ -1,5 +1,6 @@
 import Auth from "./auth.js";
 import Playlist from "./playlist.js";
+import Waveform from "./waveform.js";
 
 const auth = new Auth();
 
@@ -88,9 +89,33 @@ function getPlaylistItems() {
         });
 }
 
+/**
+ * Hex SHA-256 of a file, or null where the browser offers no Web Crypto (e.g. over plain http).
+ */
+async function sha256Hex(file) {
+    if (!window.crypto || !window.crypto.subtle) {
+        return null;
+    }
+    const digest = await window.crypto.subtle.digest("SHA-256", await file.arrayBuffer());
+    return Array.from(new Uint8Array(digest), b => b.toString(16).padStart(2, "0")).join("");
+}
+
 async function createSongFromForm(form) {
     const formData = new FormData(form);
 
+    // skip uploading audio the server already has for this user
+    const songFile = formData.get("songFile");
+    if (songFile instanceof File && songFile.size > 0) {
+        const hash = await sha256Hex(songFile).catch(() => null);
+        if (hash) {
+            const known = await auth.authenticatedFetch(`/api/audio/${hash}`, {method: "GET"}).catch(() => null);
+            if (known && known.ok) {
+                formData.delete("songFile");
+                formData.set("audioSha256", hash);
+            }
+        }
+    }
+
     const response = await auth.authenticatedFetch("/api/songs", {method: "POST", body: formData})
     if (!response.ok) {
         const err = await response.json().catch(() => ({}));
@@ -660,7 +685,9 @@ function initSong(songId) {
                 audioSource.src = URL.createObjectURL(blob);
                 audioSource.parentElement.load();
             });
-            auth.authenticatedBlobFetch(song.artworkUrl).then(blob => {
+            new Waveform(document.querySelector(".player-song-waveform"), audioSource.parentElement)
+                .load(auth, song.waveformUrl);
+            auth.authenticatedBlobFetch(`${song.artworkUrl}?size=${Math.ceil(300 * (window.devicePixelRatio || 1))}`).then(blob => {
                 document.querySelector(".player-song-artwork").src = URL.createObjectURL(blob);
             });
             document.querySelector(".home-link").addEventListener("click", () => {
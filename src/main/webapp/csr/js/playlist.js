@@ -69,7 +69,9 @@ export default class Playlist {
     async preloadArtworks() {
         const artworkPromises = this.#songs.map(async (song) => {
             try {
-                const blob = await this.#auth.authenticatedBlobFetch(song.artworkUrl, {method: "GET"});
+                // covers are shown at most about 220 CSS pixels wide; the server picks the nearest stored variant
+                const size = Math.ceil(220 * (window.devicePixelRatio || 1));
+                const blob = await this.#auth.authenticatedBlobFetch(`${song.artworkUrl}?size=${size}`, {method: "GET"});
                 const blobUrl = URL.createObjectURL(blob);
                 this.#artworkCache.set(song.id, blobUrl);
                 return { songId: song.id, blobUrl };
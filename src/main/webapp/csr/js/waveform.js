@@ -0,0 +1,90 @@
+/**
+ * Draws the waveform of a song from its precomputed peaks (see the WaveformPeaks class on the server) and lets the
+ * user seek by clicking on it.
+ */
+export default class Waveform {
+    #canvas;
+    #audio;
+    #levels = [];
+
+    constructor(canvas, audio) {
+        this.#canvas = canvas;
+        this.#audio = audio;
+    }
+
+    /**
+     * Fetches the peaks and starts drawing; the canvas stays hidden if the song has none (yet).
+     */
+    async load(auth, url) {
+        try {
+            const blob = await auth.authenticatedBlobFetch(url, {method: "GET"});
+            this.#levels = Waveform.#parse(await blob.arrayBuffer());
+        } catch (err) {
+            console.log("No waveform for this song:", err.message);
+            return;
+        }
+        if (this.#levels.length === 0) return;
+
+        this.#canvas.hidden = false;
+        this.#audio.addEventListener("timeupdate", () => this.#draw());
+        this.#audio.addEventListener("durationchange", () => this.#draw());
+        this.#canvas.addEventListener("click", event => {
+            if (!isFinite(this.#audio.duration)) return;
+            const rect = this.#canvas.getBoundingClientRect();
+            this.#audio.currentTime = (event.clientX - rect.left) / rect.width * this.#audio.duration;
+        });
+        window.addEventListener("resize", () => this.#draw());
+        this.#draw();
+    }
+
+    // "PEAK", version, level count, then per level: bucket count and (min, max) signed bytes per bucket
+    static #parse(buffer) {
+        const view = new DataView(buffer);
+        if (view.byteLength < 8 || view.getUint32(0) !== 0x5045414B || view.getUint16(4) !== 1) {
+            return [];
+        }
+        const levels = [];
+        let offset = 8;
+        for (let level = view.getUint16(6); level > 0; level--) {
+            const buckets = view.getUint32(offset);
+            levels.push(new Int8Array(buffer, offset + 4, buckets * 2));
+            offset += 4 + buckets * 2;
+        }
+        return levels;
+    }
+
+    #draw() {
+        const ratio = window.devicePixelRatio || 1;
+        const width = Math.round(this.#canvas.clientWidth * ratio);
+        const height = Math.round(this.#canvas.clientHeight * ratio);
+        if (width === 0 || height === 0) return;
+        if (this.#canvas.width !== width || this.#canvas.height !== height) {
+            this.#canvas.width = width;
+            this.#canvas.height = height;
+        }
+        // the coarsest level that still has a bucket per pixel
+        const peaks = this.#levels.find(level => level.length / 2 >= width) || this.#levels[this.#levels.length - 1];
+
+        const context = this.#canvas.getContext("2d");
+        const buckets = peaks.length / 2;
+        const played = isFinite(this.#audio.duration) && this.#audio.duration > 0
+            ? this.#audio.currentTime / this.#audio.duration
+            : 0;
+        const middle = height / 2;
+        context.clearRect(0, 0, width, height);
+        for (let x = 0; x < width; x++) {
+            const from = Math.floor(x * buckets / width);
+            const to = Math.max(from + 1, Math.floor((x + 1) * buckets / width));
+            let min = 0;
+            let max = 0;
+            for (let bucket = from; bucket < to; bucket++) {
+                min = Math.min(min, peaks[bucket * 2]);
+                max = Math.max(max, peaks[bucket * 2 + 1]);
+            }
+            const top = middle - max / 127 * middle;
+            const bottom = middle - min / 127 * middle;
+            context.fillStyle = x / width < played ? "#58a6ff" : "#484f58";
+            context.fillRect(x, top, 1, Math.max(1, bottom - top));
+        }
+    }
+}